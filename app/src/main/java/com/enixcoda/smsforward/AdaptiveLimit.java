@@ -0,0 +1,121 @@
+package com.enixcoda.smsforward;
+
+import androidx.annotation.NonNull;
+
+import java.io.InterruptedIOException;
+
+/**
+ * A limit that follows how a destination copes, additive increase, multiplicative decrease.
+ * <p>
+ * Every request that came back fast, while the limit was fully used, raises the limit a little.
+ * Timeouts and overload responses ({@code 429}, {@code 502}, {@code 503}, {@code 504}) halve it,
+ * and latency beyond {@link #LATENCY_TOLERANCE} times the fastest recent latency lowers it by a
+ * tenth. Requests that were sent before the last decrease say nothing about the lowered limit, so
+ * they cannot lower it again: a burst of timeouts halves the limit once, not once per request.
+ * <p>
+ * The fastest recent latency is the minimum over the last {@link #BASELINE_WINDOW} to twice as
+ * many samples, so a destination that became slower for good is not held to its old speed.
+ */
+public class AdaptiveLimit {
+    /** Latency up to this multiple of the baseline is considered fast. */
+    static final double LATENCY_TOLERANCE = 2.0;
+    /** Latencies below this are never considered slow, however fast the baseline. */
+    static final long MIN_BASELINE_MS = 20;
+    static final double OVERLOAD_DECREASE = 0.5;
+    static final double LATENCY_DECREASE = 0.9;
+    /** Samples after which the baseline starts over. */
+    static final int BASELINE_WINDOW = 100;
+
+    private final int min;
+    private final int max;
+    /** Whether the limit grows by one per success or by one per limit's worth of successes. */
+    private final boolean growPerRequest;
+
+    private double limit;
+    private long lastDecreaseAt;
+    private long previousWindowMinMs = Long.MAX_VALUE;
+    private long windowMinMs = Long.MAX_VALUE;
+    private int windowSamples;
+
+    /**
+     * @param growPerRequest {@code true} to grow by one per success, for limits that are used
+     *                       once per request such as a batch size. {@code false} to grow by one
+     *                       per round of {@code limit} successes, for a concurrency limit.
+     */
+    AdaptiveLimit(int initial, int min, int max, boolean growPerRequest) {
+        this.min = min;
+        this.max = max;
+        this.growPerRequest = growPerRequest;
+        this.limit = Math.max(min, Math.min(max, initial));
+    }
+
+    /**
+     * @return The current limit, between the minimum and maximum given.
+     */
+    public synchronized int get() {
+        return (int) limit;
+    }
+
+    /**
+     * Records a request that was answered.
+     *
+     * @param startedAt When the request was sent, by {@link System#currentTimeMillis()}.
+     * @param latencyMs How long it took, divided by the entries it carried where the limit is a
+     *                  batch size, so larger batches are not mistaken for a slower destination.
+     * @param used      How much of the limit was in use, the limit only grows if all of it was.
+     */
+    public synchronized void onSuccess(long startedAt, long latencyMs, int used) {
+        windowMinMs = Math.min(windowMinMs, latencyMs);
+        if (++windowSamples >= BASELINE_WINDOW) {
+            previousWindowMinMs = windowMinMs;
+            windowMinMs = Long.MAX_VALUE;
+            windowSamples = 0;
+        }
+
+        long baselineMs = Math.max(MIN_BASELINE_MS, Math.min(previousWindowMinMs, windowMinMs));
+        if (latencyMs > LATENCY_TOLERANCE * baselineMs) {
+            decrease(startedAt, LATENCY_DECREASE);
+        } else if (used >= (int) limit) {
+            limit = Math.min(max, limit + (growPerRequest ? 1 : 1 / limit));
+        }
+    }
+
+    /**
+     * Records a request that failed because the destination is overloaded, see
+     * {@link #isOverload}.
+     *
+     * @param startedAt When the request was sent, by {@link System#currentTimeMillis()}.
+     */
+    public synchronized void onOverload(long startedAt) {
+        decrease(startedAt, OVERLOAD_DECREASE);
+    }
+
+    private void decrease(long startedAt, double factor) {
+        // sent under a higher limit, already accounted for
+        if (startedAt < lastDecreaseAt) return;
+        lastDecreaseAt = System.currentTimeMillis();
+        limit = Math.max(min, limit * factor);
+    }
+
+    /**
+     * @return Whether {@code error} means the destination needs fewer or smaller requests: it
+     * timed out, or asked to slow down or is unavailable.
+     */
+    static boolean isOverload(@NonNull Throwable error) {
+        for (Throwable cause = error; cause != null; cause = cause.getCause()) {
+            if (cause instanceof ForwardException) {
+                int statusCode = ((ForwardException) cause).getStatusCode();
+                return statusCode == 429 || statusCode == 502 || statusCode == 503 || statusCode == 504;
+            }
+            // socket and call timeouts
+            if (cause instanceof InterruptedIOException) return true;
+        }
+        return false;
+    }
+
+    @NonNull
+    @Override
+    public synchronized String toString() {
+        return String.valueOf((int) limit);
+    }
+}
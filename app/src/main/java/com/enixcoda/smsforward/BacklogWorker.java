@@ -0,0 +1,60 @@
+package com.enixcoda.smsforward;
+
+import android.content.Context;
+
+import androidx.annotation.NonNull;
+import androidx.work.Constraints;
+import androidx.work.ExistingWorkPolicy;
+import androidx.work.NetworkType;
+import androidx.work.OneTimeWorkRequest;
+import androidx.work.WorkManager;
+import androidx.work.Worker;
+import androidx.work.WorkerParameters;
+
+/**
+ * Delivers the entries held back while the device was offline, once it is connected again.
+ * <p>
+ * WorkManager starts the job when the network constraint is met, even if the process died in the
+ * meantime, and keeps the device awake while it runs. The job makes the whole backlog due at once
+ * and waits until it is delivered, so the radio stays up for one burst instead of waking for
+ * every retry timer separately.
+ */
+public class BacklogWorker extends Worker {
+    private static final String WORK_NAME = "outbox-backlog";
+    /** WorkManager stops workers after 10 minutes. */
+    private static final long MAX_RUN_MS = 8 * 60_000;
+    private static final long POLL_INTERVAL_MS = 500;
+
+    public BacklogWorker(@NonNull Context context, @NonNull WorkerParameters workerParams) {
+        super(context, workerParams);
+    }
+
+    /**
+     * Schedules the job for the next time the device is connected, unless it is already scheduled.
+     */
+    static void schedule(@NonNull Context context) {
+        OneTimeWorkRequest request = new OneTimeWorkRequest.Builder(BacklogWorker.class)
+                .setConstraints(new Constraints.Builder().setRequiredNetworkType(NetworkType.CONNECTED).build())
+                .build();
+        WorkManager.getInstance(context).enqueueUniqueWork(WORK_NAME, ExistingWorkPolicy.KEEP, request);
+    }
+
+    @NonNull
+    @Override
+    public Result doWork() {
+        OutboxDrainer drainer = OutboxDrainer.getInstance(getApplicationContext());
+        drainer.resumeNetworkChannels();
+
+        long deadline = System.currentTimeMillis() + MAX_RUN_MS;
+        try {
+            while (!isStopped() && System.currentTimeMillis() < deadline) {
+                if (drainer.isBacklogDelivered()) return Result.success();
+                Thread.sleep(POLL_INTERVAL_MS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // Stopped because the network went away again, or the backlog is too large for one run.
+        return Result.retry();
+    }
+}
@@ -0,0 +1,136 @@
+package com.enixcoda.smsforward;
+
+import androidx.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects outbox entries per channel for a short window and hands them over as one batch.
+ * <p>
+ * A batch is flushed when the window that started with its first entry ends, when it reaches the
+ * channel's {@link #getBatchLimit batch limit}, or when the next entry would push it past the
+ * channel's size limit, so the latency added to any message is bounded by the window. The batch
+ * limit starts at {@link #INITIAL_BATCH_MESSAGES} and follows the outcomes the
+ * {@link OutboxDrainer} records, up to {@link #MAX_BATCH_MESSAGES}.
+ * <p>
+ * Entries waiting here are claimed in the outbox, so if the process is killed before their window
+ * ends they are not lost: the next process releases the claims and delivers them, see
+ * {@link OutboxDatabase#releaseClaims()}. Nothing needs to be flushed early for that.
+ */
+public class BurstCoalescer {
+    static final int INITIAL_BATCH_MESSAGES = 50;
+    static final int MAX_BATCH_MESSAGES = 200;
+
+    /** Characters added per message by {@link MessageFormatter#formatBatch} or the JSON array. */
+    private static final int PER_MESSAGE_OVERHEAD = 32;
+    /** Upper bound for a batched webhook body or email digest, well below what servers usually accept. */
+    private static final int MAX_BATCH_LENGTH = 256 * 1024;
+
+    /**
+     * Receives batches ready to be delivered.
+     */
+    public interface FlushHandler {
+        void onFlush(@NonNull Channel channel, @NonNull List<OutboxEntry> batch);
+    }
+
+    private static class Buffer {
+        final List<OutboxEntry> entries = new ArrayList<>();
+        int length;
+        ScheduledFuture<?> timer;
+    }
+
+    private final ScheduledExecutorService scheduler;
+    private final FlushHandler handler;
+    /** Guarded by {@code this}. */
+    private final Map<Channel, Buffer> buffers = new EnumMap<>(Channel.class);
+    /** Guarded by {@code this}. */
+    private final Map<Channel, AdaptiveLimit> batchLimits = new EnumMap<>(Channel.class);
+
+    public BurstCoalescer(@NonNull ScheduledExecutorService scheduler, @NonNull FlushHandler handler) {
+        this.scheduler = scheduler;
+        this.handler = handler;
+    }
+
+    /**
+     * Adds an entry to its channel's current batch, starting a new window if there is none.
+     */
+    public void add(@NonNull OutboxEntry entry, long windowMs) {
+        Channel channel = entry.channel;
+        int length = entry.senderNumber.length() + entry.message.length() + PER_MESSAGE_OVERHEAD;
+        List<OutboxEntry> full = null;
+        List<OutboxEntry> overflow = null;
+
+        synchronized (this) {
+            Buffer buffer = buffers.get(channel);
+            if (buffer == null) {
+                buffer = new Buffer();
+                buffers.put(channel, buffer);
+            }
+
+            if (!buffer.entries.isEmpty() && buffer.length + length > maxLength(channel)) {
+                overflow = take(channel);
+                buffer = new Buffer();
+                buffers.put(channel, buffer);
+            }
+
+            buffer.entries.add(entry);
+            buffer.length += length;
+            if (buffer.entries.size() >= getBatchLimit(channel).get()) {
+                full = take(channel);
+            } else if (buffer.entries.size() == 1) {
+                buffer.timer = scheduler.schedule(() -> flush(channel), windowMs, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        if (overflow != null) handler.onFlush(channel, overflow);
+        if (full != null) handler.onFlush(channel, full);
+    }
+
+    /**
+     * @return The limit on the entries in one batch of {@code channel}, for recording how batches
+     * went.
+     */
+    @NonNull
+    public synchronized AdaptiveLimit getBatchLimit(@NonNull Channel channel) {
+        AdaptiveLimit limit = batchLimits.get(channel);
+        if (limit == null) {
+            limit = new AdaptiveLimit(INITIAL_BATCH_MESSAGES, 1, MAX_BATCH_MESSAGES, true);
+            batchLimits.put(channel, limit);
+        }
+        return limit;
+    }
+
+    /**
+     * @return Whether no entries are waiting for their window to end.
+     */
+    public synchronized boolean isEmpty() {
+        return buffers.isEmpty();
+    }
+
+    private void flush(Channel channel) {
+        List<OutboxEntry> batch;
+        synchronized (this) {
+            batch = take(channel);
+        }
+        if (batch != null) {
+            handler.onFlush(channel, batch);
+        }
+    }
+
+    private List<OutboxEntry> take(Channel channel) {
+        Buffer buffer = buffers.remove(channel);
+        if (buffer == null || buffer.entries.isEmpty()) return null;
+        if (buffer.timer != null) buffer.timer.cancel(false);
+        return buffer.entries;
+    }
+
+    private static int maxLength(Channel channel) {
+        return Math.min(MAX_BATCH_LENGTH, ForwardChannels.get(channel).getMaxBatchLength());
+    }
+}
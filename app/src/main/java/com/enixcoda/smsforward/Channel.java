@@ -0,0 +1,15 @@
+package com.enixcoda.smsforward;
+
+/**
+ * Destinations an incoming SMS can be forwarded to.
+ * <p>
+ * The enum name is persisted in the outbox, so constants must not be renamed.
+ */
+public enum Channel {
+    SMS,
+    TELEGRAM,
+    ROCKET_CHAT,
+    TWILIO,
+    WEB,
+    EMAIL
+}
@@ -0,0 +1,55 @@
+package com.enixcoda.smsforward;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Prepares the configured channels on a background thread, see {@link ForwardChannel#warmUp}.
+ * <p>
+ * The HTTP client and the mail session are only created when a channel first needs them, so a
+ * disabled channel costs nothing. Without a warm-up, that first use falls on the delivery of the
+ * first message after a cold start.
+ */
+final class ChannelWarmUp {
+    private static final String TAG = "ChannelWarmUp";
+
+    private static final ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, TAG);
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private ChannelWarmUp() {
+    }
+
+    /**
+     * Prepares every channel that is configured in the current settings, in the background.
+     */
+    static void start(@NonNull Context context) {
+        final Context appContext = context.getApplicationContext();
+        executor.execute(() -> warmUp(ForwardingConfig.get(appContext)));
+    }
+
+    private static void warmUp(ForwardingConfig config) {
+        for (ForwardChannel forwardChannel : ForwardChannels.all()) {
+            if (!forwardChannel.isConfigured(config)) continue;
+
+            long startedAt = SystemClock.elapsedRealtime();
+            try {
+                forwardChannel.warmUp(config);
+            } catch (RuntimeException e) {
+                // the first send runs into the same problem and reports it
+                Log.w(TAG, "warmUp: " + forwardChannel.getChannel() + " failed", e);
+                continue;
+            }
+            Log.d(TAG, "warmUp: " + forwardChannel.getChannel() + " ready in "
+                    + (SystemClock.elapsedRealtime() - startedAt) + "ms");
+        }
+    }
+}
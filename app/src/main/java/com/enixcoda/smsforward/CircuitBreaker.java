@@ -0,0 +1,112 @@
+package com.enixcoda.smsforward;
+
+import androidx.annotation.NonNull;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Stops sending to a destination that keeps failing.
+ * <p>
+ * After {@link #FAILURE_THRESHOLD} consecutive retryable failures the breaker opens and no request
+ * is sent for the cool-down period; entries are postponed instead of each spending a thread and a
+ * socket on a dead server. When the cool-down ends a single trial request is let through. Success
+ * closes the breaker, failure opens it again with a doubled cool-down.
+ */
+public class CircuitBreaker {
+    static final int FAILURE_THRESHOLD = 5;
+    static final long INITIAL_OPEN_MS = 30_000;
+    static final long MAX_OPEN_MS = 10 * 60_000;
+
+    private static final ConcurrentHashMap<String, CircuitBreaker> breakers = new ConcurrentHashMap<>();
+
+    enum State {CLOSED, OPEN, HALF_OPEN}
+
+    private State state = State.CLOSED;
+    private int consecutiveFailures;
+    private long openMs = INITIAL_OPEN_MS;
+    private long openUntil;
+
+    /**
+     * @param destination Identifies the remote end, e.g. channel and host.
+     * @return The breaker shared by every request to {@code destination}.
+     */
+    @NonNull
+    public static CircuitBreaker forDestination(@NonNull String destination) {
+        return breakers.computeIfAbsent(destination, key -> new CircuitBreaker());
+    }
+
+    /**
+     * @return Whether a request may be sent now. While half-open, only the first caller gets
+     * {@code true} and must report the outcome.
+     */
+    public synchronized boolean allowRequest() {
+        switch (state) {
+            case CLOSED:
+                return true;
+            case OPEN:
+                if (now() < openUntil) return false;
+                state = State.HALF_OPEN;
+                return true;
+            default:
+                // a trial request is already in flight
+                return false;
+        }
+    }
+
+    /**
+     * @return Whether {@link #allowRequest()} would return {@code false} now. Unlike it, does not
+     * let the trial request through, so a caller can check before spending anything on a request.
+     */
+    public synchronized boolean isRejecting() {
+        return state == State.HALF_OPEN || (state == State.OPEN && now() < openUntil);
+    }
+
+    /**
+     * @return The current state, for display.
+     */
+    public synchronized State getState() {
+        return state;
+    }
+
+    /**
+     * @return When a request will be allowed again, for postponing rejected work.
+     */
+    public synchronized long getRetryAt() {
+        // While half-open the trial decides, check back after it had time to finish.
+        return state == State.OPEN ? openUntil : now() + INITIAL_OPEN_MS;
+    }
+
+    /**
+     * Records that the destination answered, even if it rejected the request.
+     */
+    public synchronized void recordSuccess() {
+        state = State.CLOSED;
+        consecutiveFailures = 0;
+        openMs = INITIAL_OPEN_MS;
+    }
+
+    /**
+     * Records a failure that suggests the destination is unavailable.
+     */
+    public synchronized void recordFailure() {
+        consecutiveFailures++;
+        if (state == State.HALF_OPEN) {
+            openMs = Math.min(MAX_OPEN_MS, openMs * 2);
+            open();
+        } else if (state == State.CLOSED && consecutiveFailures >= FAILURE_THRESHOLD) {
+            open();
+        }
+    }
+
+    private void open() {
+        state = State.OPEN;
+        openUntil = now() + openMs;
+    }
+
+    /**
+     * @return The current time, by {@link System#currentTimeMillis()}; tests move it forward.
+     */
+    long now() {
+        return System.currentTimeMillis();
+    }
+}
@@ -0,0 +1,27 @@
+package com.enixcoda.smsforward;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+
+/**
+ * Nothing was sent because the {@link CircuitBreaker} of every destination left is open. The
+ * entries are postponed rather than failed, like entries held back by the channel's own breaker.
+ */
+public class CircuitOpenException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    private final long retryAt;
+
+    public CircuitOpenException(@NonNull String message, long retryAt) {
+        super(message);
+        this.retryAt = retryAt;
+    }
+
+    /**
+     * @return When a request will be allowed again, see {@link CircuitBreaker#getRetryAt()}.
+     */
+    public long getRetryAt() {
+        return retryAt;
+    }
+}
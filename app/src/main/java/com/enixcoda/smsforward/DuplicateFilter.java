@@ -0,0 +1,163 @@
+package com.enixcoda.smsforward;
+
+import android.content.Context;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+/**
+ * Recognises an SMS that was already forwarded: the same sender and body with a timestamp within
+ * the configured window of an earlier one. This catches carrier redeliveries and replayed
+ * broadcasts, which carry the original timestamp, as well as a sender repeating a message.
+ * <p>
+ * The last {@link #CAPACITY} messages are kept as 64-bit fingerprints and timestamps in a ring of
+ * two {@code long[]}, so a check hashes the strings in place and scans a few kilobytes. With
+ * persistence enabled every record is also written to a small file, so redeliveries after a
+ * restart are caught too.
+ */
+public class DuplicateFilter {
+    private static final String TAG = "DuplicateFilter";
+    private static final String FILE_NAME = "duplicate_filter.bin";
+
+    static final int CAPACITY = 512;
+    private static final int HEADER_BYTES = 4;
+    private static final int RECORD_BYTES = 16;
+
+    private static volatile DuplicateFilter instance;
+
+    private final File file;
+    private final long[] fingerprints = new long[CAPACITY];
+    private final long[] timestamps = new long[CAPACITY];
+    /** The slot the next message is written to, the oldest one once the ring is full. */
+    private int next = 0;
+    private RandomAccessFile store;
+    // reused, RandomAccessFile.writeLong writes byte by byte
+    private final ByteBuffer record = ByteBuffer.allocate(RECORD_BYTES);
+    private final ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+
+    public static DuplicateFilter getInstance(Context context) {
+        if (instance == null) {
+            synchronized (DuplicateFilter.class) {
+                if (instance == null) {
+                    instance = new DuplicateFilter(new File(context.getApplicationContext().getFilesDir(), FILE_NAME));
+                }
+            }
+        }
+        return instance;
+    }
+
+    DuplicateFilter(@NonNull File file) {
+        this.file = file;
+    }
+
+    /**
+     * Checks a message against the ones {@link #remember remembered} before.
+     *
+     * @return Whether the message was seen before and should not be forwarded again.
+     */
+    public synchronized boolean isDuplicate(@NonNull String senderNumber, @NonNull String body, long timestampMillis,
+                                            @NonNull DuplicatePreferences preferences) {
+        if (!preferences.isEnabled()) return false;
+        setPersistent(preferences.getPersist());
+
+        long fingerprint = Fingerprint.of(senderNumber, body);
+        long windowMs = preferences.getWindowMs();
+        for (int i = 0; i < CAPACITY; i++) {
+            if (fingerprints[i] == fingerprint && Math.abs(timestamps[i] - timestampMillis) <= windowMs) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Remembers a message as seen. Call this only once the message is safely queued, so a copy
+     * redelivered after a failure is not mistaken for a duplicate of a message that got lost.
+     */
+    public synchronized void remember(@NonNull String senderNumber, @NonNull String body, long timestampMillis,
+                                      @NonNull DuplicatePreferences preferences) {
+        if (!preferences.isEnabled()) return;
+        setPersistent(preferences.getPersist());
+
+        int slot = next;
+        fingerprints[slot] = Fingerprint.of(senderNumber, body);
+        timestamps[slot] = timestampMillis;
+        next = (slot + 1) % CAPACITY;
+        write(slot);
+    }
+
+    private void setPersistent(boolean persistent) {
+        if (persistent == (store != null)) return;
+
+        if (!persistent) {
+            close();
+            if (!file.delete()) {
+                Log.d(TAG, "setPersistent: nothing to delete");
+            }
+            return;
+        }
+
+        try {
+            store = new RandomAccessFile(file, "rw");
+            if (next == 0 && fingerprints[0] == 0) {
+                load();
+            }
+            // write the whole ring, the file may be missing records seen while not persisting
+            ByteBuffer buffer = ByteBuffer.allocate(HEADER_BYTES + CAPACITY * RECORD_BYTES);
+            buffer.putInt(next);
+            for (int i = 0; i < CAPACITY; i++) {
+                buffer.putLong(fingerprints[i]).putLong(timestamps[i]);
+            }
+            store.seek(0);
+            store.write(buffer.array());
+        } catch (IOException e) {
+            Log.w(TAG, "setPersistent: keeping records in memory only", e);
+            close();
+        }
+    }
+
+    private void load() throws IOException {
+        if (store.length() != HEADER_BYTES + (long) CAPACITY * RECORD_BYTES) return;
+
+        byte[] bytes = new byte[(int) store.length()];
+        store.seek(0);
+        store.readFully(bytes);
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        next = Math.floorMod(buffer.getInt(), CAPACITY);
+        for (int i = 0; i < CAPACITY; i++) {
+            fingerprints[i] = buffer.getLong();
+            timestamps[i] = buffer.getLong();
+        }
+        Log.d(TAG, "load: restored records of the previous process");
+    }
+
+    private void write(int slot) {
+        if (store == null) return;
+        try {
+            record.putLong(0, fingerprints[slot]).putLong(8, timestamps[slot]);
+            store.seek(HEADER_BYTES + (long) slot * RECORD_BYTES);
+            store.write(record.array());
+            header.putInt(0, next);
+            store.seek(0);
+            store.write(header.array());
+        } catch (IOException e) {
+            Log.w(TAG, "write: keeping records in memory only", e);
+            close();
+        }
+    }
+
+    private void close() {
+        if (store == null) return;
+        try {
+            store.close();
+        } catch (IOException e) {
+            Log.d(TAG, "close: " + e.getMessage());
+        }
+        store = null;
+    }
+}
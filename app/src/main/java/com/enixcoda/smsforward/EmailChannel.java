@@ -0,0 +1,74 @@
+package com.enixcoda.smsforward;
+
+import androidx.annotation.NonNull;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Forwards as an email over the shared {@link SmtpConnection}.
+ */
+class EmailChannel implements ForwardChannel {
+    @NonNull
+    @Override
+    public Channel getChannel() {
+        return Channel.EMAIL;
+    }
+
+    @Override
+    public boolean isConfigured(@NonNull ForwardingConfig config) {
+        return config.getEmail().isValid();
+    }
+
+    @NonNull
+    @Override
+    public String destinationOf(@NonNull ForwardingConfig config) {
+        return getChannel() + ":" + config.getEmail().getSmtpHost();
+    }
+
+    @NonNull
+    @Override
+    public List<RateLimiter> rateLimitersOf(@NonNull ForwardingConfig config) {
+        EmailPreferences emailPref = config.getEmail();
+        return Collections.singletonList(RateLimiter.forKey("EMAIL:" + emailPref.getSmtpHost(),
+                emailPref.getPerMinute() / 60.0, emailPref.getBurst()));
+    }
+
+    @Override
+    public void warmUp(@NonNull ForwardingConfig config) {
+        EmailPreferences emailPref = config.getEmail();
+        SmtpConnection.prepare(new SmtpConnection.Config(
+                emailPref.getSmtpHost(), emailPref.getSmtpPort(), emailPref.getSmtpUser(), emailPref.getSmtpPassword()));
+    }
+
+    @Override
+    public int send(@NonNull OutboxEntry entry, @NonNull ForwardingConfig config) throws Exception {
+        createTask("Forwarded SMS message from " + entry.senderNumber, entry.message, config.getEmail()).send();
+        return ForwardException.NO_STATUS;
+    }
+
+    @Override
+    public boolean supportsBatch() {
+        return true;
+    }
+
+    @Override
+    public int sendBatch(@NonNull List<OutboxEntry> entries, @NonNull ForwardingConfig config) throws Exception {
+        // digest: one MIME message for the whole batch
+        createTask(entries.size() + " forwarded SMS messages", MessageFormatter.formatBatch(entries), config.getEmail()).send();
+        return ForwardException.NO_STATUS;
+    }
+
+    private static ForwardTaskForEmail createTask(String subject, String body, EmailPreferences emailPref) {
+        return new ForwardTaskForEmail(
+                emailPref.getSmtpHost(),
+                emailPref.getSmtpPort(),
+                emailPref.getSmtpUser(),
+                emailPref.getSmtpPassword(),
+                emailPref.getFromEmail(),
+                emailPref.getToEmail(),
+                subject,
+                body
+        );
+    }
+}
@@ -0,0 +1,51 @@
+package com.enixcoda.smsforward;
+
+import androidx.annotation.NonNull;
+
+/**
+ * 64-bit fingerprints of received messages, used to recognise duplicates and to give forwards a
+ * stable id.
+ */
+final class Fingerprint {
+    private Fingerprint() {
+    }
+
+    /**
+     * 64-bit FNV-1a over both strings, with a final mix so similar messages spread over all bits.
+     * Never returns 0, which marks an empty slot in {@link DuplicateFilter}.
+     */
+    static long of(@NonNull String senderNumber, @NonNull String body) {
+        long hash = 0xcbf29ce484222325L;
+        hash = hash(hash, senderNumber);
+        // separator, so "12" + "3" and "1" + "23" differ
+        hash = (hash ^ 0xffff) * 0x100000001b3L;
+        hash = hash(hash, body);
+        return nonZero(mix(hash));
+    }
+
+    /**
+     * Identifies one received message: the same for every channel and every retry of it, but
+     * different for the same text received again later.
+     */
+    static long of(@NonNull String senderNumber, @NonNull String body, long receivedAt) {
+        return nonZero(mix(of(senderNumber, body) ^ receivedAt));
+    }
+
+    private static long hash(long hash, String text) {
+        for (int i = 0, length = text.length(); i < length; i++) {
+            hash = (hash ^ text.charAt(i)) * 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    private static long mix(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    private static long nonZero(long hash) {
+        return hash == 0 ? 1 : hash;
+    }
+}
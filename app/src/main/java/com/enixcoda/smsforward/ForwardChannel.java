@@ -0,0 +1,144 @@
+package com.enixcoda.smsforward;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A destination incoming SMS are forwarded to.
+ * <p>
+ * Implementations only know how to talk to their service. Queueing, fan-out, coalescing, rate
+ * limiting, retries and circuit breaking are done for every channel alike by the
+ * {@link OutboxDrainer}, so a channel registered in {@link ForwardChannels} gets all of them.
+ * Sends run on a {@link ForwardingEngine} thread and may block.
+ */
+public interface ForwardChannel {
+    /**
+     * Current state of a channel, as shown to the user.
+     */
+    enum Health {
+        /** Not enabled or not fully configured. */
+        DISABLED,
+        HEALTHY,
+        /** Failed recently, a trial request decides whether it is back. */
+        RECOVERING,
+        /** Failed repeatedly, requests are held back for a while. */
+        UNAVAILABLE
+    }
+
+    /**
+     * @return The key this channel's entries are stored under.
+     */
+    @NonNull
+    Channel getChannel();
+
+    /**
+     * @return Whether the channel is enabled and has everything it needs to send.
+     */
+    boolean isConfigured(@NonNull ForwardingConfig config);
+
+    /**
+     * @return A key identifying the remote end the channel sends to, for
+     * {@link CircuitBreaker#forDestination}.
+     */
+    @NonNull
+    default String destinationOf(@NonNull ForwardingConfig config) {
+        // a single, fixed API host
+        return getChannel().name();
+    }
+
+    /**
+     * @return The breaker every delivery on the channel must pass and report back to, or
+     * {@code null} if the channel keeps breakers of its own, e.g. one per endpoint. Such a channel
+     * throws {@link CircuitOpenException} when all of them are open, and reports its health in
+     * {@link #getHealth}.
+     */
+    @Nullable
+    default CircuitBreaker breakerOf(@NonNull ForwardingConfig config) {
+        return CircuitBreaker.forDestination(destinationOf(config));
+    }
+
+    /**
+     * @return The limiters a request on the channel must pass, empty if it is not limited.
+     */
+    @NonNull
+    default List<RateLimiter> rateLimitersOf(@NonNull ForwardingConfig config) {
+        return Collections.emptyList();
+    }
+
+    /**
+     * @return Whether sending needs a data connection. Entries for such channels are held back
+     * while the device is offline.
+     */
+    default boolean needsNetwork() {
+        return true;
+    }
+
+    /**
+     * Prepares what the first send needs, such as clients, sessions and their classes, so the
+     * first message does not wait for it. Called off the main thread for configured channels, and
+     * cheap once the channel is prepared.
+     */
+    default void warmUp(@NonNull ForwardingConfig config) {
+    }
+
+    /**
+     * Sends a single entry on the calling thread.
+     *
+     * @return The status code the destination answered with, or {@link ForwardException#NO_STATUS}
+     * if it does not answer with one.
+     * @throws Exception If the entry could not be delivered, classified by {@link RetryPolicy}.
+     */
+    int send(@NonNull OutboxEntry entry, @NonNull ForwardingConfig config) throws Exception;
+
+    /**
+     * @return Whether {@link #sendBatch} can deliver several entries as one request.
+     */
+    default boolean supportsBatch() {
+        return false;
+    }
+
+    /**
+     * @return The longest text one batch request may carry.
+     */
+    default int getMaxBatchLength() {
+        return Integer.MAX_VALUE;
+    }
+
+    /**
+     * Sends several entries on the calling thread, as one request if the channel
+     * {@link #supportsBatch()}. By default they are sent one by one, and a failure stops the rest;
+     * the whole batch is retried then, so the entries before it may arrive twice.
+     *
+     * @return The status code the destination answered with, the last one if there were several
+     * requests, or {@link ForwardException#NO_STATUS} if it does not answer with one.
+     * @throws Exception If the batch could not be delivered, classified by {@link RetryPolicy}.
+     */
+    default int sendBatch(@NonNull List<OutboxEntry> entries, @NonNull ForwardingConfig config) throws Exception {
+        int statusCode = ForwardException.NO_STATUS;
+        for (OutboxEntry entry : entries) {
+            statusCode = send(entry, config);
+        }
+        return statusCode;
+    }
+
+    /**
+     * @return The channel's health, derived from its configuration and circuit breaker.
+     */
+    @NonNull
+    default Health getHealth(@NonNull ForwardingConfig config) {
+        if (!isConfigured(config)) return Health.DISABLED;
+        CircuitBreaker breaker = breakerOf(config);
+        if (breaker == null) return Health.HEALTHY;
+        switch (breaker.getState()) {
+            case OPEN:
+                return Health.UNAVAILABLE;
+            case HALF_OPEN:
+                return Health.RECOVERING;
+            default:
+                return Health.HEALTHY;
+        }
+    }
+}
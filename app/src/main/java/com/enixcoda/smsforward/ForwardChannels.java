@@ -0,0 +1,54 @@
+package com.enixcoda.smsforward;
+
+import androidx.annotation.NonNull;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Registry of all {@link ForwardChannel} implementations.
+ * <p>
+ * A new channel needs a {@link Channel} constant to store its entries under and a line in the
+ * static block below.
+ */
+public final class ForwardChannels {
+    private static final Map<Channel, ForwardChannel> channels = new EnumMap<>(Channel.class);
+
+    static {
+        register(new SmsChannel());
+        register(new TelegramChannel());
+        register(new RocketChatChannel());
+        register(new TwilioChannel());
+        register(new WebChannel());
+        register(new EmailChannel());
+    }
+
+    private ForwardChannels() {
+    }
+
+    private static void register(ForwardChannel forwardChannel) {
+        channels.put(forwardChannel.getChannel(), forwardChannel);
+    }
+
+    /**
+     * @return The implementation for {@code channel}.
+     */
+    @NonNull
+    public static ForwardChannel get(@NonNull Channel channel) {
+        ForwardChannel forwardChannel = channels.get(channel);
+        if (forwardChannel == null) {
+            throw new IllegalArgumentException("No implementation for " + channel);
+        }
+        return forwardChannel;
+    }
+
+    /**
+     * @return Every registered channel, in {@link Channel} order.
+     */
+    @NonNull
+    public static Collection<ForwardChannel> all() {
+        return Collections.unmodifiableCollection(channels.values());
+    }
+}
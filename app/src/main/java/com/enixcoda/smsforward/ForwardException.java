@@ -0,0 +1,105 @@
+package com.enixcoda.smsforward;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.util.Date;
+
+import okhttp3.Response;
+
+/**
+ * A failed forward, classified by whether trying again can succeed.
+ */
+public class ForwardException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    /** No status code, the request did not get a response. */
+    static final int NO_STATUS = -1;
+    /** The server did not say when to retry. */
+    static final long NO_RETRY_AFTER = -1;
+
+    private final int statusCode;
+    private final boolean retryable;
+    private final long retryAfterMs;
+
+    public ForwardException(@NonNull String message, int statusCode, boolean retryable, long retryAfterMs) {
+        super(message);
+        this.statusCode = statusCode;
+        this.retryable = retryable;
+        this.retryAfterMs = retryAfterMs;
+    }
+
+    /**
+     * @return The HTTP status code of the failed request, or {@link #NO_STATUS}.
+     */
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    /**
+     * @return Whether sending the same request again later can succeed.
+     */
+    public boolean isRetryable() {
+        return retryable;
+    }
+
+    /**
+     * @return How long the server asked us to wait, or {@link #NO_RETRY_AFTER}.
+     */
+    public long getRetryAfterMs() {
+        return retryAfterMs;
+    }
+
+    /**
+     * Classifies an unsuccessful HTTP response.
+     * <p>
+     * Timeouts, rate limits and server errors are retryable, any other client error is not: the
+     * same request would be rejected again. The wait time is taken from the {@code Retry-After}
+     * header or, for the Telegram Bot API, from {@code parameters.retry_after} in the body.
+     *
+     * @param responseBody The already consumed response body, used for the message and Telegram's
+     *                     retry hint.
+     */
+    @NonNull
+    public static ForwardException fromResponse(@NonNull Response response, @Nullable String responseBody) {
+        int code = response.code();
+        boolean retryable = code == 408 || code == 425 || code == 429 || code >= 500;
+
+        long retryAfterMs = parseRetryAfter(response);
+        if (retryAfterMs == NO_RETRY_AFTER && responseBody != null) {
+            retryAfterMs = parseTelegramRetryAfter(responseBody);
+        }
+
+        return new ForwardException(
+                "HTTP " + code + " from " + response.request().url().host() + ": " + responseBody,
+                code, retryable, retryAfterMs);
+    }
+
+    private static long parseRetryAfter(Response response) {
+        String value = response.header("Retry-After");
+        if (value == null) return NO_RETRY_AFTER;
+
+        try {
+            return Math.max(0, Long.parseLong(value.trim()) * 1000);
+        } catch (NumberFormatException e) {
+            Date date = response.headers().getDate("Retry-After");
+            if (date == null) return NO_RETRY_AFTER;
+            return Math.max(0, date.getTime() - System.currentTimeMillis());
+        }
+    }
+
+    private static long parseTelegramRetryAfter(String responseBody) {
+        if (!responseBody.startsWith("{")) return NO_RETRY_AFTER;
+        try {
+            JSONObject parameters = new JSONObject(responseBody).optJSONObject("parameters");
+            if (parameters == null || !parameters.has("retry_after")) return NO_RETRY_AFTER;
+            return parameters.getLong("retry_after") * 1000;
+        } catch (JSONException e) {
+            return NO_RETRY_AFTER;
+        }
+    }
+}
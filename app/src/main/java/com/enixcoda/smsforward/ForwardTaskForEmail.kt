@@ -1,15 +1,9 @@
 package com.enixcoda.smsforward
 
 import android.util.Log
-import kotlinx.coroutines.CoroutineScope
-import kotlinx.coroutines.Dispatchers
-import kotlinx.coroutines.launch
-import java.util.Properties
 import javax.mail.Message
 import javax.mail.MessagingException
-import javax.mail.PasswordAuthentication
 import javax.mail.Session
-import javax.mail.Transport
 import javax.mail.internet.InternetAddress
 import javax.mail.internet.MimeMessage
 
@@ -36,40 +30,27 @@ class ForwardTaskForEmail(
     private val emailBody: String
 ) {
     /**
-     * Sends the email using the provided SMTP server details.
+     * Sends the email using the provided SMTP server details, on the calling thread.
+     * The connection is kept open by [SmtpConnection] and reused by the next email.
+     *
+     * @throws MessagingException If the SMTP server did not accept the email.
      */
+    @Throws(MessagingException::class)
     fun send() {
-        val properties = Properties().apply {
-            put("mail.smtp.host", smtpHost)
-            put("mail.smtp.port", smtpPort)
-            put("mail.smtp.auth", "true")
-            put("mail.smtp.connectiontimeout", "10000")
-            put("mail.smtp.timeout", "10000")
-            put("mail.smtp.writetimeout", "10000")
-            put("mail.smtp.allow8bitmime", "true")
-            put("mail.smtp.starttls.enable", "true")
-        }
-
-        val session = Session.getInstance(properties, object : javax.mail.Authenticator() {
-            override fun getPasswordAuthentication(): PasswordAuthentication {
-                return PasswordAuthentication(smtpUser, smtpPassword)
-            }
-        })
-
-        CoroutineScope(Dispatchers.IO).launch {
-            try {
-                val message = MimeMessage(session).apply {
-                    setFrom(InternetAddress(fromEmail))
-                    setRecipients(Message.RecipientType.TO, InternetAddress.parse(toEmail))
-                    subject = emailSubject
-                    setText(emailBody)
-                }
+        val config = SmtpConnection.Config(smtpHost, smtpPort, smtpUser, smtpPassword)
+        SmtpConnection.send(config, ::buildMessage)
+        Log.d("EmailTask", "Email sent successfully.")
+    }
 
-                Transport.send(message)
-                Log.d("EmailTask", "Email sent successfully.")
-            } catch (e: MessagingException) {
-                Log.e("EmailTask", "Failed to send email: ${e.message}", e)
-            }
+    /**
+     * Builds the email for [session] without sending it.
+     */
+    fun buildMessage(session: Session): MimeMessage {
+        return MimeMessage(session).apply {
+            setFrom(InternetAddress(fromEmail))
+            setRecipients(Message.RecipientType.TO, InternetAddress.parse(toEmail))
+            subject = emailSubject
+            setText(emailBody)
         }
     }
-}
\ No newline at end of file
+}
@@ -1,79 +1,79 @@
 package com.enixcoda.smsforward;
 
-import android.os.AsyncTask;
 import android.util.Log;
 
 import androidx.annotation.NonNull;
 
-import java.io.BufferedReader;
-import java.io.DataOutputStream;
+import org.json.JSONException;
+import org.json.JSONObject;
+
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.net.HttpURLConnection;
-import java.net.URL;
+import java.util.List;
+
+import okhttp3.Request;
+import okhttp3.RequestBody;
 
-public class ForwardTaskForRocketChat extends AsyncTask<Void, Void, String> {
+public class ForwardTaskForRocketChat {
 
     private static final String TAG = "RocketChatTask";
     private static final String POST_MESSAGE_ENDPOINT = "/api/v1/chat.postMessage";
+    /** Default Rocket.Chat server limit for a single message. */
+    static final int MAX_TEXT_LENGTH = 5000;
 
     @NonNull private final String baseUrl;
     @NonNull private final String userId;
     @NonNull private final String authToken;
     @NonNull private final String channelName;
+    @NonNull private final String text;
+
+    public ForwardTaskForRocketChat(String baseUrl, String userId, String token, String channel, String senderNumber, String message) {
+        this(baseUrl, userId, token, channel, MessageFormatter.formatMessage(senderNumber, message));
+    }
 
-    public ForwardTaskForRocketChat(String baseUrl, String userId, String token, String channel) {
+    private ForwardTaskForRocketChat(String baseUrl, String userId, String token, String channel, String text) {
         this.baseUrl = baseUrl;
         this.userId = userId;
         this.authToken = token;
         this.channelName = channel;
+        this.text = text;
     }
 
-    @Override
-    protected String doInBackground(Void... voids) {
-        try {
-            // Send a message
-            return sendMessage(authToken);
-        } catch (IOException e) {
-            Log.e(TAG, "Error: " + e.getMessage());
-            return null;
-        }
+    /**
+     * Creates a task that posts several messages as one multi-line Rocket.Chat message.
+     */
+    public static ForwardTaskForRocketChat forBatch(List<OutboxEntry> entries, String baseUrl, String userId, String token, String channel) {
+        return new ForwardTaskForRocketChat(baseUrl, userId, token, channel, MessageFormatter.formatBatch(entries));
     }
 
-    private String sendMessage(String authToken) throws IOException {
-        URL url = new URL(baseUrl + POST_MESSAGE_ENDPOINT);
-        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-        connection.setRequestMethod("POST");
-        connection.setRequestProperty("Content-Type", "application/json");
-        connection.setRequestProperty("X-Auth-Token", authToken);
-        connection.setRequestProperty("X-User-Id", userId);
-        connection.setDoOutput(true);
-
-        String jsonInputString = "{\"channel\": \"" + channelName + "\", \"text\": \"Hello, world!\"}";
-
-        try (DataOutputStream outputStream = new DataOutputStream(connection.getOutputStream())) {
-            outputStream.write(jsonInputString.getBytes());
-        }
-
-        try (BufferedReader bufferedReader = new BufferedReader(new InputStreamReader(connection.getInputStream()))) {
-            StringBuilder response = new StringBuilder();
-            String line;
-            while ((line = bufferedReader.readLine()) != null) {
-                response.append(line);
-            }
-            return response.toString();
-        } finally {
-            connection.disconnect();
-        }
+    /**
+     * Posts the message on the calling thread.
+     *
+     * @return The status code Rocket.Chat answered with.
+     * @throws IOException If the message could not be delivered.
+     */
+    public int send() throws IOException {
+        int statusCode = sendMessage(authToken);
+        Log.d(TAG, "Message sent successfully: " + statusCode);
+        return statusCode;
     }
 
-    @Override
-    protected void onPostExecute(String result) {
-        super.onPostExecute(result);
-        if (result != null) {
-            Log.d(TAG, "Message sent successfully: " + result);
-        } else {
-            Log.e(TAG, "Failed to send message.");
+    private int sendMessage(String authToken) throws IOException {
+        String jsonInputString;
+        try {
+            jsonInputString = new JSONObject()
+                    .put("channel", channelName)
+                    .put("text", text)
+                    .toString();
+        } catch (JSONException e) {
+            throw new IOException(e);
         }
+
+        Request request = new Request.Builder()
+                .url(baseUrl + POST_MESSAGE_ENDPOINT)
+                .header("X-Auth-Token", authToken)
+                .header("X-User-Id", userId)
+                .post(RequestBody.create(jsonInputString, TaskForWeb.JSON))
+                .build();
+        return TaskForWeb.execute(Channel.ROCKET_CHAT, request);
     }
 }
@@ -1,51 +1,59 @@
 package com.enixcoda.smsforward;
 
-import android.net.Uri;
-import android.os.AsyncTask;
-import android.util.Log;
-
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
-import java.net.HttpURLConnection;
-import java.net.URL;
-
-public class ForwardTaskForTelegram extends AsyncTask<Void, Void, Void> {
-    String senderNumber;
-    String message;
+import java.util.List;
+
+import okhttp3.FormBody;
+import okhttp3.HttpUrl;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+
+public class ForwardTaskForTelegram {
+    /** Telegram rejects messages longer than 4096 characters. */
+    static final int MAX_TEXT_LENGTH = 4096;
+
+    String text;
     String chatId;
     String token;
 
     public ForwardTaskForTelegram(String senderNumber, String message, String chatId, String token) {
-        this.senderNumber = senderNumber;
-        this.message = message;
+        this(MessageFormatter.formatMessage(senderNumber, message), chatId, token);
+    }
+
+    private ForwardTaskForTelegram(String text, String chatId, String token) {
+        this.text = text;
         this.chatId = chatId;
         this.token = token;
     }
 
-    @Override
-    protected Void doInBackground(Void... voids) {
-        try {
-            sendViaTelegram(
-                    chatId,
-                    String.format("Message from %s:\n%s", senderNumber, message),
-                    token
-                    );
-        } catch (IOException e) {
-            Log.w(Forwarder.class.toString(), e.toString());
-        }
-        return null;
+    /**
+     * Creates a task that sends several messages as one multi-line Telegram message.
+     */
+    public static ForwardTaskForTelegram forBatch(List<OutboxEntry> entries, String chatId, String token) {
+        return new ForwardTaskForTelegram(MessageFormatter.formatBatch(entries), chatId, token);
+    }
+
+    /**
+     * Sends the message on the calling thread.
+     *
+     * @return The status code Telegram answered with.
+     * @throws IOException If the message could not be delivered.
+     */
+    public int send() throws IOException {
+        return sendViaTelegram(chatId, text, token);
     }
 
-    private void sendViaTelegram(String chatId, String message, String token) throws IOException {
-       TaskForWeb.httpRequest(new Uri.Builder()
+    private int sendViaTelegram(String chatId, String message, String token) throws IOException {
+        HttpUrl url = new HttpUrl.Builder()
                 .scheme("https")
-                .authority("api.telegram.org")
-                .appendPath(String.format("bot%s", token))
-                .appendPath("sendMessage")
-                .appendQueryParameter("chat_id", chatId)
-                .appendQueryParameter("text", message)
-                .build().toString(), message);
+                .host("api.telegram.org")
+                .addPathSegment(String.format("bot%s", token))
+                .addPathSegment("sendMessage")
+                .build();
+        RequestBody body = new FormBody.Builder()
+                .add("chat_id", chatId)
+                .add("text", message)
+                .build();
+        return TaskForWeb.execute(Channel.TELEGRAM, new Request.Builder().url(url).post(body).build());
     }
 }
\ No newline at end of file
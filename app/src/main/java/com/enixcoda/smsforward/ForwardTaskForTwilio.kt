@@ -1,13 +1,9 @@
 package com.enixcoda.smsforward
 
 import android.util.Log
-import okhttp3.Call
-import okhttp3.Callback
 import okhttp3.Credentials
 import okhttp3.FormBody
-import okhttp3.OkHttpClient
 import okhttp3.Request
-import okhttp3.Response
 import java.io.IOException
 
 
@@ -28,11 +24,32 @@ class ForwardTaskForTwilio(
     private val message: String
 ) {
 
-    private val client = OkHttpClient()
+    private val client = SharedHttpClient.get()
 
-    fun sendTwilioSms() {
+    /**
+     * Sends the SMS on the calling thread.
+     *
+     * @return The status code Twilio answered with.
+     * @throws IOException If the request failed or Twilio did not accept the message.
+     */
+    @Throws(IOException::class)
+    fun sendTwilioSms(): Int {
         Log.d("TwilioTask", "Sending SMS using Twilio API")
 
+        client.newCall(buildRequest()).execute().use { response ->
+            TaskForWeb.recordResponse(Channel.TWILIO, response)
+            if (!response.isSuccessful) {
+                throw ForwardException.fromResponse(response, response.body?.string())
+            }
+            Log.d("TwilioTask", "SMS sent successfully: ${response.body?.string()}")
+            return response.code
+        }
+    }
+
+    /**
+     * Builds the API request without sending it.
+     */
+    fun buildRequest(): Request {
         /**
          * Twilio API URL for sending SMS
          *
@@ -49,24 +66,10 @@ class ForwardTaskForTwilio(
             .add("Body", message)
             .build()
 
-        val request = Request.Builder()
+        return Request.Builder()
             .url(url)
             .post(requestBody)
             .addHeader("Authorization", Credentials.basic(accountSid, authToken))
             .build()
-
-        client.newCall(request).enqueue(object : Callback {
-            override fun onFailure(call: Call, e: IOException) {
-                Log.e("TwilioTask", "Failed to send SMS: ${e.message}")
-            }
-
-            override fun onResponse(call: Call, response: Response) {
-                if (response.isSuccessful) {
-                    Log.d("TwilioTask", "SMS sent successfully: ${response.body?.string()}")
-                } else {
-                    Log.e("TwilioTask", "Failed to send SMS: ${response.message}")
-                }
-            }
-        })
     }
 }
\ No newline at end of file
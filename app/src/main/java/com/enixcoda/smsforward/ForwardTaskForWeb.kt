@@ -1,50 +1,126 @@
 package com.enixcoda.smsforward
 
 import android.util.Log
-import okhttp3.MediaType
-import okhttp3.MediaType.Companion.toMediaType
+import okhttp3.Call
+import okhttp3.Callback
 import okhttp3.OkHttpClient
 import okhttp3.Request
-import okhttp3.RequestBody
-import okhttp3.RequestBody.Companion.toRequestBody
-import org.json.JSONObject
+import okhttp3.Response
 import java.io.IOException
+import java.util.concurrent.TimeUnit
 
-class ForwardTaskForWeb(
-    private val senderNumber: String,
-    private val message: String,
-    private val endpoint: String
+/**
+ * A task for posting forwarded messages to a web endpoint as JSON.
+ *
+ * A single message is posted as one object; a batch created with [forBatch] is posted as an array
+ * of such objects. See [WebhookPayload] for the schema.
+ *
+ * @property endpoint The URL the payload is posted to, with its headers and timeout.
+ * @property payload The request body, encoded while it is sent.
+ */
+class ForwardTaskForWeb private constructor(
+    private val endpoint: WebEndpoints.Endpoint,
+    private val payload: WebhookPayload
 ) {
-    private val client: OkHttpClient = OkHttpClient()
-    private val jsonMediaType: MediaType = "application/json; charset=utf-8".toMediaType()
-
-    fun send() {
-        val bodyJson = JSONObject()
-        bodyJson.put("from", senderNumber)
-        bodyJson.put("message", message)
-        val body: RequestBody = bodyJson.toString().toRequestBody(jsonMediaType)
-
-        val request: Request = Request.Builder()
-            .url(endpoint)
-            .post(body)
-            .build()
-        client.newCall(request).enqueue(object : okhttp3.Callback {
-            override fun onFailure(call: okhttp3.Call, e: IOException) {
-                Log.e("WebTask", "Failed to send SMS: ${e.message}", e)
+    /**
+     * @param gzip Whether the endpoint accepts gzip-encoded request bodies.
+     */
+    constructor(entry: OutboxEntry, endpoint: WebEndpoints.Endpoint, gzip: Boolean) :
+            this(endpoint, WebhookPayload.single(entry, gzip))
+
+    /**
+     * @param gzip Whether the endpoint accepts gzip-encoded request bodies.
+     */
+    constructor(entry: OutboxEntry, endpoint: String, gzip: Boolean) :
+            this(entry, WebEndpoints.Endpoint.of(endpoint), gzip)
+
+    /**
+     * Posts the message on the calling thread.
+     *
+     * @return The status code the endpoint answered with.
+     * @throws IOException If the request failed or the endpoint did not respond with a 2xx status.
+     */
+    @Throws(IOException::class)
+    fun send(): Int {
+        return newCall().execute().use(::checkResponse)
+    }
+
+    /**
+     * Posts the message on the shared client's dispatcher and returns at once. [onDone] is called
+     * on a dispatcher thread with the status code and `null` once the endpoint accepted the
+     * message, or with [ForwardException.NO_STATUS] and the reason it did not, like [send] would
+     * throw it.
+     */
+    fun sendAsync(onDone: (Int, IOException?) -> Unit) {
+        newCall().enqueue(object : Callback {
+            override fun onFailure(call: Call, e: IOException) {
+                onDone(ForwardException.NO_STATUS, e)
             }
 
-            override fun onResponse(call: okhttp3.Call, response: okhttp3.Response) {
-                response.use {
-                    if (!response.isSuccessful) {
-                        Log.e("WebTask", "Failed to send SMS: ${response.body?.string()}")
-                    } else {
-                        Log.d(
-                            "WebTask",
-                            "SMS sent successfully. Response: ${response.body?.string()}"
-                        )
-                    }
+            override fun onResponse(call: Call, response: Response) {
+                try {
+                    onDone(response.use(::checkResponse), null)
+                } catch (e: IOException) {
+                    onDone(ForwardException.NO_STATUS, e)
                 }
             }
         })
     }
+
+    private fun newCall(): Call {
+        var client: OkHttpClient = SharedHttpClient.get()
+        if (endpoint.timeoutMs > 0) {
+            // shares the connection pool and dispatcher
+            client = client.newBuilder()
+                .callTimeout(endpoint.timeoutMs, TimeUnit.MILLISECONDS)
+                .connectTimeout(endpoint.timeoutMs, TimeUnit.MILLISECONDS)
+                .readTimeout(endpoint.timeoutMs, TimeUnit.MILLISECONDS)
+                .writeTimeout(endpoint.timeoutMs, TimeUnit.MILLISECONDS)
+                .build()
+        }
+        return client.newCall(buildRequest())
+    }
+
+    @Throws(IOException::class)
+    private fun checkResponse(response: Response): Int {
+        TaskForWeb.recordResponse(Channel.WEB, response)
+        if (!response.isSuccessful) {
+            throw ForwardException.fromResponse(response, response.body?.string())
+        }
+        Log.d("WebTask", "SMS sent to ${endpoint.url.host}. Response: ${response.body?.string()}")
+        return response.code
+    }
+
+    fun buildRequest(): Request {
+        val builder = Request.Builder()
+            .url(endpoint.url)
+            .headers(endpoint.headers)
+            .post(payload)
+        if (payload.isGzipped) {
+            builder.header("Content-Encoding", "gzip")
+        }
+        return builder.build()
+    }
+
+    companion object {
+        /**
+         * Creates a task that posts several messages as one JSON array.
+         *
+         * @param gzip Whether the endpoint accepts gzip-encoded request bodies.
+         */
+        @JvmStatic
+        fun forBatch(entries: List<OutboxEntry>, endpoint: WebEndpoints.Endpoint, gzip: Boolean): ForwardTaskForWeb {
+            return ForwardTaskForWeb(endpoint, WebhookPayload.batch(entries, gzip))
+        }
+
+        /**
+         * Creates a task that posts several messages as one JSON array.
+         *
+         * @param gzip Whether the endpoint accepts gzip-encoded request bodies.
+         */
+        @JvmStatic
+        fun forBatch(entries: List<OutboxEntry>, endpoint: String, gzip: Boolean): ForwardTaskForWeb {
+            return forBatch(entries, WebEndpoints.Endpoint.of(endpoint), gzip)
+        }
+    }
 }
@@ -1,60 +1,27 @@
 package com.enixcoda.smsforward;
 
-import android.telephony.SmsManager;
-import android.util.Log;
+import java.util.List;
 
+/**
+ * Sends outbox entries through their {@link ForwardChannel}.
+ */
 public class Forwarder {
-    static final int MAX_SMS_LENGTH = 120;
-
-    public static void sendSMS(String number, String content) {
-        SmsManager smsManager = SmsManager.getDefault();
-        smsManager.sendTextMessage(number, null, content, null, null);
-    }
-
-    public static void forwardViaSMS(String senderNumber, String forwardContent, String forwardNumber) {
-        String forwardPrefix = String.format("From %s:\n", senderNumber);
-
-        try {
-            if ((forwardPrefix + forwardContent).getBytes().length > MAX_SMS_LENGTH) {
-                // there is a length limit in SMS, if the message length exceeds it, separate the meta data and content
-                sendSMS(forwardNumber, forwardPrefix);
-                sendSMS(forwardNumber, forwardContent);
-            } else {
-                // if it's not too long, combine meta data and content to save money
-                sendSMS(forwardNumber, forwardPrefix + forwardContent);
-            }
-        } catch (RuntimeException e) {
-            Log.w(Forwarder.class.toString(), e.toString());
+    /**
+     * Delivers outbox entries for the same channel on the calling thread, several entries as one
+     * request. Only channels accepted by {@link CoalescingPreferences#isEnabled} get batches.
+     * <p>
+     * The configuration is the one at delivery time, so an entry queued before a setting changed
+     * is sent with the current settings.
+     *
+     * @return The status code the destination answered with, see {@link ForwardChannel#send}.
+     * @throws Exception If the entries could not be delivered.
+     */
+    public static int deliver(Channel channel, List<OutboxEntry> entries, ForwardingConfig config) throws Exception {
+        ForwardChannel forwardChannel = ForwardChannels.get(channel);
+        if (entries.size() == 1) {
+            return forwardChannel.send(entries.get(0), config);
+        } else {
+            return forwardChannel.sendBatch(entries, config);
         }
     }
-
-    public static void forwardViaTelegram(String senderNumber, String message, String targetTelegramID, String telegramToken) {
-        new ForwardTaskForTelegram(senderNumber, message, targetTelegramID, telegramToken).execute();
-    }
-
-    public static void forwardViaRocketChat(String baseUrl, String userId, String token, String channel) {
-        new ForwardTaskForRocketChat(baseUrl, userId, token, channel).execute();
-    }
-
-    public static void forwardViaTwilio(String accountSid, String authToken, String fromNumber, String toNumber, String message) {
-        ForwardTaskForTwilio forwardTaskForTwilio = new ForwardTaskForTwilio(accountSid, authToken, fromNumber, toNumber, message);
-        forwardTaskForTwilio.sendTwilioSms();
-    }
-
-    public static void forwardViaWeb(String senderNumber, String message, String endpoint) {
-        new ForwardTaskForWeb(senderNumber, message, endpoint).send();
-    }
-
-    public static void forwardViaEmail(String senderNumber, String message, EmailPreferences emailPref) {
-        new ForwardTaskForEmail(
-                emailPref.getSmtpHost(),
-                emailPref.getSmtpPort(),
-                emailPref.getSmtpUser(),
-                emailPref.getSmtpPassword(),
-                emailPref.getFromEmail(),
-                emailPref.getToEmail(),
-                "Forwarded SMS message from " + senderNumber,
-                message
-        ).send();
-    }
 }
@@ -0,0 +1,123 @@
+package com.enixcoda.smsforward
+
+import android.content.Context
+import android.content.SharedPreferences
+import android.util.Log
+import androidx.preference.PreferenceManager
+import java.util.Collections
+import java.util.EnumSet
+
+/**
+ * An immutable snapshot of all forwarding settings.
+ *
+ * The snapshot is built once per process and replaced whenever a setting changes, so the receive
+ * and delivery paths read one volatile reference instead of going through [SharedPreferences]
+ * for every message.
+ *
+ * @property routing The compiled routing rules, see [channelsFor].
+ * @property urgency Picks the messages that are forwarded ahead of the others.
+ * @property enabledChannels The channels that are enabled and fully configured, in forwarding order.
+ */
+data class ForwardingConfig(
+    val sms: SMSPreferences,
+    val web: WebPreferences,
+    val telegram: TelegramPreferences,
+    val rocketChat: RocketChatPreferences,
+    val twilio: TwilioPreferences,
+    val email: EmailPreferences,
+    val coalescing: CoalescingPreferences,
+    val duplicates: DuplicatePreferences,
+    val history: HistoryPreferences,
+    val routing: RoutingRules,
+    val urgency: UrgencyClassifier
+) {
+    val enabledChannels: List<Channel> = Collections.unmodifiableList(
+        ForwardChannels.all().filter { it.isConfigured(this) }.map { it.channel }
+    )
+
+    private val enabledSet: Set<Channel> =
+        if (enabledChannels.isEmpty()) EnumSet.noneOf(Channel::class.java) else EnumSet.copyOf(enabledChannels)
+
+    /**
+     * Checks if the given channel is enabled and fully configured.
+     *
+     * @return Boolean indicating if messages should be forwarded via the channel.
+     */
+    fun isEnabled(channel: Channel): Boolean {
+        return channel in enabledSet
+    }
+
+    /**
+     * Picks the channels for one message: the enabled channels named by the first routing rule
+     * that matches, or all of them if no rule does.
+     *
+     * @return The channels in forwarding order, empty if a rule drops the message.
+     */
+    fun channelsFor(senderNumber: String, body: String): List<Channel> {
+        val rule = routing.match(senderNumber, body) ?: return enabledChannels
+        return enabledChannels.filter { it in rule.channels }
+    }
+
+    companion object {
+        private const val TAG = "ForwardingConfig"
+
+        @Volatile
+        private var current: ForwardingConfig? = null
+
+        // SharedPreferences only keeps a weak reference to its listeners.
+        private var listener: SharedPreferences.OnSharedPreferenceChangeListener? = null
+
+        /**
+         * Returns the current snapshot, loading it on first use.
+         *
+         * @param context Any context, only used on first use.
+         */
+        @JvmStatic
+        fun get(context: Context): ForwardingConfig {
+            return current ?: load(context.applicationContext)
+        }
+
+        @Synchronized
+        private fun load(context: Context): ForwardingConfig {
+            current?.let { return it }
+
+            val preferencesLoader = PreferencesLoader(context)
+            val changeListener = SharedPreferences.OnSharedPreferenceChangeListener { _, _ ->
+                current = from(preferencesLoader)
+                Log.d(TAG, "settings changed, forwarding via ${current?.enabledChannels}")
+            }
+            PreferenceManager.getDefaultSharedPreferences(context)
+                .registerOnSharedPreferenceChangeListener(changeListener)
+            listener = changeListener
+
+            val config = from(preferencesLoader)
+            current = config
+            return config
+        }
+
+        private fun from(preferencesLoader: PreferencesLoader): ForwardingConfig {
+            // compiling hundreds of rules is cheap, but most changes are to other settings
+            val rulesSource = preferencesLoader.loadRoutingRules()
+            val routing = current?.routing?.takeIf { it.source == rulesSource }
+                ?: RoutingRules.compile(rulesSource).also { rules ->
+                    rules.errors.forEach { Log.w(TAG, "routing rules: $it") }
+                }
+
+            return ForwardingConfig(
+                sms = preferencesLoader.loadSMSPreferences(),
+                web = preferencesLoader.loadWebPreferences().also { web ->
+                    web.endpoints.errors.forEach { Log.w(TAG, "web endpoints: $it") }
+                },
+                telegram = preferencesLoader.loadTelegramPreferences(),
+                rocketChat = preferencesLoader.loadRocketChatPreferences(),
+                twilio = preferencesLoader.loadTwilioPreferences(),
+                email = preferencesLoader.loadEmailPreferences(),
+                coalescing = preferencesLoader.loadCoalescingPreferences(),
+                duplicates = preferencesLoader.loadDuplicatePreferences(),
+                history = preferencesLoader.loadHistoryPreferences(),
+                routing = routing,
+                urgency = preferencesLoader.loadUrgencyClassifier()
+            )
+        }
+    }
+}
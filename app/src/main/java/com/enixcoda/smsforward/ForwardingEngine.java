@@ -0,0 +1,275 @@
+package com.enixcoda.smsforward;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import java.util.ArrayDeque;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs all forwarding work on one bounded thread pool.
+ * <p>
+ * Each {@link Channel} is a bulkhead: it may only occupy as many threads at a time as its
+ * {@link #getConcurrencyLimit concurrency limit} allows, and further work for it waits in its own
+ * queue. A slow SMTP server therefore queues email forwards without holding threads the webhook or
+ * Telegram forwards need. The limits start at {@link #initialConcurrency(Channel)} and follow the
+ * outcomes the {@link OutboxDrainer} records, up to {@link #maxConcurrency(Channel)}. The pool is
+ * sized to the sum of the maximums, so every channel can always reach its limit.
+ * <p>
+ * Urgent work has its own queue per channel, which is always served first, and
+ * {@link #URGENT_RESERVED_SLOTS} threads per channel that only urgent work may use. An urgent
+ * forward therefore starts as soon as it is submitted, however deep the channel's queue is.
+ * <p>
+ * Broadcast handling runs on a separate single thread through {@link #receive(Runnable)}, keeping
+ * broadcasts in arrival order and off the main thread. Taking a broadcast in runs on another one
+ * through {@link #intake(Runnable)}, so it does not wait for the broadcasts being handled.
+ * <p>
+ * Every thread exits after {@link #IDLE_THREAD_TIMEOUT_SECONDS} without work and is started again
+ * by the next task, so an idle process holds no threads when Android kills it, which it does
+ * without notice. Work that was running then is not lost: the outbox keeps its entries claimed,
+ * and the next process releases them, see {@link OutboxDatabase#releaseClaims()}.
+ */
+public class ForwardingEngine {
+    private static final String TAG = "ForwardingEngine";
+
+    private static final long IDLE_THREAD_TIMEOUT_SECONDS = 30;
+    /** Threads per channel held back for urgent work, on top of its concurrency limit. */
+    static final int URGENT_RESERVED_SLOTS = 1;
+
+    private static volatile ForwardingEngine instance;
+
+    private enum State {RUNNING, SHUTTING_DOWN, TERMINATED}
+
+    private final ThreadPoolExecutor pool;
+    private final ExecutorService intakeExecutor;
+    private final ExecutorService receiveExecutor;
+    private final Map<Channel, AdaptiveLimit> limits = new EnumMap<>(Channel.class);
+    /** Work waiting for a free slot, per channel. Guarded by {@code this}. */
+    private final Map<Channel, ArrayDeque<Runnable>> waiting = new EnumMap<>(Channel.class);
+    /** Urgent work waiting for a free slot, per channel. Guarded by {@code this}. */
+    private final Map<Channel, ArrayDeque<Runnable>> waitingUrgent = new EnumMap<>(Channel.class);
+    /** Work currently running, per channel. Guarded by {@code this}. */
+    private final Map<Channel, Integer> running = new EnumMap<>(Channel.class);
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private volatile State state = State.RUNNING;
+
+    public static ForwardingEngine getInstance() {
+        if (instance == null) {
+            synchronized (ForwardingEngine.class) {
+                if (instance == null) {
+                    instance = new ForwardingEngine();
+                }
+            }
+        }
+        return instance;
+    }
+
+    private ForwardingEngine() {
+        int threads = 0;
+        for (Channel channel : Channel.values()) {
+            limits.put(channel, new AdaptiveLimit(initialConcurrency(channel), 1, maxConcurrency(channel), false));
+            threads += maxConcurrency(channel) + URGENT_RESERVED_SLOTS;
+            waiting.put(channel, new ArrayDeque<>());
+            waitingUrgent.put(channel, new ArrayDeque<>());
+            running.put(channel, 0);
+        }
+
+        AtomicInteger threadCount = new AtomicInteger();
+        pool = new ThreadPoolExecutor(threads, threads,
+                IDLE_THREAD_TIMEOUT_SECONDS, TimeUnit.SECONDS,
+                // Never holds more than the pool size, channel queues absorb the rest.
+                new LinkedBlockingQueue<>(),
+                runnable -> new Thread(runnable, "Forward-" + threadCount.incrementAndGet()));
+        pool.allowCoreThreadTimeOut(true);
+        intakeExecutor = singleThread("SMSIntake");
+        receiveExecutor = singleThread("SMSReceive");
+    }
+
+    /**
+     * @return An executor running tasks one after another, in order, on a thread that exits when idle.
+     */
+    private static ExecutorService singleThread(String name) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1,
+                IDLE_THREAD_TIMEOUT_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(),
+                runnable -> new Thread(runnable, name));
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * @return The number of forwards a channel may run at the same time before anything is known
+     * about its destination.
+     */
+    static int initialConcurrency(@NonNull Channel channel) {
+        int cores = Runtime.getRuntime().availableProcessors();
+        switch (channel) {
+            case SMS:
+                // SmsManager calls are cheap and the radio sends one at a time anyway
+                return 1;
+            case EMAIL:
+                // all email goes over the single SmtpConnection
+                return 1;
+            case WEB:
+                return Math.max(4, cores);
+            default:
+                return Math.max(2, cores / 2);
+        }
+    }
+
+    /**
+     * @return The number of forwards a channel may run at the same time with a destination that
+     * keeps up. The threads mostly wait for the network, so this is not tied to the cores.
+     */
+    static int maxConcurrency(@NonNull Channel channel) {
+        switch (channel) {
+            case SMS:
+            case EMAIL:
+                return initialConcurrency(channel);
+            default:
+                return 4 * initialConcurrency(channel);
+        }
+    }
+
+    /**
+     * @return The limit on the forwards {@code channel} runs at the same time, for recording how
+     * they went.
+     */
+    @NonNull
+    public AdaptiveLimit getConcurrencyLimit(@NonNull Channel channel) {
+        return limits.get(channel);
+    }
+
+    /**
+     * @return The forwards of {@code channel} running right now, urgent ones included.
+     */
+    public synchronized int getRunningCount(@NonNull Channel channel) {
+        return running.get(channel);
+    }
+
+    /**
+     * Runs the short work of taking a broadcast in, such as queueing it for {@link #receive}, in
+     * arrival order on the intake thread. The main thread must not wait for disk, and the receive
+     * thread may be busy for a while.
+     */
+    public void intake(@NonNull Runnable task) {
+        intakeExecutor.execute(task);
+    }
+
+    /**
+     * Runs broadcast handling in arrival order on the receive thread.
+     */
+    public void receive(@NonNull Runnable task) {
+        receiveExecutor.execute(task);
+    }
+
+    /**
+     * Schedules {@code task} within the limits of {@code channel}.
+     *
+     * @return {@code false} if the engine is shutting down and the task was not accepted.
+     */
+    public boolean submit(@NonNull Channel channel, @NonNull Runnable task) {
+        return submit(channel, task, false);
+    }
+
+    /**
+     * Schedules {@code task} within the limits of {@code channel}, ahead of all work that is not
+     * urgent if {@code urgent} is set.
+     *
+     * @return {@code false} if the engine is shutting down and the task was not accepted.
+     */
+    public boolean submit(@NonNull Channel channel, @NonNull Runnable task, boolean urgent) {
+        synchronized (this) {
+            if (state != State.RUNNING) return false;
+            inFlight.incrementAndGet();
+            (urgent ? waitingUrgent : waiting).get(channel).add(task);
+            startNext(channel);
+        }
+        return true;
+    }
+
+    /**
+     * @return The number of tasks accepted by {@link #submit} that have not completed yet.
+     */
+    public int getInFlightCount() {
+        return inFlight.get();
+    }
+
+    /**
+     * Stops accepting work and waits up to {@code timeoutMs} for accepted work to finish.
+     * Work that is still queued afterwards is dropped; its outbox rows are released and
+     * delivered by the next process.
+     * <p>
+     * Android never calls this, it kills the process instead. It is for hosts that end on their
+     * own, such as the load generator.
+     */
+    public void shutdown(long timeoutMs) {
+        synchronized (this) {
+            if (state != State.RUNNING) return;
+            state = State.SHUTTING_DOWN;
+        }
+
+        intakeExecutor.shutdown();
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        try {
+            // lets the intake hand its last broadcasts to the receive thread before that stops
+            intakeExecutor.awaitTermination(timeoutMs, TimeUnit.MILLISECONDS);
+            receiveExecutor.shutdown();
+            receiveExecutor.awaitTermination(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+            synchronized (this) {
+                while (inFlight.get() > 0 && System.currentTimeMillis() < deadline) {
+                    wait(Math.max(1, deadline - System.currentTimeMillis()));
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        synchronized (this) {
+            // startOne checks the pool under the same lock
+            pool.shutdownNow();
+            state = State.TERMINATED;
+        }
+        Log.i(TAG, "shutdown: " + inFlight.get() + " forwards left unfinished");
+    }
+
+    private void startNext(Channel channel) {
+        // the limit may have grown by more than the one slot that just freed up
+        while (startOne(channel)) {
+        }
+    }
+
+    private boolean startOne(Channel channel) {
+        int active = running.get(channel);
+        int limit = limits.get(channel).get();
+        if (active >= limit + URGENT_RESERVED_SLOTS || pool.isShutdown()) return false;
+
+        Runnable urgent = waitingUrgent.get(channel).poll();
+        Runnable task = urgent != null ? urgent : active < limit ? waiting.get(channel).poll() : null;
+        if (task == null) return false;
+
+        running.put(channel, active + 1);
+        pool.execute(() -> {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Forward via " + channel + " crashed", e);
+            } finally {
+                synchronized (ForwardingEngine.this) {
+                    running.put(channel, running.get(channel) - 1);
+                    inFlight.decrementAndGet();
+                    startNext(channel);
+                    ForwardingEngine.this.notifyAll();
+                }
+            }
+        });
+        return true;
+    }
+}
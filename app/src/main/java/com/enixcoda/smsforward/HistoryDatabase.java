@@ -0,0 +1,403 @@
+package com.enixcoda.smsforward;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Record of what was forwarded where, and with what result.
+ * <p>
+ * One row per message and one per delivery attempt on a channel. A message notes when every
+ * channel was done with it and on how many it was not delivered. Messages are indexed by sender
+ * and time, attempts by status, and message bodies have a full-text index. Pages are read with
+ * keyset queries on the attempt id, so a page costs the same however many rows there are.
+ * <p>
+ * Attempts are recorded from delivery threads but written on a single background thread, all
+ * attempts queued since the last write in one transaction. The same thread prunes old rows by age
+ * and count.
+ */
+public class HistoryDatabase extends SQLiteOpenHelper {
+    private static final String TAG = "HistoryDatabase";
+    private static final String DATABASE_NAME = "history.db";
+    private static final int DATABASE_VERSION = 2;
+
+    static final int STATUS_DELIVERED = 0;
+    /** Failed, to be retried. */
+    static final int STATUS_FAILED = 1;
+    /** Failed for the last time. */
+    static final int STATUS_GIVEN_UP = 2;
+    /** Not attempted, the channel was disabled in the meantime. */
+    static final int STATUS_DROPPED = 3;
+
+    private static final long PRUNE_INTERVAL_MINUTES = 60;
+    /** Rows deleted per transaction when pruning, so recording is never blocked for long. */
+    private static final int PRUNE_CHUNK = 1000;
+    private static final int MAX_ERROR_LENGTH = 500;
+
+    /**
+     * One attempt, as listed.
+     */
+    public static final class Row {
+        /** Attempt id, pass the last one to {@link #page} for the next page. */
+        final long id;
+        @NonNull final Channel channel;
+        final int status;
+        final long attemptedAt;
+        final long latencyMs;
+        /** HTTP status code, or {@link ForwardException#NO_STATUS}. */
+        final int responseCode;
+        @Nullable final String error;
+        @NonNull final String senderNumber;
+        @NonNull final String message;
+        final long receivedAt;
+        /** When every channel was done with the message, or {@code 0} while some still try. */
+        final long doneAt;
+        /** On how many channels the message was given up or dropped, once {@link #doneAt} is set. */
+        final int undelivered;
+
+        Row(long id, @NonNull Channel channel, int status, long attemptedAt, long latencyMs, int responseCode,
+            @Nullable String error, @NonNull String senderNumber, @NonNull String message, long receivedAt,
+            long doneAt, int undelivered) {
+            this.id = id;
+            this.channel = channel;
+            this.status = status;
+            this.attemptedAt = attemptedAt;
+            this.latencyMs = latencyMs;
+            this.responseCode = responseCode;
+            this.error = error;
+            this.senderNumber = senderNumber;
+            this.message = message;
+            this.receivedAt = receivedAt;
+            this.doneAt = doneAt;
+            this.undelivered = undelivered;
+        }
+    }
+
+    private static final class Attempt {
+        final OutboxEntry entry;
+        final int status;
+        final long attemptedAt;
+        final long latencyMs;
+        final int responseCode;
+        final String error;
+
+        Attempt(OutboxEntry entry, int status, long attemptedAt, long latencyMs, int responseCode, String error) {
+            this.entry = entry;
+            this.status = status;
+            this.attemptedAt = attemptedAt;
+            this.latencyMs = latencyMs;
+            this.responseCode = responseCode;
+            this.error = error;
+        }
+    }
+
+    private static final class Done {
+        final OutboxEntry entry;
+        final long doneAt;
+        final int undelivered;
+
+        Done(OutboxEntry entry, long doneAt, int undelivered) {
+            this.entry = entry;
+            this.doneAt = doneAt;
+            this.undelivered = undelivered;
+        }
+    }
+
+    private static volatile HistoryDatabase instance;
+
+    private final Context context;
+    private final ConcurrentLinkedQueue<Attempt> pending = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<Done> pendingDone = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean writeScheduled = new AtomicBoolean();
+    private final ScheduledExecutorService writer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, TAG);
+        thread.setPriority(Thread.NORM_PRIORITY - 1);
+        return thread;
+    });
+
+    public static HistoryDatabase getInstance(Context context) {
+        if (instance == null) {
+            synchronized (HistoryDatabase.class) {
+                if (instance == null) {
+                    instance = new HistoryDatabase(context.getApplicationContext());
+                }
+            }
+        }
+        return instance;
+    }
+
+    private HistoryDatabase(Context context) {
+        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        this.context = context;
+        // WAL keeps the history screen from blocking on writes, and the other way round.
+        setWriteAheadLoggingEnabled(true);
+        writer.scheduleWithFixedDelay(this::prune, 1, PRUNE_INTERVAL_MINUTES, TimeUnit.MINUTES);
+    }
+
+    @Override
+    public void onConfigure(SQLiteDatabase db) {
+        db.setForeignKeyConstraintsEnabled(true);
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE messages ("
+                + "_id INTEGER PRIMARY KEY, "
+                + "message_id INTEGER NOT NULL UNIQUE, "
+                + "sender TEXT NOT NULL, "
+                + "body TEXT NOT NULL, "
+                + "received_at INTEGER NOT NULL, "
+                + "done_at INTEGER NOT NULL DEFAULT 0, "
+                + "undelivered INTEGER NOT NULL DEFAULT 0)");
+        db.execSQL("CREATE INDEX messages_sender ON messages (sender, received_at)");
+        db.execSQL("CREATE INDEX messages_received_at ON messages (received_at)");
+
+        db.execSQL("CREATE TABLE attempts ("
+                + "_id INTEGER PRIMARY KEY, "
+                + "message INTEGER NOT NULL REFERENCES messages (_id) ON DELETE CASCADE, "
+                + "channel TEXT NOT NULL, "
+                + "status INTEGER NOT NULL, "
+                + "attempted_at INTEGER NOT NULL, "
+                + "latency_ms INTEGER NOT NULL, "
+                + "response_code INTEGER NOT NULL, "
+                + "error TEXT)");
+        db.execSQL("CREATE INDEX attempts_message ON attempts (message)");
+        db.execSQL("CREATE INDEX attempts_status ON attempts (status, _id)");
+
+        // External content, the bodies are stored once in messages. FTS4 is in every Android
+        // version, FTS5 is not.
+        db.execSQL("CREATE VIRTUAL TABLE messages_fts USING fts4(content=\"messages\", sender, body)");
+        db.execSQL("CREATE TRIGGER messages_fts_insert AFTER INSERT ON messages BEGIN "
+                + "INSERT INTO messages_fts (docid, sender, body) VALUES (new._id, new.sender, new.body); END");
+        // before, the index needs the old content to find the terms to remove
+        db.execSQL("CREATE TRIGGER messages_fts_delete BEFORE DELETE ON messages BEGIN "
+                + "DELETE FROM messages_fts WHERE docid = old._id; END");
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        // the history is only a record, starting over is cheaper than migrating it
+        db.execSQL("DROP TABLE IF EXISTS messages_fts");
+        db.execSQL("DROP TABLE IF EXISTS attempts");
+        // takes its indexes and triggers along
+        db.execSQL("DROP TABLE IF EXISTS messages");
+        onCreate(db);
+    }
+
+    /**
+     * Records one attempt to deliver {@code entries}, which were sent as one request.
+     *
+     * @param latencyMs    How long the attempt took.
+     * @param responseCode HTTP status code, or {@link ForwardException#NO_STATUS}.
+     * @param error        What went wrong, {@code null} if nothing did.
+     */
+    public void record(@NonNull List<OutboxEntry> entries, int status, long latencyMs, int responseCode, @Nullable Throwable error) {
+        long now = System.currentTimeMillis();
+        String errorText = null;
+        if (error != null) {
+            errorText = error.toString();
+            if (errorText.length() > MAX_ERROR_LENGTH) errorText = errorText.substring(0, MAX_ERROR_LENGTH);
+        }
+        for (OutboxEntry entry : entries) {
+            pending.add(new Attempt(entry, status, now, latencyMs, responseCode, errorText));
+        }
+        scheduleWrite();
+    }
+
+    /**
+     * Records that every channel is done with the message of {@code entry}.
+     *
+     * @param undelivered On how many channels the message was given up or dropped.
+     */
+    public void recordDone(@NonNull OutboxEntry entry, long doneAt, int undelivered) {
+        pendingDone.add(new Done(entry, doneAt, undelivered));
+        scheduleWrite();
+    }
+
+    private void scheduleWrite() {
+        if (writeScheduled.compareAndSet(false, true)) {
+            writer.execute(this::write);
+        }
+    }
+
+    private void write() {
+        writeScheduled.set(false);
+        if (pending.isEmpty() && pendingDone.isEmpty()) return;
+
+        try {
+            writePending();
+        } catch (RuntimeException e) {
+            // the disk may be full, the history is not worth failing deliveries for
+            Log.w(TAG, "write: " + e);
+        }
+    }
+
+    private void writePending() {
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try (SQLiteStatement insertMessage = db.compileStatement(
+                "INSERT OR IGNORE INTO messages (message_id, sender, body, received_at) VALUES (?, ?, ?, ?)");
+             SQLiteStatement findMessage = db.compileStatement("SELECT _id FROM messages WHERE message_id = ?");
+             SQLiteStatement insertAttempt = db.compileStatement("INSERT INTO attempts "
+                     + "(message, channel, status, attempted_at, latency_ms, response_code, error) VALUES (?, ?, ?, ?, ?, ?, ?)");
+             SQLiteStatement updateDone = db.compileStatement(
+                     "UPDATE messages SET done_at = ?, undelivered = ? WHERE _id = ?")) {
+            Attempt attempt;
+            while ((attempt = pending.poll()) != null) {
+                long messageRow = messageRow(attempt.entry, insertMessage, findMessage);
+
+                insertAttempt.bindLong(1, messageRow);
+                insertAttempt.bindString(2, attempt.entry.channel.name());
+                insertAttempt.bindLong(3, attempt.status);
+                insertAttempt.bindLong(4, attempt.attemptedAt);
+                insertAttempt.bindLong(5, attempt.latencyMs);
+                insertAttempt.bindLong(6, attempt.responseCode);
+                if (attempt.error != null) {
+                    insertAttempt.bindString(7, attempt.error);
+                } else {
+                    insertAttempt.bindNull(7);
+                }
+                insertAttempt.executeInsert();
+            }
+
+            // may be written before the attempts of its message, which are queued separately
+            Done done;
+            while ((done = pendingDone.poll()) != null) {
+                updateDone.bindLong(1, done.doneAt);
+                updateDone.bindLong(2, done.undelivered);
+                updateDone.bindLong(3, messageRow(done.entry, insertMessage, findMessage));
+                updateDone.executeUpdateDelete();
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * @return The row of the message of {@code entry}, inserted if it is not recorded yet.
+     */
+    private static long messageRow(OutboxEntry entry, SQLiteStatement insertMessage, SQLiteStatement findMessage) {
+        long messageId = entry.getMessageId();
+        insertMessage.bindLong(1, messageId);
+        insertMessage.bindString(2, entry.senderNumber);
+        insertMessage.bindString(3, entry.message);
+        insertMessage.bindLong(4, entry.receivedAt);
+        long messageRow = insertMessage.executeInsert();
+        if (messageRow < 0) {
+            // recorded by an earlier attempt or another channel
+            findMessage.bindLong(1, messageId);
+            messageRow = findMessage.simpleQueryForLong();
+        }
+        return messageRow;
+    }
+
+    /**
+     * Reads one page of attempts, newest first.
+     *
+     * @param search       Words the message or sender must contain, or {@code null} for all
+     *                     attempts.
+     * @param failuresOnly Whether to leave out delivered attempts.
+     * @param afterId      The {@link Row#id} of the last row of the previous page, or
+     *                     {@link Long#MAX_VALUE} for the first page.
+     */
+    @NonNull
+    public List<Row> page(@Nullable String search, boolean failuresOnly, long afterId, int limit) {
+        String match = search != null ? toMatchQuery(search) : null;
+        StringBuilder sql = new StringBuilder("SELECT a._id, a.channel, a.status, a.attempted_at, a.latency_ms, "
+                + "a.response_code, a.error, m.sender, m.body, m.received_at, m.done_at, m.undelivered "
+                + "FROM attempts a JOIN messages m ON m._id = a.message WHERE a._id < ?");
+        List<String> args = new ArrayList<>();
+        args.add(String.valueOf(afterId));
+        if (failuresOnly) {
+            sql.append(" AND a.status IN (" + STATUS_FAILED + ", " + STATUS_GIVEN_UP + ", " + STATUS_DROPPED + ")");
+        }
+        if (match != null) {
+            sql.append(" AND a.message IN (SELECT docid FROM messages_fts WHERE messages_fts MATCH ?)");
+            args.add(match);
+        }
+        sql.append(" ORDER BY a._id DESC LIMIT ").append(limit);
+
+        List<Row> rows = new ArrayList<>();
+        try (Cursor cursor = getReadableDatabase().rawQuery(sql.toString(), args.toArray(new String[0]))) {
+            while (cursor.moveToNext()) {
+                Channel channel;
+                try {
+                    channel = Channel.valueOf(cursor.getString(1));
+                } catch (IllegalArgumentException e) {
+                    // recorded by a version with a channel that no longer exists
+                    continue;
+                }
+                rows.add(new Row(cursor.getLong(0), channel, cursor.getInt(2), cursor.getLong(3), cursor.getLong(4),
+                        cursor.getInt(5), cursor.isNull(6) ? null : cursor.getString(6), cursor.getString(7),
+                        cursor.getString(8), cursor.getLong(9), cursor.getLong(10), cursor.getInt(11)));
+            }
+        }
+        return rows;
+    }
+
+    /**
+     * Turns what the user typed into an FTS query: every word as a quoted prefix, so operators
+     * and quotes in the input are taken literally. The star goes inside the quotes, FTS4 ignores
+     * it after them.
+     *
+     * @return The query, or {@code null} if there are no words.
+     */
+    @Nullable
+    static String toMatchQuery(@NonNull String search) {
+        StringBuilder query = new StringBuilder();
+        for (String word : search.trim().split("\\s+")) {
+            String literal = word.replace("\"", "");
+            if (literal.isEmpty()) continue;
+            if (query.length() > 0) query.append(' ');
+            query.append('"').append(literal).append("*\"");
+        }
+        return query.length() > 0 ? query.toString() : null;
+    }
+
+    private void prune() {
+        HistoryPreferences preferences = ForwardingConfig.get(context).getHistory();
+        try {
+            SQLiteDatabase db = getWritableDatabase();
+            long cutoff = System.currentTimeMillis() - preferences.getMaxAgeMs();
+            int removed = 0;
+            int deleted;
+            do {
+                deleted = db.delete("messages", "_id IN (SELECT _id FROM messages WHERE received_at < ? LIMIT "
+                        + PRUNE_CHUNK + ")", new String[]{String.valueOf(cutoff)});
+                removed += deleted;
+            } while (deleted == PRUNE_CHUNK);
+
+            long excess = DatabaseUtils.queryNumEntries(db, "messages") - preferences.getMaxMessages();
+            while (excess > 0) {
+                deleted = db.delete("messages", "_id IN (SELECT _id FROM messages ORDER BY _id LIMIT "
+                        + Math.min(excess, PRUNE_CHUNK) + ")", null);
+                if (deleted == 0) break;
+                removed += deleted;
+                excess -= deleted;
+            }
+
+            if (removed > 0) {
+                Log.i(TAG, "prune: removed " + removed + " messages");
+            }
+        } catch (RuntimeException e) {
+            // the disk may be full, try again next time
+            Log.w(TAG, "prune: " + e);
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package com.enixcoda.smsforward;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * Loads rows page by page in the background for a list that grows as it is scrolled, such as the
+ * history screen's.
+ * <p>
+ * Every method is called on the main thread, and the rows and state only change there. A page
+ * that arrives after {@link #reset} belongs to an older query and is ignored. A page that fails
+ * to load stops the paging with {@link #getError()} set, until the next {@link #reset}; scrolling
+ * does not retry it over and over.
+ *
+ * @param <T> The rows.
+ */
+final class HistoryPager<T> {
+    private static final String TAG = "HistoryPager";
+
+    /**
+     * Reads one page, in the background.
+     */
+    interface Source<T> {
+        /**
+         * @param after The last row loaded, or {@code null} for the first page.
+         * @return Up to {@code limit} rows following {@code after}.
+         */
+        @NonNull
+        List<T> page(@Nullable T after, int limit) throws Exception;
+    }
+
+    private final Executor background;
+    private final Executor main;
+    private final int pageSize;
+    /** Called on the main thread whenever the rows or the state changed. */
+    private final Runnable onChanged;
+    private final List<T> rows = new ArrayList<>();
+
+    @Nullable
+    private Source<T> source;
+    /** Incremented by {@link #reset}, so pages of an older query are ignored. */
+    private int generation;
+    private boolean loading;
+    private boolean exhausted;
+    @Nullable
+    private Exception error;
+
+    /**
+     * @param background Where pages are read.
+     * @param main       Where loaded pages are handed back, the main thread.
+     */
+    HistoryPager(@NonNull Executor background, @NonNull Executor main, int pageSize, @NonNull Runnable onChanged) {
+        this.background = background;
+        this.main = main;
+        this.pageSize = pageSize;
+        this.onChanged = onChanged;
+    }
+
+    /**
+     * Drops the rows and starts over with {@code source}, or stops loading with {@code null}.
+     */
+    void reset(@Nullable Source<T> source) {
+        this.source = source;
+        generation++;
+        rows.clear();
+        loading = false;
+        exhausted = false;
+        error = null;
+        onChanged.run();
+        loadNextPage();
+    }
+
+    /**
+     * Reads the next page, unless one is being read already, or there are no more rows, or the
+     * last page failed.
+     */
+    void loadNextPage() {
+        final Source<T> current = source;
+        if (current == null || loading || exhausted || error != null) return;
+        loading = true;
+
+        final int requested = generation;
+        final T after = rows.isEmpty() ? null : rows.get(rows.size() - 1);
+        background.execute(() -> {
+            List<T> page;
+            try {
+                page = current.page(after, pageSize);
+            } catch (Exception e) {
+                // a malformed search, a locked or corrupt database
+                Log.w(TAG, "loadNextPage: cannot load a page", e);
+                main.execute(() -> {
+                    if (requested != generation) return;
+                    loading = false;
+                    error = e;
+                    onChanged.run();
+                });
+                return;
+            }
+            main.execute(() -> {
+                if (requested != generation) return;
+                loading = false;
+                exhausted = page.size() < pageSize;
+                rows.addAll(page);
+                onChanged.run();
+            });
+        });
+    }
+
+    /**
+     * @return The rows loaded so far.
+     */
+    @NonNull
+    List<T> getRows() {
+        return Collections.unmodifiableList(rows);
+    }
+
+    boolean isLoading() {
+        return loading;
+    }
+
+    /**
+     * @return Whether every row was loaded.
+     */
+    boolean isExhausted() {
+        return exhausted;
+    }
+
+    /**
+     * @return Why the last page failed to load, or {@code null} if it did not.
+     */
+    @Nullable
+    Exception getError() {
+        return error;
+    }
+}
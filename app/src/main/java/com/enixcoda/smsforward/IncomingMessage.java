@@ -0,0 +1,24 @@
+package com.enixcoda.smsforward;
+
+import androidx.annotation.NonNull;
+
+/**
+ * A complete received SMS, with the parts of a concatenated message already joined.
+ */
+public class IncomingMessage {
+    /** SIM slot of a message whose broadcast did not say which SIM received it. */
+    static final int UNKNOWN_SIM_SLOT = -1;
+
+    @NonNull final String senderNumber;
+    @NonNull final String body;
+    final long timestampMillis;
+    /** Zero-based SIM slot that received the message, or {@link #UNKNOWN_SIM_SLOT}. */
+    final int simSlot;
+
+    IncomingMessage(@NonNull String senderNumber, @NonNull String body, long timestampMillis, int simSlot) {
+        this.senderNumber = senderNumber;
+        this.body = body;
+        this.timestampMillis = timestampMillis;
+        this.simSlot = simSlot;
+    }
+}
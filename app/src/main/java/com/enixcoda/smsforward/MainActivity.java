@@ -1,21 +1,49 @@
 package com.enixcoda.smsforward;
 
 import android.Manifest;
+import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import android.provider.Telephony;
+import android.text.Editable;
+import android.text.TextWatcher;
+import android.text.format.DateUtils;
 import android.util.Log;
+import android.view.LayoutInflater;
+import android.view.Menu;
+import android.view.MenuItem;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.AbsListView;
+import android.widget.BaseAdapter;
+import android.widget.CheckBox;
+import android.widget.EditText;
+import android.widget.ListView;
+import android.widget.TextView;
 
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import androidx.annotation.StringRes;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.core.app.ActivityCompat;
 import androidx.core.content.ContextCompat;
+import androidx.fragment.app.Fragment;
 import androidx.preference.EditTextPreference;
 import androidx.preference.PreferenceFragmentCompat;
 import androidx.preference.PreferenceManager;
+import androidx.preference.SwitchPreferenceCompat;
+
+import org.json.JSONException;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class MainActivity extends AppCompatActivity {
 
@@ -36,9 +64,39 @@ public class MainActivity extends AppCompatActivity {
 
         checkDefaultSmsApp();
 
+        // Resume forwards left in the outbox by a previous process
+        OutboxDrainer.getInstance(this).requestDrain();
+
         //testForwarding();
     }
 
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        getMenuInflater().inflate(R.menu.main, menu);
+        return true;
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(@NonNull MenuItem item) {
+        if (item.getItemId() == R.id.action_history) {
+            getSupportFragmentManager()
+                    .beginTransaction()
+                    .replace(R.id.settings, new HistoryFragment())
+                    .addToBackStack(null)
+                    .commit();
+            return true;
+        }
+        if (item.getItemId() == R.id.action_metrics) {
+            getSupportFragmentManager()
+                    .beginTransaction()
+                    .replace(R.id.settings, new MetricsFragment())
+                    .addToBackStack(null)
+                    .commit();
+            return true;
+        }
+        return super.onOptionsItemSelected(item);
+    }
+
     /**
      * Test forwarding SMS to the target destination.
      */
@@ -49,11 +107,9 @@ public class MainActivity extends AppCompatActivity {
             return;
         }
 
-        PreferencesLoader preferencesLoader = new PreferencesLoader(this);
-        EmailPreferences emailPreferences = preferencesLoader.loadEmailPreferences();
-
-        if (emailPreferences.isValid()) {
-            Forwarder.forwardViaEmail("1234567890", "Test message", emailPreferences);
+        if (ForwardingConfig.get(this).isEnabled(Channel.EMAIL)) {
+            OutboxDrainer.getInstance(this).enqueue(Collections.singletonList(
+                    OutboxEntry.create(Channel.EMAIL, "1234567890", "Test message", System.currentTimeMillis())));
         }
     }
 
@@ -124,6 +180,46 @@ public class MainActivity extends AppCompatActivity {
             updateValues(R.string.key_smtp_user, R.string.key_smtp_user_summary);
             updateValues(R.string.key_from_email, R.string.key_from_email_summary);
             updateValues(R.string.key_to_email, R.string.key_to_email_summary);
+            updateValues(R.string.key_email_per_minute, R.string.key_email_per_minute_summary);
+            updateValues(R.string.key_email_burst, R.string.key_email_burst_summary);
+
+            // Preview batching values
+            updateValues(R.string.key_coalesce_window, R.string.key_coalesce_window_summary);
+
+            // Preview duplicate suppression values
+            updateValues(R.string.key_dedup_window, R.string.key_dedup_window_summary);
+
+            // Preview routing rules, or the first one that could not be parsed
+            updateRoutingSummary();
+
+            // Preview the number of webhooks, or the first one that could not be parsed
+            updateWebEndpointsSummary();
+
+            // Preview urgent message values
+            updateValues(R.string.key_urgent_senders, R.string.key_urgent_senders_summary);
+            updateValues(R.string.key_urgent_keywords, R.string.key_urgent_keywords_summary);
+
+            // Preview delivery history values
+            updateValues(R.string.key_history_days, R.string.key_history_days_summary);
+            updateValues(R.string.key_history_max_messages, R.string.key_history_max_messages_summary);
+
+            // Prepare channels as they are turned on
+            warmUpWhenEnabled(R.string.key_enable_telegram);
+            warmUpWhenEnabled(R.string.key_enable_rocket_chat);
+            warmUpWhenEnabled(R.string.key_enable_twilio);
+            warmUpWhenEnabled(R.string.key_enable_web);
+            warmUpWhenEnabled(R.string.key_enable_email);
+        }
+
+        private void warmUpWhenEnabled(@StringRes int prefKeyRes) {
+            final SwitchPreferenceCompat switchPreference = (SwitchPreferenceCompat) findPreference(getString(prefKeyRes));
+            switchPreference.setOnPreferenceChangeListener((preference, enabled) -> {
+                if ((Boolean) enabled) {
+                    // the value is saved after this returns, warm up with the settings that include it
+                    getListView().post(() -> ChannelWarmUp.start(preference.getContext()));
+                }
+                return true;
+            });
         }
 
         /**
@@ -152,5 +248,337 @@ public class MainActivity extends AppCompatActivity {
                 return true;
             });
         }
+
+        private void updateRoutingSummary() {
+            final EditTextPreference editTextPreference = (EditTextPreference) findPreference(getString(R.string.key_routing_rules));
+            editTextPreference.setSummary(summarizeRoutingRules(editTextPreference.getText()));
+            editTextPreference.setOnPreferenceChangeListener((preference, o) -> {
+                editTextPreference.setSummary(summarizeRoutingRules(o.toString()));
+                return true;
+            });
+        }
+
+        private void updateWebEndpointsSummary() {
+            final EditTextPreference editTextPreference = (EditTextPreference) findPreference(getString(R.string.key_target_web));
+            editTextPreference.setSummary(summarizeWebEndpoints(editTextPreference.getText()));
+            editTextPreference.setOnPreferenceChangeListener((preference, o) -> {
+                editTextPreference.setSummary(summarizeWebEndpoints(o.toString()));
+                return true;
+            });
+        }
+
+        private String summarizeWebEndpoints(String source) {
+            WebEndpoints endpoints = WebEndpoints.parse(source != null ? source : "");
+            if (!endpoints.errors.isEmpty()) {
+                return getString(R.string.web_endpoints_error, endpoints.errors.get(0));
+            }
+            if (endpoints.isEmpty()) {
+                return getString(R.string.target_summary_web);
+            }
+            return getString(R.string.web_endpoints_count, endpoints.endpoints.size());
+        }
+
+        private String summarizeRoutingRules(String source) {
+            RoutingRules rules = RoutingRules.compile(source != null ? source : "");
+            if (!rules.errors.isEmpty()) {
+                return getString(R.string.routing_rules_error, rules.errors.get(0));
+            }
+            if (rules.rules.isEmpty()) {
+                return getString(R.string.key_routing_rules_summary);
+            }
+            return getString(R.string.routing_rules_count, rules.rules.size());
+        }
+    }
+
+    /**
+     * Shows the forwarding {@link Metrics}, refreshed every second, and exports them as JSON.
+     * <p>
+     * Snapshots count the outbox, so they are taken off the main thread and only shown on it.
+     */
+    public static class MetricsFragment extends Fragment {
+        private static final long REFRESH_INTERVAL_MS = 1_000;
+
+        private final ExecutorService snapshots = Executors.newSingleThreadExecutor();
+        private final Handler handler = new Handler(Looper.getMainLooper());
+        private TextView text;
+        private final Runnable refresh = new Runnable() {
+            @Override
+            public void run() {
+                final Context context = requireContext().getApplicationContext();
+                snapshots.execute(() -> {
+                    String rendered = render(context);
+                    handler.post(() -> {
+                        // paused while the snapshot was taken
+                        if (!isResumed()) return;
+                        text.setText(rendered);
+                        handler.postDelayed(refresh, REFRESH_INTERVAL_MS);
+                    });
+                });
+            }
+        };
+
+        @Nullable
+        @Override
+        public View onCreateView(@NonNull LayoutInflater inflater, @Nullable ViewGroup container, @Nullable Bundle savedInstanceState) {
+            View view = inflater.inflate(R.layout.fragment_metrics, container, false);
+            text = view.findViewById(R.id.metrics_text);
+            view.findViewById(R.id.metrics_export).setOnClickListener(v -> export());
+            return view;
+        }
+
+        @Override
+        public void onResume() {
+            super.onResume();
+            refresh.run();
+        }
+
+        @Override
+        public void onPause() {
+            super.onPause();
+            handler.removeCallbacks(refresh);
+        }
+
+        @Override
+        public void onDestroy() {
+            super.onDestroy();
+            snapshots.shutdownNow();
+        }
+
+        /**
+         * Reads the outbox and the first {@link OutboxDrainer}, which releases interrupted claims,
+         * call it in the background.
+         */
+        private static String render(Context context) {
+            StringBuilder out = new StringBuilder(context.getString(R.string.metrics_backlog,
+                    OutboxDatabase.getInstance(context).count(),
+                    ForwardingEngine.getInstance().getInFlightCount()));
+            long firstSendDelay = Metrics.getFirstSendDelay();
+            if (firstSendDelay >= 0) {
+                out.append('\n').append(context.getString(R.string.metrics_first_send, firstSendDelay));
+            }
+            Metrics.MessageMetrics messages = Metrics.messages();
+            if (messages.endToEnd.getCount() > 0) {
+                out.append('\n').append(context.getString(R.string.metrics_messages,
+                        messages.delivered.sum(), messages.incomplete.sum(), messages.endToEnd));
+            }
+
+            boolean empty = true;
+            for (Channel channel : Channel.values()) {
+                Metrics.ChannelMetrics metrics = Metrics.of(channel);
+                if (metrics.receiveToDispatch.getCount() == 0) continue;
+                empty = false;
+
+                out.append("\n\n").append(channel)
+                        .append("\n  delivered ").append(metrics.delivered.sum())
+                        .append("  failed ").append(metrics.failed.sum())
+                        .append("  given up ").append(metrics.givenUp.sum())
+                        .append("  postponed ").append(metrics.postponed.sum())
+                        .append("\n  concurrency ").append(ForwardingEngine.getInstance().getConcurrencyLimit(channel))
+                        .append("  batch ").append(OutboxDrainer.getInstance(context).getBatchLimit(channel))
+                        .append("\n  receive to dispatch ").append(metrics.receiveToDispatch)
+                        .append("\n  time to first byte  ").append(metrics.timeToFirstByte)
+                        .append("\n  end to end          ").append(metrics.endToEnd);
+                if (metrics.urgentEndToEnd.getCount() > 0) {
+                    out.append("\n  urgent end to end   ").append(metrics.urgentEndToEnd);
+                }
+            }
+            if (empty) {
+                out.append("\n\n").append(context.getString(R.string.metrics_empty));
+            }
+            return out.toString();
+        }
+
+        private void export() {
+            final Context context = requireContext().getApplicationContext();
+            snapshots.execute(() -> {
+                String json;
+                try {
+                    json = Metrics.toJson(OutboxDatabase.getInstance(context).count(),
+                            ForwardingEngine.getInstance().getInFlightCount()).toString(2);
+                } catch (JSONException e) {
+                    Log.e("MetricsFragment", "export: " + e.getMessage());
+                    return;
+                }
+                handler.post(() -> {
+                    if (isAdded()) share(json);
+                });
+            });
+        }
+
+        private void share(String json) {
+            Intent intent = new Intent(Intent.ACTION_SEND);
+            intent.setType("application/json");
+            intent.putExtra(Intent.EXTRA_SUBJECT, getString(R.string.title_metrics));
+            intent.putExtra(Intent.EXTRA_TEXT, json);
+            startActivity(Intent.createChooser(intent, getString(R.string.metrics_export)));
+        }
+    }
+
+    /**
+     * Lists the recorded delivery attempts, newest first, a page at a time as the list is scrolled.
+     * <p>
+     * Pages are read off the main thread by a {@link HistoryPager} and continue after the last
+     * attempt shown, so scrolling stays as fast at the end of a long history as at its start.
+     */
+    public static class HistoryFragment extends Fragment {
+        private static final int PAGE_SIZE = 100;
+        /** Load the next page when fewer rows than this are left below the screen. */
+        private static final int PREFETCH_ROWS = 20;
+        private static final long SEARCH_DELAY_MS = 300;
+
+        private final ExecutorService loader = Executors.newSingleThreadExecutor();
+        private final Handler handler = new Handler(Looper.getMainLooper());
+        private final HistoryAdapter adapter = new HistoryAdapter();
+        private final HistoryPager<HistoryDatabase.Row> pager =
+                new HistoryPager<>(loader, handler::post, PAGE_SIZE, this::render);
+
+        private EditText search;
+        private CheckBox failuresOnly;
+        private TextView error;
+
+        private final Runnable reload = this::reload;
+
+        @Nullable
+        @Override
+        public View onCreateView(@NonNull LayoutInflater inflater, @Nullable ViewGroup container, @Nullable Bundle savedInstanceState) {
+            View view = inflater.inflate(R.layout.fragment_history, container, false);
+            search = view.findViewById(R.id.history_search);
+            failuresOnly = view.findViewById(R.id.history_failures_only);
+            error = view.findViewById(R.id.history_error);
+            TextView empty = view.findViewById(R.id.history_empty);
+            ListView list = view.findViewById(R.id.history_list);
+            list.setAdapter(adapter);
+            list.setEmptyView(empty);
+
+            list.setOnScrollListener(new AbsListView.OnScrollListener() {
+                @Override
+                public void onScrollStateChanged(AbsListView view, int scrollState) {
+                }
+
+                @Override
+                public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount, int totalItemCount) {
+                    if (firstVisibleItem + visibleItemCount + PREFETCH_ROWS >= totalItemCount) pager.loadNextPage();
+                }
+            });
+            search.addTextChangedListener(new TextWatcher() {
+                @Override
+                public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+                }
+
+                @Override
+                public void onTextChanged(CharSequence s, int start, int before, int count) {
+                }
+
+                @Override
+                public void afterTextChanged(Editable s) {
+                    handler.removeCallbacks(reload);
+                    handler.postDelayed(reload, SEARCH_DELAY_MS);
+                }
+            });
+            failuresOnly.setOnCheckedChangeListener((button, checked) -> reload());
+            return view;
+        }
+
+        @Override
+        public void onResume() {
+            super.onResume();
+            reload();
+        }
+
+        @Override
+        public void onDestroyView() {
+            super.onDestroyView();
+            handler.removeCallbacks(reload);
+            error = null;
+            pager.reset(null);
+        }
+
+        @Override
+        public void onDestroy() {
+            super.onDestroy();
+            loader.shutdownNow();
+        }
+
+        private void reload() {
+            handler.removeCallbacks(reload);
+            if (getView() == null) return;
+
+            final String query = search.getText().toString().trim();
+            final boolean failures = failuresOnly.isChecked();
+            final HistoryDatabase history = HistoryDatabase.getInstance(requireContext());
+            pager.reset((after, limit) -> history.page(query.isEmpty() ? null : query, failures,
+                    after == null ? Long.MAX_VALUE : after.id, limit));
+        }
+
+        private void render() {
+            adapter.notifyDataSetChanged();
+            if (error == null) return;
+            Exception failure = pager.getError();
+            error.setVisibility(failure == null ? View.GONE : View.VISIBLE);
+            if (failure != null) error.setText(getString(R.string.history_error, failure.getMessage()));
+        }
+
+        private String describe(HistoryDatabase.Row row) {
+            StringBuilder out = new StringBuilder()
+                    .append(DateUtils.formatDateTime(requireContext(), row.attemptedAt,
+                            DateUtils.FORMAT_SHOW_DATE | DateUtils.FORMAT_SHOW_TIME | DateUtils.FORMAT_ABBREV_MONTH))
+                    .append("  ").append(row.channel)
+                    .append("  ").append(getString(statusLabel(row.status)));
+            if (row.status != HistoryDatabase.STATUS_DROPPED) out.append("  ").append(row.latencyMs).append(" ms");
+            if (row.responseCode != ForwardException.NO_STATUS) out.append("  HTTP ").append(row.responseCode);
+            if (row.error != null) out.append("\n").append(row.error);
+            if (row.doneAt > 0) {
+                out.append("\n").append(row.undelivered == 0
+                        ? getString(R.string.history_done, row.doneAt - row.receivedAt)
+                        : getString(R.string.history_done_undelivered, row.doneAt - row.receivedAt, row.undelivered));
+            }
+            return out.toString();
+        }
+
+        @StringRes
+        private static int statusLabel(int status) {
+            switch (status) {
+                case HistoryDatabase.STATUS_DELIVERED:
+                    return R.string.history_status_delivered;
+                case HistoryDatabase.STATUS_FAILED:
+                    return R.string.history_status_failed;
+                case HistoryDatabase.STATUS_GIVEN_UP:
+                    return R.string.history_status_given_up;
+                default:
+                    return R.string.history_status_dropped;
+            }
+        }
+
+        private class HistoryAdapter extends BaseAdapter {
+            @Override
+            public int getCount() {
+                return pager.getRows().size();
+            }
+
+            @Override
+            public HistoryDatabase.Row getItem(int position) {
+                return pager.getRows().get(position);
+            }
+
+            @Override
+            public long getItemId(int position) {
+                return getItem(position).id;
+            }
+
+            @Override
+            public boolean hasStableIds() {
+                return true;
+            }
+
+            @Override
+            public View getView(int position, View convertView, ViewGroup parent) {
+                View view = convertView != null ? convertView
+                        : LayoutInflater.from(parent.getContext()).inflate(android.R.layout.simple_list_item_2, parent, false);
+                HistoryDatabase.Row row = getItem(position);
+                ((TextView) view.findViewById(android.R.id.text1)).setText(row.senderNumber + ": " + row.message);
+                ((TextView) view.findViewById(android.R.id.text2)).setText(describe(row));
+                return view;
+            }
+        }
     }
 }
@@ -0,0 +1,30 @@
+package com.enixcoda.smsforward;
+
+import java.util.List;
+
+/**
+ * Text of forwarded messages for the chat and email channels.
+ */
+public final class MessageFormatter {
+    private MessageFormatter() {
+    }
+
+    /**
+     * Formats a forwarded message for the chat channels.
+     */
+    static String formatMessage(String senderNumber, String message) {
+        return String.format("Message from %s:\n%s", senderNumber, message);
+    }
+
+    /**
+     * Formats several forwarded messages as one multi-line chat message.
+     */
+    static String formatBatch(List<OutboxEntry> entries) {
+        StringBuilder text = new StringBuilder();
+        for (OutboxEntry entry : entries) {
+            if (text.length() > 0) text.append("\n\n");
+            text.append(formatMessage(entry.senderNumber, entry.message));
+        }
+        return text.toString();
+    }
+}
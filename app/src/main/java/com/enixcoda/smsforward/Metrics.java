@@ -0,0 +1,187 @@
+package com.enixcoda.smsforward;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Process-wide forwarding metrics, per {@link Channel} and per received message across all of
+ * them.
+ * <p>
+ * Latencies are measured from the timestamp the SMS carries, so they include any delay before the
+ * phone received it, and a skewed SMSC clock shows up in them.
+ */
+public final class Metrics {
+    private static final String TAG = "Metrics";
+
+    /**
+     * Counters and latencies of one channel.
+     */
+    public static final class ChannelMetrics {
+        /** Messages delivered. */
+        public final LongAdder delivered = new LongAdder();
+        /** Requests that failed and were either retried or given up. */
+        public final LongAdder failed = new LongAdder();
+        /** Messages dropped after a fatal error or too many attempts. */
+        public final LongAdder givenUp = new LongAdder();
+        /** Messages held back by a rate limit or an open circuit breaker. */
+        public final LongAdder postponed = new LongAdder();
+        /** Messages the recipient's network reported as delivered, SMS only. */
+        public final LongAdder confirmed = new LongAdder();
+
+        /** From the SMS timestamp until the message was handed to the engine. */
+        public final LatencyHistogram receiveToDispatch = new LatencyHistogram();
+        /** From sending a request until the service answered. */
+        public final LatencyHistogram timeToFirstByte = new LatencyHistogram();
+        /** From the SMS timestamp until the service confirmed the delivery. */
+        public final LatencyHistogram endToEnd = new LatencyHistogram();
+        /** {@link #endToEnd} of urgent messages only. */
+        public final LatencyHistogram urgentEndToEnd = new LatencyHistogram();
+        /** From sending an SMS until its delivery report arrived. */
+        public final LatencyHistogram sentToConfirmed = new LatencyHistogram();
+
+        private ChannelMetrics() {
+        }
+
+        JSONObject toJson() throws JSONException {
+            return new JSONObject()
+                    .put("delivered", delivered.sum())
+                    .put("failed", failed.sum())
+                    .put("givenUp", givenUp.sum())
+                    .put("postponed", postponed.sum())
+                    .put("confirmed", confirmed.sum())
+                    .put("receiveToDispatchMs", toJson(receiveToDispatch))
+                    .put("timeToFirstByteMs", toJson(timeToFirstByte))
+                    .put("endToEndMs", toJson(endToEnd))
+                    .put("urgentEndToEndMs", toJson(urgentEndToEnd))
+                    .put("sentToConfirmedMs", toJson(sentToConfirmed));
+        }
+
+        private static JSONObject toJson(LatencyHistogram histogram) throws JSONException {
+            return new JSONObject()
+                    .put("count", histogram.getCount())
+                    .put("mean", histogram.getMean())
+                    .put("p50", histogram.getPercentile(50))
+                    .put("p90", histogram.getPercentile(90))
+                    .put("p99", histogram.getPercentile(99))
+                    .put("max", histogram.getMax());
+        }
+    }
+
+    /**
+     * Counters and latencies of received messages, each once every channel is done with it.
+     */
+    public static final class MessageMetrics {
+        /** Messages every channel they were routed to delivered. */
+        public final LongAdder delivered = new LongAdder();
+        /** Messages at least one channel gave up or dropped. */
+        public final LongAdder incomplete = new LongAdder();
+        /** From the SMS timestamp until the last channel was done with the message. */
+        public final LatencyHistogram endToEnd = new LatencyHistogram();
+
+        private MessageMetrics() {
+        }
+
+        JSONObject toJson() throws JSONException {
+            return new JSONObject()
+                    .put("delivered", delivered.sum())
+                    .put("incomplete", incomplete.sum())
+                    .put("endToEndMs", ChannelMetrics.toJson(endToEnd));
+        }
+    }
+
+    private static final Map<Channel, ChannelMetrics> channels = new EnumMap<>(Channel.class);
+    private static final MessageMetrics messages = new MessageMetrics();
+
+    /** When the process received its first SMS, or -1. */
+    private static final AtomicLong firstReceivedAt = new AtomicLong(-1);
+    /** From {@link #firstReceivedAt} until the first request left the device, or -1. */
+    private static final AtomicLong firstSendDelay = new AtomicLong(-1);
+
+    static {
+        for (Channel channel : Channel.values()) {
+            channels.put(channel, new ChannelMetrics());
+        }
+    }
+
+    private Metrics() {
+    }
+
+    @NonNull
+    public static ChannelMetrics of(@NonNull Channel channel) {
+        return channels.get(channel);
+    }
+
+    @NonNull
+    public static MessageMetrics messages() {
+        return messages;
+    }
+
+    /**
+     * Notes that every channel is done with a message.
+     *
+     * @param endToEndMs  From the SMS timestamp until the last channel was done.
+     * @param undelivered On how many channels the message was given up or dropped.
+     */
+    static void recordMessageDone(long endToEndMs, int undelivered) {
+        (undelivered == 0 ? messages.delivered : messages.incomplete).increment();
+        messages.endToEnd.record(endToEndMs);
+    }
+
+    /**
+     * Notes that an SMS was received. Only the first call of the process counts.
+     */
+    static void recordReceived(long receivedAt) {
+        firstReceivedAt.compareAndSet(-1, receivedAt);
+    }
+
+    /**
+     * Notes that a request to a channel started going out. Only the first call after
+     * {@link #recordReceived} counts.
+     */
+    static void recordSent(long sentAt) {
+        long receivedAt = firstReceivedAt.get();
+        if (receivedAt >= 0 && firstSendDelay.get() < 0
+                && firstSendDelay.compareAndSet(-1, Math.max(0, sentAt - receivedAt))) {
+            Log.i(TAG, "first send " + firstSendDelay.get() + "ms after the first SMS was received");
+        }
+    }
+
+    /**
+     * @return From the first SMS the process received until the first forward of it started
+     * going out, or -1 if nothing was sent yet. If the SMS started the process, this includes
+     * everything the cold start left to the first message.
+     */
+    public static long getFirstSendDelay() {
+        return firstSendDelay.get();
+    }
+
+    /**
+     * @param backlog  Messages waiting in the outbox.
+     * @param inFlight Deliveries running or queued in the engine.
+     * @return All metrics for export.
+     */
+    @NonNull
+    public static JSONObject toJson(long backlog, int inFlight) throws JSONException {
+        JSONObject byChannel = new JSONObject();
+        for (Map.Entry<Channel, ChannelMetrics> entry : channels.entrySet()) {
+            byChannel.put(entry.getKey().name(), entry.getValue().toJson());
+        }
+        return new JSONObject()
+                .put("timestamp", System.currentTimeMillis())
+                .put("backlog", backlog)
+                .put("inFlight", inFlight)
+                .put("firstSendDelayMs", getFirstSendDelay())
+                .put("rateLimitTokens", new JSONObject(RateLimiter.getTokenLevels()))
+                .put("messages", messages.toJson())
+                .put("channels", byChannel);
+    }
+}
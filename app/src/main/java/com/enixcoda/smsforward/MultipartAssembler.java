@@ -0,0 +1,370 @@
+package com.enixcoda.smsforward;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Joins the parts of concatenated SMS into single {@link IncomingMessage}s.
+ * <p>
+ * Parts are grouped by originating address and concatenation reference, read from the user data
+ * header of the 3GPP PDU. Parts usually arrive in the same broadcast, but a carrier may split them
+ * across broadcasts, so incomplete groups are held in a bounded buffer. A group that does not
+ * complete within {@link #PART_TIMEOUT_MS}, or is evicted to make room, is emitted with the parts
+ * received so far rather than dropped.
+ * <p>
+ * With a {@link PartStore}, the parts of incomplete groups also survive the process. The caller
+ * {@link #commit() commits} once it handled the messages of a broadcast; this saves the parts
+ * still waiting and forgets the groups that were handed on, so a broadcast replayed after a crash
+ * before its commit finds the assembler as it was before. Groups restored from the store expire
+ * like any other.
+ * <p>
+ * 3GPP2 (CDMA) PDUs pass through as single parts. Their concatenation header sits in bit-packed
+ * bearer data behind the platform's own envelope encoding, which no public API exposes.
+ */
+public class MultipartAssembler {
+    private static final String TAG = "MultipartAssembler";
+
+    static final long PART_TIMEOUT_MS = 60_000;
+    static final int MAX_PENDING_GROUPS = 16;
+
+    /** Information element identifiers for concatenated messages, 3GPP TS 23.040 9.2.3.24. */
+    private static final int IEI_CONCAT_8BIT_REF = 0x00;
+    private static final int IEI_CONCAT_16BIT_REF = 0x08;
+
+    /**
+     * Receives groups that were completed or expired outside of {@link #add}.
+     */
+    public interface Listener {
+        void onMessagesAssembled(@NonNull List<IncomingMessage> messages);
+    }
+
+    /**
+     * Keeps the parts of incomplete groups across process restarts.
+     */
+    interface PartStore {
+        /**
+         * Removes the parts of {@code finishedGroups}, then adds {@code parts}, all or nothing.
+         */
+        void updateParts(@NonNull Collection<String> finishedGroups, @NonNull List<Part> parts);
+
+        /**
+         * @return Every part saved, by group in the order the groups were created, then by sequence.
+         */
+        @NonNull
+        List<Part> loadParts();
+    }
+
+    /**
+     * One buffered part, as kept by a {@link PartStore}. Timestamp, SIM slot and creation time are
+     * those of its group.
+     */
+    static final class Part {
+        @NonNull final String groupKey;
+        @NonNull final String senderNumber;
+        final int total;
+        final int sequence;
+        @NonNull final String body;
+        final long timestampMillis;
+        final int simSlot;
+        final long createdAt;
+
+        Part(@NonNull String groupKey, @NonNull String senderNumber, int total, int sequence, @NonNull String body,
+             long timestampMillis, int simSlot, long createdAt) {
+            this.groupKey = groupKey;
+            this.senderNumber = senderNumber;
+            this.total = total;
+            this.sequence = sequence;
+            this.body = body;
+            this.timestampMillis = timestampMillis;
+            this.simSlot = simSlot;
+            this.createdAt = createdAt;
+        }
+    }
+
+    /**
+     * Concatenation header of a single part.
+     */
+    static class ConcatInfo {
+        final int reference;
+        final int total;
+        final int sequence;
+
+        ConcatInfo(int reference, int total, int sequence) {
+            this.reference = reference;
+            this.total = total;
+            this.sequence = sequence;
+        }
+    }
+
+    private static class PendingGroup {
+        final String senderNumber;
+        final String[] parts;
+        final long timestampMillis;
+        final int simSlot;
+        final long createdAt;
+        int received;
+
+        PendingGroup(String senderNumber, int total, long timestampMillis, int simSlot, long createdAt) {
+            this.senderNumber = senderNumber;
+            this.parts = new String[total];
+            this.timestampMillis = timestampMillis;
+            this.simSlot = simSlot;
+            this.createdAt = createdAt;
+        }
+
+        boolean isComplete() {
+            return received == parts.length;
+        }
+
+        IncomingMessage toMessage() {
+            StringBuilder body = new StringBuilder();
+            for (String part : parts) {
+                if (part != null) body.append(part);
+            }
+            return new IncomingMessage(senderNumber, body.toString(), timestampMillis, simSlot);
+        }
+    }
+
+    private final Listener listener;
+    @Nullable
+    private final PartStore store;
+    /** Incomplete groups in insertion order, so the oldest is evicted first. */
+    private final LinkedHashMap<String, PendingGroup> pending = new LinkedHashMap<>();
+    /** Parts buffered since the last {@link #commit}. Guarded by {@code this}. */
+    private final List<Part> unsaved = new ArrayList<>();
+    /** Groups handed on since the last {@link #commit}. Guarded by {@code this}. */
+    private final List<String> finished = new ArrayList<>();
+    /** Keeps commits in order, so a group is not saved again after it was removed. */
+    private final Object commitLock = new Object();
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, TAG);
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public MultipartAssembler(@NonNull Listener listener) {
+        this(listener, null);
+    }
+
+    /**
+     * @param store Where parts of incomplete groups are kept, or {@code null} to keep them in
+     *              memory only. The groups saved there are restored here.
+     */
+    MultipartAssembler(@NonNull Listener listener, @Nullable PartStore store) {
+        this.listener = listener;
+        this.store = store;
+        if (store != null) restore(store);
+    }
+
+    private void restore(PartStore store) {
+        List<Part> parts;
+        try {
+            parts = store.loadParts();
+        } catch (RuntimeException e) {
+            Log.e(TAG, "restore: cannot read the parts of the previous process", e);
+            return;
+        }
+        if (parts.isEmpty()) return;
+
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            for (Part part : parts) {
+                if (part.sequence < 1 || part.sequence > part.total) continue;
+                PendingGroup group = pending.get(part.groupKey);
+                if (group == null) {
+                    group = new PendingGroup(part.senderNumber, part.total, part.timestampMillis, part.simSlot,
+                            part.createdAt);
+                    pending.put(part.groupKey, group);
+                    long delay = Math.max(0, part.createdAt + PART_TIMEOUT_MS - now);
+                    timer.schedule(this::expire, delay, TimeUnit.MILLISECONDS);
+                }
+                if (group.parts[part.sequence - 1] == null) {
+                    group.parts[part.sequence - 1] = part.body;
+                    group.received++;
+                }
+            }
+        }
+        Log.i(TAG, "restore: " + parts.size() + " parts of incomplete messages");
+    }
+
+    /**
+     * Adds one received part.
+     *
+     * @param simSlot The SIM slot that received the part, or {@link IncomingMessage#UNKNOWN_SIM_SLOT}.
+     * @param format  The PDU format from the broadcast, {@code "3gpp"} or {@code "3gpp2"}.
+     * @return The message this part completes, a single-part message, or {@code null} if the part
+     * was buffered until the rest of its group arrives.
+     */
+    @Nullable
+    public IncomingMessage add(@NonNull String senderNumber, @NonNull String body, long timestampMillis, int simSlot,
+                               @NonNull byte[] pdu, @Nullable String format) {
+        ConcatInfo concat = parseConcatInfo(pdu, format);
+        if (concat == null || concat.total <= 1 || concat.sequence < 1 || concat.sequence > concat.total) {
+            return new IncomingMessage(senderNumber, body, timestampMillis, simSlot);
+        }
+
+        List<IncomingMessage> evicted = new ArrayList<>();
+        List<String> evictedGroups = new ArrayList<>();
+        IncomingMessage completed = null;
+        synchronized (this) {
+            String key = senderNumber + '#' + concat.reference + '#' + concat.total;
+            PendingGroup group = pending.get(key);
+            if (group == null) {
+                if (pending.size() >= MAX_PENDING_GROUPS) {
+                    Iterator<Map.Entry<String, PendingGroup>> oldest = pending.entrySet().iterator();
+                    Map.Entry<String, PendingGroup> entry = oldest.next();
+                    evicted.add(entry.getValue().toMessage());
+                    evictedGroups.add(entry.getKey());
+                    oldest.remove();
+                }
+                group = new PendingGroup(senderNumber, concat.total, timestampMillis, simSlot, System.currentTimeMillis());
+                pending.put(key, group);
+                timer.schedule(this::expire, PART_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            }
+
+            if (group.parts[concat.sequence - 1] == null) {
+                group.parts[concat.sequence - 1] = body;
+                group.received++;
+                if (store != null) {
+                    unsaved.add(new Part(key, senderNumber, concat.total, concat.sequence, body, group.timestampMillis,
+                            group.simSlot, group.createdAt));
+                }
+            }
+
+            if (group.isComplete()) {
+                pending.remove(key);
+                finished.add(key);
+                completed = group.toMessage();
+            }
+        }
+
+        if (!evicted.isEmpty()) {
+            Log.w(TAG, "add: buffer full, forwarding incomplete message");
+            listener.onMessagesAssembled(evicted);
+            forget(evictedGroups);
+        }
+        return completed;
+    }
+
+    /**
+     * Records that the messages {@link #add} returned have been handled: saves the parts that are
+     * still waiting for the rest of their group, and removes the groups that were handed on from
+     * the {@link PartStore}. Does nothing without a store.
+     */
+    public void commit() {
+        if (store == null) return;
+        synchronized (commitLock) {
+            List<String> groups;
+            List<Part> parts = new ArrayList<>();
+            synchronized (this) {
+                if (finished.isEmpty() && unsaved.isEmpty()) return;
+                groups = new ArrayList<>(finished);
+                finished.clear();
+                for (Part part : unsaved) {
+                    // parts of a group completed in the same broadcast never need saving
+                    if (pending.containsKey(part.groupKey)) parts.add(part);
+                }
+                unsaved.clear();
+            }
+            try {
+                store.updateParts(groups, parts);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "commit: keeping " + parts.size() + " parts in memory only", e);
+            }
+        }
+    }
+
+    /**
+     * Removes groups the {@link Listener} handled from the {@link PartStore}. Unlike
+     * {@link #commit}, leaves alone what the caller of {@link #add} did not handle yet.
+     */
+    private void forget(List<String> groups) {
+        if (store == null) return;
+        synchronized (commitLock) {
+            try {
+                store.updateParts(groups, Collections.<Part>emptyList());
+            } catch (RuntimeException e) {
+                Log.e(TAG, "forget: " + groups.size() + " incomplete messages may be forwarded again after a restart", e);
+            }
+        }
+    }
+
+    private void expire() {
+        List<IncomingMessage> expired = new ArrayList<>();
+        List<String> expiredGroups = new ArrayList<>();
+        long cutoff = System.currentTimeMillis() - PART_TIMEOUT_MS;
+        synchronized (this) {
+            Iterator<Map.Entry<String, PendingGroup>> iterator = pending.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<String, PendingGroup> entry = iterator.next();
+                if (entry.getValue().createdAt > cutoff) break;
+                expired.add(entry.getValue().toMessage());
+                expiredGroups.add(entry.getKey());
+                iterator.remove();
+            }
+        }
+
+        if (!expired.isEmpty()) {
+            Log.w(TAG, "expire: forwarding " + expired.size() + " incomplete messages");
+            listener.onMessagesAssembled(expired);
+            forget(expiredGroups);
+        }
+    }
+
+    /**
+     * Reads the concatenation header from a 3GPP SMS-DELIVER PDU.
+     *
+     * @return The header, or {@code null} if the PDU is not part of a concatenated message or
+     * cannot be parsed.
+     */
+    @Nullable
+    static ConcatInfo parseConcatInfo(@NonNull byte[] pdu, @Nullable String format) {
+        if (format != null && !format.equals("3gpp")) return null;
+
+        try {
+            int i = 0;
+            // SMSC address, prepended by the radio layer
+            i += 1 + (pdu[i] & 0xff);
+
+            int firstOctet = pdu[i++] & 0xff;
+            // TP-MTI must be SMS-DELIVER and TP-UDHI must be set
+            if ((firstOctet & 0x03) != 0 || (firstOctet & 0x40) == 0) return null;
+
+            // TP-OA: length in semi-octets, type of address, then the digits
+            int addressDigits = pdu[i++] & 0xff;
+            i += 1 + (addressDigits + 1) / 2;
+            // TP-PID, TP-DCS, TP-SCTS, TP-UDL
+            i += 1 + 1 + 7 + 1;
+
+            int headerLength = pdu[i++] & 0xff;
+            int headerEnd = i + headerLength;
+            while (i + 2 <= headerEnd) {
+                int iei = pdu[i++] & 0xff;
+                int length = pdu[i++] & 0xff;
+                if (iei == IEI_CONCAT_8BIT_REF && length == 3) {
+                    return new ConcatInfo(pdu[i] & 0xff, pdu[i + 1] & 0xff, pdu[i + 2] & 0xff);
+                }
+                if (iei == IEI_CONCAT_16BIT_REF && length == 4) {
+                    return new ConcatInfo(((pdu[i] & 0xff) << 8) | (pdu[i + 1] & 0xff), pdu[i + 2] & 0xff, pdu[i + 3] & 0xff);
+                }
+                i += length;
+            }
+            return null;
+        } catch (ArrayIndexOutOfBoundsException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package com.enixcoda.smsforward;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Follows whether the device has a data connection, through a default network callback.
+ * <p>
+ * The state is read on every delivery, so it is kept in a volatile field instead of asking
+ * {@link ConnectivityManager} each time.
+ */
+public class NetworkMonitor {
+    private static final String TAG = "NetworkMonitor";
+
+    /**
+     * Notified when the device goes offline or comes back, on a binder thread.
+     */
+    public interface Listener {
+        void onConnectivityChanged(boolean online);
+    }
+
+    private static volatile NetworkMonitor instance;
+
+    private final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<>();
+    private volatile boolean online;
+
+    public static NetworkMonitor getInstance(Context context) {
+        if (instance == null) {
+            synchronized (NetworkMonitor.class) {
+                if (instance == null) {
+                    instance = new NetworkMonitor(context.getApplicationContext());
+                }
+            }
+        }
+        return instance;
+    }
+
+    private NetworkMonitor(Context context) {
+        ConnectivityManager connectivityManager = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        NetworkCapabilities capabilities = connectivityManager.getNetworkCapabilities(connectivityManager.getActiveNetwork());
+        online = hasInternet(capabilities);
+
+        connectivityManager.registerDefaultNetworkCallback(new ConnectivityManager.NetworkCallback() {
+            @Override
+            public void onCapabilitiesChanged(@NonNull Network network, @NonNull NetworkCapabilities networkCapabilities) {
+                setOnline(hasInternet(networkCapabilities));
+            }
+
+            @Override
+            public void onLost(@NonNull Network network) {
+                setOnline(false);
+            }
+        });
+    }
+
+    private static boolean hasInternet(NetworkCapabilities capabilities) {
+        return capabilities != null && capabilities.hasCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET);
+    }
+
+    private void setOnline(boolean online) {
+        if (this.online == online) return;
+        this.online = online;
+        Log.i(TAG, online ? "back online" : "offline");
+        for (Listener listener : listeners) {
+            listener.onConnectivityChanged(online);
+        }
+    }
+
+    /**
+     * @return Whether the default network can reach the internet.
+     */
+    public boolean isOnline() {
+        return online;
+    }
+
+    public void addListener(@NonNull Listener listener) {
+        listeners.add(listener);
+    }
+}
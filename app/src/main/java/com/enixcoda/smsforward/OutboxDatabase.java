@@ -0,0 +1,416 @@
+package com.enixcoda.smsforward;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Persistent queue of forwards that have not been delivered yet.
+ * <p>
+ * Every received message is written here with one row per enabled {@link Channel} before any
+ * network work starts, so a killed process or a failed send does not lose the message.
+ * Rows are claimed in batches by {@link OutboxDrainer} and removed once delivered. Urgent rows are
+ * claimed before all others.
+ * <p>
+ * The channels a message was not delivered on are counted until its last row is removed, so
+ * {@link #finish} can tell when every channel is done with the message and how it went.
+ * <p>
+ * Parts of concatenated messages that wait for the rest of their message are kept here as well,
+ * for the {@link MultipartAssembler}.
+ */
+public class OutboxDatabase extends SQLiteOpenHelper implements MultipartAssembler.PartStore {
+    private static final String DATABASE_NAME = "outbox.db";
+    private static final int DATABASE_VERSION = 3;
+
+    private static final String TABLE = "outbox";
+    private static final String COLUMN_ID = "_id";
+    private static final String COLUMN_CHANNEL = "channel";
+    private static final String COLUMN_SENDER = "sender";
+    private static final String COLUMN_MESSAGE = "message";
+    private static final String COLUMN_RECEIVED_AT = "received_at";
+    private static final String COLUMN_SIM_SLOT = "sim_slot";
+    private static final String COLUMN_PRIORITY = "priority";
+    private static final String COLUMN_STATE = "state";
+    private static final String COLUMN_ATTEMPTS = "attempts";
+    private static final String COLUMN_NEXT_ATTEMPT_AT = "next_attempt_at";
+
+    /** Waiting to be claimed, possibly after {@code next_attempt_at}. */
+    private static final int STATE_PENDING = 0;
+    /** Claimed by a drain pass and currently being delivered. */
+    private static final int STATE_CLAIMED = 1;
+
+    private static final int PRIORITY_NORMAL = 0;
+    private static final int PRIORITY_URGENT = 1;
+
+    /** Channels a message was given up or dropped on, by {@link OutboxEntry#getMessageId()}. */
+    private static final String TABLE_UNDELIVERED = "undelivered";
+
+    /** Buffered parts of concatenated messages, see {@link MultipartAssembler.Part}. */
+    private static final String TABLE_PARTS = "pending_parts";
+
+    /** Returned by {@link #finish} for a message that other channels still have to deliver. */
+    static final int MESSAGE_PENDING = -1;
+
+    private static volatile OutboxDatabase instance;
+
+    public static OutboxDatabase getInstance(Context context) {
+        if (instance == null) {
+            synchronized (OutboxDatabase.class) {
+                if (instance == null) {
+                    instance = new OutboxDatabase(context.getApplicationContext());
+                }
+            }
+        }
+        return instance;
+    }
+
+    private OutboxDatabase(Context context) {
+        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        // WAL keeps inserts on the receive path from blocking on a concurrent drain pass.
+        setWriteAheadLoggingEnabled(true);
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE + " ("
+                + COLUMN_ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+                + COLUMN_CHANNEL + " TEXT NOT NULL, "
+                + COLUMN_SENDER + " TEXT NOT NULL, "
+                + COLUMN_MESSAGE + " TEXT NOT NULL, "
+                + COLUMN_RECEIVED_AT + " INTEGER NOT NULL, "
+                + COLUMN_SIM_SLOT + " INTEGER NOT NULL DEFAULT " + IncomingMessage.UNKNOWN_SIM_SLOT + ", "
+                + COLUMN_PRIORITY + " INTEGER NOT NULL DEFAULT " + PRIORITY_NORMAL + ", "
+                + COLUMN_STATE + " INTEGER NOT NULL DEFAULT " + STATE_PENDING + ", "
+                + COLUMN_ATTEMPTS + " INTEGER NOT NULL DEFAULT 0, "
+                + COLUMN_NEXT_ATTEMPT_AT + " INTEGER NOT NULL DEFAULT 0)");
+        db.execSQL("CREATE INDEX outbox_pending ON " + TABLE
+                + " (" + COLUMN_STATE + ", " + COLUMN_PRIORITY + ", " + COLUMN_NEXT_ATTEMPT_AT + ", " + COLUMN_ID + ")");
+        createMessageTracking(db);
+        createPendingParts(db);
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        // Migrate rather than drop the table, it holds messages that were not delivered yet.
+        if (oldVersion < 2) {
+            // messages queued before count as delivered on the channels already done with them
+            createMessageTracking(db);
+        }
+        if (oldVersion < 3) {
+            createPendingParts(db);
+        }
+    }
+
+    /**
+     * Adds what {@link #finish} needs, from version 2 on.
+     */
+    private static void createMessageTracking(SQLiteDatabase db) {
+        db.execSQL("CREATE INDEX outbox_message ON " + TABLE + " (" + COLUMN_RECEIVED_AT + ", " + COLUMN_SENDER + ")");
+        db.execSQL("CREATE TABLE " + TABLE_UNDELIVERED + " ("
+                + "message_id INTEGER PRIMARY KEY, "
+                + "channels INTEGER NOT NULL)");
+    }
+
+    /**
+     * Adds what {@link #updateParts} and {@link #loadParts} need, from version 3 on.
+     */
+    private static void createPendingParts(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE_PARTS + " ("
+                + "group_key TEXT NOT NULL, "
+                + "sequence INTEGER NOT NULL, "
+                + "total INTEGER NOT NULL, "
+                + COLUMN_SENDER + " TEXT NOT NULL, "
+                + COLUMN_MESSAGE + " TEXT NOT NULL, "
+                + COLUMN_RECEIVED_AT + " INTEGER NOT NULL, "
+                + COLUMN_SIM_SLOT + " INTEGER NOT NULL, "
+                + "created_at INTEGER NOT NULL, "
+                + "PRIMARY KEY (group_key, sequence))");
+    }
+
+    @Override
+    public void updateParts(@NonNull Collection<String> finishedGroups, @NonNull List<MultipartAssembler.Part> parts) {
+        if (finishedGroups.isEmpty() && parts.isEmpty()) return;
+
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (String group : finishedGroups) {
+                db.delete(TABLE_PARTS, "group_key = ?", new String[]{group});
+            }
+            if (!parts.isEmpty()) {
+                SQLiteStatement insert = db.compileStatement("INSERT OR IGNORE INTO " + TABLE_PARTS
+                        + " (group_key, sequence, total, " + COLUMN_SENDER + ", " + COLUMN_MESSAGE + ", "
+                        + COLUMN_RECEIVED_AT + ", " + COLUMN_SIM_SLOT + ", created_at) VALUES (?, ?, ?, ?, ?, ?, ?, ?)");
+                for (MultipartAssembler.Part part : parts) {
+                    insert.bindString(1, part.groupKey);
+                    insert.bindLong(2, part.sequence);
+                    insert.bindLong(3, part.total);
+                    insert.bindString(4, part.senderNumber);
+                    insert.bindString(5, part.body);
+                    insert.bindLong(6, part.timestampMillis);
+                    insert.bindLong(7, part.simSlot);
+                    insert.bindLong(8, part.createdAt);
+                    insert.executeInsert();
+                    insert.clearBindings();
+                }
+                insert.close();
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    @NonNull
+    @Override
+    public List<MultipartAssembler.Part> loadParts() {
+        List<MultipartAssembler.Part> parts = new ArrayList<>();
+        try (Cursor cursor = getReadableDatabase().query(TABLE_PARTS,
+                new String[]{"group_key", COLUMN_SENDER, "total", "sequence", COLUMN_MESSAGE, COLUMN_RECEIVED_AT,
+                        COLUMN_SIM_SLOT, "created_at"},
+                null, null, null, null, "created_at, group_key, sequence")) {
+            while (cursor.moveToNext()) {
+                parts.add(new MultipartAssembler.Part(
+                        cursor.getString(0),
+                        cursor.getString(1),
+                        cursor.getInt(2),
+                        cursor.getInt(3),
+                        cursor.getString(4),
+                        cursor.getLong(5),
+                        cursor.getInt(6),
+                        cursor.getLong(7)));
+            }
+        }
+        return parts;
+    }
+
+    /**
+     * Stores all given entries in a single transaction.
+     */
+    public void enqueue(@NonNull List<OutboxEntry> entries) {
+        if (entries.isEmpty()) return;
+
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            SQLiteStatement insert = db.compileStatement("INSERT INTO " + TABLE + " ("
+                    + COLUMN_CHANNEL + ", " + COLUMN_SENDER + ", " + COLUMN_MESSAGE + ", " + COLUMN_RECEIVED_AT + ", "
+                    + COLUMN_SIM_SLOT + ", " + COLUMN_PRIORITY + ") VALUES (?, ?, ?, ?, ?, ?)");
+            for (OutboxEntry entry : entries) {
+                insert.bindString(1, entry.channel.name());
+                insert.bindString(2, entry.senderNumber);
+                insert.bindString(3, entry.message);
+                insert.bindLong(4, entry.receivedAt);
+                insert.bindLong(5, entry.simSlot);
+                insert.bindLong(6, entry.urgent ? PRIORITY_URGENT : PRIORITY_NORMAL);
+                insert.executeInsert();
+                insert.clearBindings();
+            }
+            insert.close();
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Claims up to {@code limit} pending entries that are due at {@code now}, urgent ones first,
+     * then oldest first. Claimed entries are not returned again until they are released or marked
+     * as failed.
+     *
+     * @param urgentOnly Whether to leave entries that are not urgent in the queue.
+     * @param channels   The channels to claim entries for, {@code null} for all.
+     */
+    @NonNull
+    public List<OutboxEntry> claim(int limit, long now, boolean urgentOnly, @Nullable Collection<Channel> channels) {
+        List<OutboxEntry> claimed = new ArrayList<>();
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            String due = COLUMN_STATE + " = " + STATE_PENDING
+                    + (urgentOnly ? " AND " + COLUMN_PRIORITY + " = " + PRIORITY_URGENT : "")
+                    + " AND " + COLUMN_NEXT_ATTEMPT_AT + " <= ?"
+                    + channelFilter(channels);
+            try (Cursor cursor = db.query(TABLE,
+                    new String[]{COLUMN_ID, COLUMN_CHANNEL, COLUMN_SENDER, COLUMN_MESSAGE, COLUMN_RECEIVED_AT, COLUMN_SIM_SLOT,
+                            COLUMN_PRIORITY, COLUMN_ATTEMPTS},
+                    due,
+                    new String[]{String.valueOf(now)},
+                    null, null, COLUMN_PRIORITY + " DESC, " + COLUMN_ID, String.valueOf(limit))) {
+                while (cursor.moveToNext()) {
+                    Channel channel;
+                    try {
+                        channel = Channel.valueOf(cursor.getString(1));
+                    } catch (IllegalArgumentException e) {
+                        // Channel no longer exists, nothing can deliver this row.
+                        db.delete(TABLE, COLUMN_ID + " = " + cursor.getLong(0), null);
+                        continue;
+                    }
+                    claimed.add(new OutboxEntry(
+                            cursor.getLong(0),
+                            channel,
+                            cursor.getString(2),
+                            cursor.getString(3),
+                            cursor.getLong(4),
+                            cursor.getInt(5),
+                            cursor.getInt(6) == PRIORITY_URGENT,
+                            cursor.getInt(7)));
+                }
+            }
+
+            if (!claimed.isEmpty()) {
+                // urgent rows first means the ids are no longer one range
+                StringBuilder ids = new StringBuilder();
+                for (OutboxEntry entry : claimed) {
+                    if (ids.length() > 0) ids.append(',');
+                    ids.append(entry.id);
+                }
+                ContentValues values = new ContentValues();
+                values.put(COLUMN_STATE, STATE_CLAIMED);
+                db.update(TABLE, values, COLUMN_ID + " IN (" + ids + ")", null);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        return claimed;
+    }
+
+    /**
+     * @return {@code " AND channel IN (...)"}, or nothing if {@code channels} is {@code null}.
+     */
+    private static String channelFilter(@Nullable Collection<Channel> channels) {
+        if (channels == null) return "";
+        StringBuilder filter = new StringBuilder(" AND " + COLUMN_CHANNEL + " IN (");
+        boolean first = true;
+        for (Channel channel : channels) {
+            if (!first) filter.append(',');
+            // enum names, nothing to escape
+            filter.append('\'').append(channel.name()).append('\'');
+            first = false;
+        }
+        return filter.append(')').toString();
+    }
+
+    /**
+     * Removes entries that were delivered or will not be delivered at all, and tells for each
+     * whether it was the last one of its message.
+     *
+     * @param delivered Whether the entries reached their channel.
+     * @return For each entry, on how many channels its message was not delivered, or
+     * {@link #MESSAGE_PENDING} if other entries of the message are still waiting.
+     */
+    @NonNull
+    public int[] finish(@NonNull List<OutboxEntry> entries, boolean delivered) {
+        int[] undelivered = new int[entries.size()];
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < entries.size(); i++) {
+                OutboxEntry entry = entries.get(i);
+                String messageId = String.valueOf(entry.getMessageId());
+                db.delete(TABLE, COLUMN_ID + " = ?", new String[]{String.valueOf(entry.id)});
+                if (!delivered) {
+                    db.execSQL("INSERT OR IGNORE INTO " + TABLE_UNDELIVERED + " (message_id, channels) VALUES (?, 0)",
+                            new Object[]{messageId});
+                    db.execSQL("UPDATE " + TABLE_UNDELIVERED + " SET channels = channels + 1 WHERE message_id = ?",
+                            new Object[]{messageId});
+                }
+
+                boolean pending = DatabaseUtils.longForQuery(db, "SELECT EXISTS (SELECT 1 FROM " + TABLE + " WHERE "
+                                + COLUMN_RECEIVED_AT + " = ? AND " + COLUMN_SENDER + " = ? AND " + COLUMN_MESSAGE + " = ?)",
+                        new String[]{String.valueOf(entry.receivedAt), entry.senderNumber, entry.message}) != 0;
+                if (pending) {
+                    undelivered[i] = MESSAGE_PENDING;
+                    continue;
+                }
+                undelivered[i] = (int) DatabaseUtils.longForQuery(db, "SELECT IFNULL((SELECT channels FROM "
+                        + TABLE_UNDELIVERED + " WHERE message_id = ?), 0)", new String[]{messageId});
+                db.delete(TABLE_UNDELIVERED, "message_id = ?", new String[]{messageId});
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        return undelivered;
+    }
+
+    /**
+     * Returns a failed entry to the queue so it is claimed again at {@code nextAttemptAt}.
+     */
+    public void markFailed(long id, long nextAttemptAt) {
+        getWritableDatabase().execSQL("UPDATE " + TABLE + " SET "
+                        + COLUMN_STATE + " = " + STATE_PENDING + ", "
+                        + COLUMN_ATTEMPTS + " = " + COLUMN_ATTEMPTS + " + 1, "
+                        + COLUMN_NEXT_ATTEMPT_AT + " = ? WHERE " + COLUMN_ID + " = ?",
+                new Object[]{nextAttemptAt, id});
+    }
+
+    /**
+     * Returns an entry that was not attempted to the queue, without counting an attempt.
+     */
+    public void postpone(long id, long nextAttemptAt) {
+        ContentValues values = new ContentValues();
+        values.put(COLUMN_STATE, STATE_PENDING);
+        values.put(COLUMN_NEXT_ATTEMPT_AT, nextAttemptAt);
+        getWritableDatabase().update(TABLE, values, COLUMN_ID + " = ?", new String[]{String.valueOf(id)});
+    }
+
+    /**
+     * Makes every pending entry for {@code channels} due at {@code now}, including those waiting
+     * out a retry delay, so they go out together.
+     *
+     * @return The number of entries made due.
+     */
+    public int makeDue(@NonNull Collection<Channel> channels, long now) {
+        ContentValues values = new ContentValues();
+        values.put(COLUMN_NEXT_ATTEMPT_AT, now);
+        return getWritableDatabase().update(TABLE, values,
+                COLUMN_STATE + " = " + STATE_PENDING + " AND " + COLUMN_NEXT_ATTEMPT_AT + " > ?" + channelFilter(channels),
+                new String[]{String.valueOf(now)});
+    }
+
+    /**
+     * Returns every claimed entry to the queue. Called once per process, before the first drain,
+     * so that entries whose delivery was interrupted by process death are picked up again.
+     *
+     * @return The number of entries released.
+     */
+    public int releaseClaims() {
+        ContentValues values = new ContentValues();
+        values.put(COLUMN_STATE, STATE_PENDING);
+        return getWritableDatabase().update(TABLE, values, COLUMN_STATE + " = " + STATE_CLAIMED, null);
+    }
+
+    /**
+     * @return The number of entries waiting for delivery, including claimed ones.
+     */
+    public long count() {
+        return DatabaseUtils.queryNumEntries(getReadableDatabase(), TABLE);
+    }
+
+    /**
+     * @param channels The channels to look at, {@code null} for all.
+     * @return The earliest time a pending entry becomes due, or {@code -1} if nothing is pending.
+     */
+    public long nextDueTime(@Nullable Collection<Channel> channels) {
+        try (Cursor cursor = getReadableDatabase().rawQuery("SELECT MIN(" + COLUMN_NEXT_ATTEMPT_AT + ") FROM " + TABLE
+                + " WHERE " + COLUMN_STATE + " = " + STATE_PENDING + channelFilter(channels), null)) {
+            if (cursor.moveToFirst() && !cursor.isNull(0)) {
+                return cursor.getLong(0);
+            }
+            return -1;
+        }
+    }
+}
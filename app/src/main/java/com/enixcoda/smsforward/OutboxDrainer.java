@@ -0,0 +1,488 @@
+package com.enixcoda.smsforward;
+
+import android.content.Context;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Delivers entries from the {@link OutboxDatabase} through the {@link ForwardingEngine}.
+ * <p>
+ * Entries are claimed in batches on a single background thread and handed to the engine, at most
+ * {@link #MAX_IN_FLIGHT} at a time. Each completed delivery triggers another pass, which claims
+ * more entries as capacity frees up. Channels with coalescing enabled collect their entries in a
+ * {@link BurstCoalescer} first and are delivered as one request per window. Delivered entries are
+ * removed. Failed entries are put back for as long as the {@link RetryPolicy} allows, and entries
+ * for a destination whose {@link CircuitBreaker} is open are postponed without being attempted.
+ * Requests are delayed to stay within the destination's {@link RateLimiter}. How each request
+ * went is fed back to the engine's concurrency limit and the coalescer's batch limit of its
+ * channel, see {@link AdaptiveLimit}.
+ * <p>
+ * Urgent entries take a separate path: every pass claims them first, whatever is in flight, and
+ * they skip coalescing, go to the engine's urgent lane and borrow from the rate limit instead of
+ * waiting for it.
+ * <p>
+ * While the {@link NetworkMonitor} reports no connection, only entries for channels that don't
+ * {@link ForwardChannel#needsNetwork() need the network} are claimed, and sends that fail for lack
+ * of a connection are postponed without counting an attempt. The held back entries are delivered
+ * together by the {@link BacklogWorker} once the device is connected again.
+ * <p>
+ * Once every channel is done with a message, its time across all of them and whether all of them
+ * delivered it go to the {@link Metrics}. These and every attempt are recorded in the
+ * {@link HistoryDatabase}, unless the history is disabled.
+ * <p>
+ * There is no shutdown: Android kills the process without notice. Entries stay claimed in the
+ * outbox until their delivery is recorded, and the first pass of the next process releases the
+ * claims of the entries that were being delivered, see {@link OutboxDatabase#releaseClaims()}.
+ */
+public class OutboxDrainer {
+    private static final String TAG = "OutboxDrainer";
+
+    static final int BATCH_SIZE = 50;
+    static final int MAX_IN_FLIGHT = 2 * BATCH_SIZE;
+    /** Urgent entries claimed per pass regardless of {@link #MAX_IN_FLIGHT}. */
+    static final int URGENT_BATCH_SIZE = 10;
+    /** Longer waits for a rate limit postpone the entries in the outbox instead of on a timer. */
+    static final long MAX_RATE_LIMIT_WAIT_MS = 2_000;
+    private static final long IDLE_THREAD_TIMEOUT_SECONDS = 30;
+
+    private static volatile OutboxDrainer instance;
+
+    private final OutboxDatabase database;
+    private final HistoryDatabase history;
+    private final Context context;
+    private final NetworkMonitor networkMonitor;
+    /** The channels that can deliver while offline. */
+    private final Set<Channel> offlineChannels = EnumSet.noneOf(Channel.class);
+    private final Set<Channel> networkChannels = EnumSet.noneOf(Channel.class);
+    private final ForwardingEngine engine = ForwardingEngine.getInstance();
+    private final ScheduledExecutorService executor = newExecutor();
+    private final BurstCoalescer coalescer = new BurstCoalescer(executor, this::dispatch);
+
+    private boolean claimsReleased = false;
+    /** Whether the {@link BacklogWorker} is scheduled for held back entries. */
+    private volatile boolean backlogScheduled = false;
+    /** Whether a drain pass is queued to run as soon as the executor is free. Guarded by {@code this}. */
+    private boolean drainQueued = false;
+    private ScheduledFuture<?> scheduledDrain;
+    /** Deliveries waiting on {@link #executor} for their rate limit tokens. */
+    private final AtomicInteger rateLimited = new AtomicInteger();
+
+    public static OutboxDrainer getInstance(Context context) {
+        if (instance == null) {
+            synchronized (OutboxDrainer.class) {
+                if (instance == null) {
+                    instance = new OutboxDrainer(context.getApplicationContext());
+                }
+            }
+        }
+        return instance;
+    }
+
+    private OutboxDrainer(Context context) {
+        this.database = OutboxDatabase.getInstance(context);
+        this.history = HistoryDatabase.getInstance(context);
+        this.context = context;
+        for (ForwardChannel forwardChannel : ForwardChannels.all()) {
+            (forwardChannel.needsNetwork() ? networkChannels : offlineChannels).add(forwardChannel.getChannel());
+        }
+        this.networkMonitor = NetworkMonitor.getInstance(context);
+        networkMonitor.addListener(online -> {
+            if (online) resumeNetworkChannels();
+        });
+    }
+
+    /**
+     * @return The drain thread, which exits when no pass or retry is scheduled, like the engine's.
+     */
+    private static ScheduledExecutorService newExecutor() {
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, TAG);
+            thread.setPriority(Thread.NORM_PRIORITY - 1);
+            return thread;
+        });
+        executor.setKeepAliveTime(IDLE_THREAD_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        executor.allowCoreThreadTimeOut(true);
+        executor.setRemoveOnCancelPolicy(true);
+        return executor;
+    }
+
+    /**
+     * Persists the entries and starts draining them.
+     */
+    public void enqueue(@NonNull List<OutboxEntry> entries) {
+        database.enqueue(entries);
+        requestDrain();
+    }
+
+    /**
+     * Makes the entries held back while offline due now and starts delivering them.
+     */
+    public void resumeNetworkChannels() {
+        backlogScheduled = false;
+        int resumed = database.makeDue(networkChannels, System.currentTimeMillis());
+        if (resumed > 0) {
+            Log.i(TAG, "resumeNetworkChannels: delivering " + resumed + " held back entries");
+        }
+        requestDrain();
+    }
+
+    /**
+     * @return Whether nothing is due, waiting to be coalesced or being delivered.
+     */
+    public boolean isBacklogDelivered() {
+        long nextDueTime = database.nextDueTime(null);
+        return (nextDueTime < 0 || nextDueTime > System.currentTimeMillis())
+                && coalescer.isEmpty() && engine.getInFlightCount() == 0 && rateLimited.get() == 0;
+    }
+
+    /**
+     * Starts a drain pass unless one is already queued to run immediately.
+     */
+    public synchronized void requestDrain() {
+        if (drainQueued) return;
+        drainQueued = true;
+        schedule(0);
+    }
+
+    private synchronized void scheduleRetry(long delayMs) {
+        // An immediate pass will reschedule retries itself once it finishes.
+        if (drainQueued) return;
+        schedule(delayMs);
+    }
+
+    private synchronized void schedule(long delayMs) {
+        if (scheduledDrain != null) {
+            scheduledDrain.cancel(false);
+        }
+        scheduledDrain = executor.schedule(this::drain, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    private void drain() {
+        synchronized (this) {
+            drainQueued = false;
+        }
+
+        if (!claimsReleased) {
+            int released = database.releaseClaims();
+            if (released > 0) {
+                Log.i(TAG, "drain: resuming " + released + " interrupted forwards");
+            }
+            claimsReleased = true;
+        }
+
+        // Offline, network channels are left in the outbox for the BacklogWorker.
+        Set<Channel> channels = networkMonitor.isOnline() ? null : offlineChannels;
+
+        // Urgent entries don't wait for capacity, the engine keeps slots free for them. Any
+        // beyond this batch are claimed by the next pass or first in the loop below.
+        for (OutboxEntry entry : database.claim(URGENT_BATCH_SIZE, System.currentTimeMillis(), true, channels)) {
+            dispatch(entry.channel, Collections.singletonList(entry));
+        }
+
+        CoalescingPreferences coalescingPreferences = ForwardingConfig.get(context).getCoalescing();
+        int capacity;
+        while ((capacity = MAX_IN_FLIGHT - engine.getInFlightCount()) > 0) {
+            List<OutboxEntry> batch = database.claim(Math.min(BATCH_SIZE, capacity), System.currentTimeMillis(), false, channels);
+            if (batch.isEmpty()) break;
+
+            for (OutboxEntry entry : batch) {
+                if (entry.urgent) {
+                    dispatch(entry.channel, Collections.singletonList(entry));
+                } else if (coalescingPreferences.isEnabled(entry.channel)) {
+                    coalescer.add(entry, coalescingPreferences.getWindowMs());
+                } else {
+                    dispatch(entry.channel, Collections.singletonList(entry));
+                }
+            }
+        }
+
+        // When the engine is full, completions trigger the next pass instead.
+        if (capacity <= 0) return;
+
+        long nextDueTime = database.nextDueTime(channels);
+        if (nextDueTime >= 0) {
+            scheduleRetry(Math.max(0, nextDueTime - System.currentTimeMillis()));
+        }
+        if (channels != null && !backlogScheduled && database.nextDueTime(networkChannels) >= 0) {
+            backlogScheduled = true;
+            BacklogWorker.schedule(context);
+        }
+    }
+
+    private void dispatch(Channel channel, List<OutboxEntry> entries) {
+        LatencyHistogram receiveToDispatch = Metrics.of(channel).receiveToDispatch;
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < entries.size(); i++) {
+            receiveToDispatch.record(now - entries.get(i).receivedAt);
+        }
+
+        // Rejected only while shutting down, the claims are released by the next process.
+        // Urgent entries are always dispatched alone.
+        engine.submit(channel, () -> deliver(channel, entries, false), entries.get(0).urgent);
+    }
+
+    /**
+     * @param tokensTaken Whether the rate limit tokens for the request were taken already.
+     */
+    private void deliver(Channel channel, List<OutboxEntry> entries, boolean tokensTaken) {
+        try {
+            attemptDelivery(channel, entries, tokensTaken);
+        } finally {
+            requestDrain();
+        }
+    }
+
+    private void attemptDelivery(Channel channel, List<OutboxEntry> entries, boolean tokensTaken) {
+        ForwardingConfig config = ForwardingConfig.get(context);
+        ForwardChannel forwardChannel = ForwardChannels.get(channel);
+        if (!forwardChannel.isConfigured(config)) {
+            Log.d(TAG, "deliver: " + channel + " disabled, dropping " + entries.size() + " entries");
+            boolean recordHistory = config.getHistory().isEnabled();
+            if (recordHistory) {
+                history.record(entries, HistoryDatabase.STATUS_DROPPED, 0, ForwardException.NO_STATUS, null);
+            }
+            finish(entries, false, recordHistory);
+            return;
+        }
+
+        if (forwardChannel.needsNetwork() && !networkMonitor.isOnline()) {
+            holdBack(entries);
+            return;
+        }
+
+        // null if the channel keeps its own, it throws CircuitOpenException when they are all open
+        CircuitBreaker breaker = forwardChannel.breakerOf(config);
+        // a token taken for a request the breaker rejects would hold back the next ones for nothing
+        if (breaker != null && breaker.isRejecting()) {
+            postpone(channel, entries, breaker.getRetryAt());
+            return;
+        }
+        // before allowRequest(), which expects an outcome once it lets a trial request through
+        if (!tokensTaken && !takeRateLimit(forwardChannel, config, entries)) {
+            return;
+        }
+        if (breaker != null && !breaker.allowRequest()) {
+            postpone(channel, entries, breaker.getRetryAt());
+            return;
+        }
+
+        boolean recordHistory = config.getHistory().isEnabled();
+        long startedAt = System.currentTimeMillis();
+        // the breaker must hear back even if an Error escapes, or a trial request wedges it half-open
+        boolean outcomeRecorded = breaker == null;
+        try {
+            int statusCode = Forwarder.deliver(channel, entries, config);
+            report(breaker, true);
+            outcomeRecorded = true;
+
+            Metrics.ChannelMetrics metrics = Metrics.of(channel);
+            long deliveredAt = System.currentTimeMillis();
+            recordLatency(channel, entries, startedAt, deliveredAt - startedAt);
+            if (recordHistory) {
+                history.record(entries, HistoryDatabase.STATUS_DELIVERED, deliveredAt - startedAt,
+                        statusCode, null);
+            }
+            metrics.delivered.add(entries.size());
+            for (OutboxEntry entry : entries) {
+                metrics.endToEnd.record(deliveredAt - entry.receivedAt);
+                if (entry.urgent) metrics.urgentEndToEnd.record(deliveredAt - entry.receivedAt);
+            }
+            finish(entries, true, recordHistory);
+        } catch (Exception e) {
+            if (forwardChannel.needsNetwork() && !networkMonitor.isOnline()) {
+                // lost the connection, not the destination's fault, but a trial request must
+                // still report back
+                report(breaker, true);
+                outcomeRecorded = true;
+                holdBack(entries);
+                return;
+            }
+            if (e instanceof CircuitOpenException) {
+                // nothing was sent, the destinations that are left have their own breakers
+                report(breaker, true);
+                outcomeRecorded = true;
+                postpone(channel, entries, ((CircuitOpenException) e).getRetryAt());
+                return;
+            }
+
+            long latencyMs = System.currentTimeMillis() - startedAt;
+            int statusCode = e instanceof ForwardException
+                    ? ((ForwardException) e).getStatusCode() : ForwardException.NO_STATUS;
+
+            Metrics.of(channel).failed.increment();
+            if (AdaptiveLimit.isOverload(e)) {
+                recordOverload(channel, entries, startedAt);
+            }
+            report(breaker, !RetryPolicy.isRetryable(e));
+            outcomeRecorded = true;
+
+            List<OutboxEntry> givenUp = new ArrayList<>();
+            for (OutboxEntry entry : entries) {
+                int attempts = entry.attempts + 1;
+                long delay = RetryPolicy.nextDelayMs(attempts, e);
+                if (delay == RetryPolicy.GIVE_UP) {
+                    Log.e(TAG, "deliver: giving up on " + entry + " after " + attempts + " attempts", e);
+                    Metrics.of(channel).givenUp.increment();
+                    givenUp.add(entry);
+                } else {
+                    Log.w(TAG, "deliver: " + entry + " failed, retrying in " + delay + "ms: " + e);
+                    database.markFailed(entry.id, System.currentTimeMillis() + delay);
+                }
+                if (recordHistory) {
+                    history.record(Collections.singletonList(entry),
+                            delay == RetryPolicy.GIVE_UP ? HistoryDatabase.STATUS_GIVEN_UP : HistoryDatabase.STATUS_FAILED,
+                            latencyMs, statusCode, e);
+                }
+            }
+            if (!givenUp.isEmpty()) {
+                finish(givenUp, false, recordHistory);
+            }
+        } finally {
+            if (!outcomeRecorded) {
+                report(breaker, false);
+            }
+        }
+    }
+
+    /**
+     * Removes entries their channel is done with. For the messages whose other channels are done
+     * too, records how long they took across all channels and whether all of them delivered.
+     *
+     * @param delivered Whether the entries reached their channel.
+     */
+    private void finish(List<OutboxEntry> entries, boolean delivered, boolean recordHistory) {
+        int[] undelivered = database.finish(entries, delivered);
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < undelivered.length; i++) {
+            if (undelivered[i] == OutboxDatabase.MESSAGE_PENDING) continue;
+            OutboxEntry entry = entries.get(i);
+            Metrics.recordMessageDone(now - entry.receivedAt, undelivered[i]);
+            if (recordHistory) {
+                history.recordDone(entry, now, undelivered[i]);
+            }
+        }
+    }
+
+    /**
+     * Tells the channel's breaker how the request went, if the drainer keeps one for it.
+     *
+     * @param answered Whether the destination answered, even if it rejected the request.
+     */
+    private static void report(@Nullable CircuitBreaker breaker, boolean answered) {
+        if (breaker == null) return;
+        if (answered) {
+            breaker.recordSuccess();
+        } else {
+            breaker.recordFailure();
+        }
+    }
+
+    /**
+     * Puts entries back without counting an attempt, for a destination whose breaker is open.
+     */
+    private void postpone(Channel channel, List<OutboxEntry> entries, long retryAt) {
+        Log.d(TAG, "deliver: " + channel + " circuit open, postponing " + entries.size() + " entries");
+        Metrics.of(channel).postponed.add(entries.size());
+        for (OutboxEntry entry : entries) {
+            database.postpone(entry.id, retryAt);
+        }
+    }
+
+    /**
+     * Lets the channel's limits grow if the request was fast. Only batches of several entries
+     * tell anything about the batch size.
+     */
+    private void recordLatency(Channel channel, List<OutboxEntry> entries, long startedAt, long latencyMs) {
+        engine.getConcurrencyLimit(channel).onSuccess(startedAt, latencyMs, engine.getRunningCount(channel));
+        if (entries.size() > 1) {
+            coalescer.getBatchLimit(channel).onSuccess(startedAt, latencyMs / entries.size(), entries.size());
+        }
+    }
+
+    private void recordOverload(Channel channel, List<OutboxEntry> entries, long startedAt) {
+        Log.d(TAG, "deliver: " + channel + " overloaded, lowering its limits");
+        engine.getConcurrencyLimit(channel).onOverload(startedAt);
+        if (entries.size() > 1) {
+            coalescer.getBatchLimit(channel).onOverload(startedAt);
+        }
+    }
+
+    /**
+     * @return The current limit on the entries in one batch of {@code channel}, for display.
+     */
+    public int getBatchLimit(@NonNull Channel channel) {
+        return coalescer.getBatchLimit(channel).get();
+    }
+
+    /**
+     * Returns entries to the outbox without counting an attempt, until the device is online again.
+     */
+    private void holdBack(List<OutboxEntry> entries) {
+        Log.d(TAG, "deliver: offline, holding back " + entries.size() + " entries");
+        for (OutboxEntry entry : entries) {
+            database.postpone(entry.id, System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Takes a token from each of the channel's rate limiters. If one only becomes available later,
+     * the delivery is handed back to the engine on a timer once it does, so the wait does not hold
+     * one of the channel's threads. If that would take longer than {@link #MAX_RATE_LIMIT_WAIT_MS},
+     * no token is taken and the entries are postponed in the outbox instead. Urgent entries borrow a
+     * token and are sent right away.
+     *
+     * @return Whether the request may be sent now.
+     */
+    private boolean takeRateLimit(ForwardChannel forwardChannel, ForwardingConfig config, List<OutboxEntry> entries) {
+        List<RateLimiter> limiters = forwardChannel.rateLimitersOf(config);
+        if (limiters.isEmpty()) return true;
+
+        if (entries.get(0).urgent) {
+            for (RateLimiter limiter : limiters) {
+                limiter.borrow();
+            }
+            return true;
+        }
+
+        long waitMs = 0;
+        for (RateLimiter limiter : limiters) {
+            waitMs = Math.max(waitMs, limiter.peekWaitMs());
+        }
+        if (waitMs > MAX_RATE_LIMIT_WAIT_MS) {
+            Log.d(TAG, "deliver: " + forwardChannel.getChannel() + " rate limited, postponing " + entries.size() + " entries by " + waitMs + "ms");
+            Metrics.of(forwardChannel.getChannel()).postponed.add(entries.size());
+            for (OutboxEntry entry : entries) {
+                database.postpone(entry.id, System.currentTimeMillis() + waitMs);
+            }
+            return false;
+        }
+
+        waitMs = 0;
+        for (RateLimiter limiter : limiters) {
+            waitMs = Math.max(waitMs, limiter.reserve());
+        }
+        if (waitMs == 0) return true;
+
+        // still claimed, the tokens are reserved for the entries when the timer fires
+        Channel channel = forwardChannel.getChannel();
+        rateLimited.incrementAndGet();
+        executor.schedule(() -> {
+            rateLimited.decrementAndGet();
+            engine.submit(channel, () -> deliver(channel, entries, true), false);
+        }, waitMs, TimeUnit.MILLISECONDS);
+        return false;
+    }
+}
@@ -0,0 +1,68 @@
+package com.enixcoda.smsforward;
+
+import androidx.annotation.NonNull;
+
+/**
+ * A single pending forward: one received message destined for one {@link Channel}.
+ */
+public class OutboxEntry {
+    /** Row id in the outbox, or {@code 0} for entries that have not been stored yet. */
+    final long id;
+    @NonNull final Channel channel;
+    @NonNull final String senderNumber;
+    @NonNull final String message;
+    final long receivedAt;
+    /** See {@link IncomingMessage#simSlot}. */
+    final int simSlot;
+    /** Whether the entry overtakes others, see {@link UrgencyClassifier}. */
+    final boolean urgent;
+    final int attempts;
+
+    OutboxEntry(long id, @NonNull Channel channel, @NonNull String senderNumber, @NonNull String message, long receivedAt,
+                int simSlot, boolean urgent, int attempts) {
+        this.id = id;
+        this.channel = channel;
+        this.senderNumber = senderNumber;
+        this.message = message;
+        this.receivedAt = receivedAt;
+        this.simSlot = simSlot;
+        this.urgent = urgent;
+        this.attempts = attempts;
+    }
+
+    /**
+     * Creates a new, not yet persisted, entry.
+     */
+    public static OutboxEntry create(@NonNull Channel channel, @NonNull String senderNumber, @NonNull String message, long receivedAt,
+                                     int simSlot, boolean urgent) {
+        return new OutboxEntry(0, channel, senderNumber, message, receivedAt, simSlot, urgent, 0);
+    }
+
+    /**
+     * Creates a new, not yet persisted, entry that is not urgent.
+     */
+    public static OutboxEntry create(@NonNull Channel channel, @NonNull String senderNumber, @NonNull String message, long receivedAt,
+                                     int simSlot) {
+        return create(channel, senderNumber, message, receivedAt, simSlot, false);
+    }
+
+    /**
+     * Creates a new, not yet persisted, entry for a message from an unknown SIM slot.
+     */
+    public static OutboxEntry create(@NonNull Channel channel, @NonNull String senderNumber, @NonNull String message, long receivedAt) {
+        return create(channel, senderNumber, message, receivedAt, IncomingMessage.UNKNOWN_SIM_SLOT);
+    }
+
+    /**
+     * @return An id for the received message, the same on every channel and every attempt.
+     */
+    long getMessageId() {
+        return Fingerprint.of(senderNumber, message, receivedAt);
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return "OutboxEntry{id=" + id + ", channel=" + channel + (urgent ? ", urgent" : "") + ", attempts=" + attempts + "}";
+    }
+}
@@ -31,7 +31,8 @@ class PreferencesLoader(private val context: Context) {
     fun loadWebPreferences(): WebPreferences {
         return WebPreferences(
             enableWeb = sharedPreferences.getBoolean(context.getString(R.string.key_enable_web), false),
-            targetWeb = sharedPreferences.getString(context.getString(R.string.key_target_web), "") ?: ""
+            endpoints = WebEndpoints.parse(sharedPreferences.getString(context.getString(R.string.key_target_web), "") ?: ""),
+            gzip = sharedPreferences.getBoolean(context.getString(R.string.key_web_gzip), false)
         )
     }
 
@@ -91,7 +92,83 @@ class PreferencesLoader(private val context: Context) {
             smtpUser = sharedPreferences.getString(context.getString(R.string.key_smtp_user), "") ?: "",
             smtpPassword = sharedPreferences.getString(context.getString(R.string.key_smtp_password), "") ?: "",
             fromEmail = sharedPreferences.getString(context.getString(R.string.key_from_email), "") ?: "",
-            toEmail = sharedPreferences.getString(context.getString(R.string.key_to_email), "") ?: ""
+            toEmail = sharedPreferences.getString(context.getString(R.string.key_to_email), "") ?: "",
+            perMinute = positiveInt(R.string.key_email_per_minute) ?: EmailPreferences.DEFAULT_PER_MINUTE,
+            burst = positiveInt(R.string.key_email_burst) ?: EmailPreferences.DEFAULT_BURST
         )
     }
-}
\ No newline at end of file
+
+    /**
+     * @return The number entered for [keyRes], or `null` if it is empty or not a positive number.
+     */
+    private fun positiveInt(keyRes: Int): Int? {
+        val value = sharedPreferences.getString(context.getString(keyRes), "") ?: ""
+        return value.toIntOrNull()?.takeIf { it > 0 }
+    }
+
+    /**
+     * Loads the burst coalescing preferences from the shared preferences.
+     *
+     * @return An instance of [CoalescingPreferences] containing the loaded preferences.
+     */
+    fun loadCoalescingPreferences(): CoalescingPreferences {
+        val window = sharedPreferences.getString(context.getString(R.string.key_coalesce_window), "") ?: ""
+        return CoalescingPreferences(
+            windowMs = window.toLongOrNull() ?: CoalescingPreferences.DEFAULT_WINDOW_MS,
+            coalesceTelegram = sharedPreferences.getBoolean(context.getString(R.string.key_coalesce_telegram), false),
+            coalesceRocketChat = sharedPreferences.getBoolean(context.getString(R.string.key_coalesce_rocket_chat), false),
+            coalesceWeb = sharedPreferences.getBoolean(context.getString(R.string.key_coalesce_web), false),
+            coalesceEmail = sharedPreferences.getBoolean(context.getString(R.string.key_coalesce_email), false)
+        )
+    }
+
+    /**
+     * Loads the duplicate suppression preferences from the shared preferences.
+     *
+     * @return An instance of [DuplicatePreferences] containing the loaded preferences.
+     */
+    fun loadDuplicatePreferences(): DuplicatePreferences {
+        val window = sharedPreferences.getString(context.getString(R.string.key_dedup_window), "") ?: ""
+        val windowSeconds = window.toLongOrNull() ?: DuplicatePreferences.DEFAULT_WINDOW_SECONDS
+        return DuplicatePreferences(
+            windowMs = windowSeconds * 1000,
+            persist = sharedPreferences.getBoolean(context.getString(R.string.key_dedup_persist), false)
+        )
+    }
+
+    /**
+     * Loads the delivery history preferences from the shared preferences.
+     *
+     * @return An instance of [HistoryPreferences] containing the loaded preferences.
+     */
+    fun loadHistoryPreferences(): HistoryPreferences {
+        val days = sharedPreferences.getString(context.getString(R.string.key_history_days), "") ?: ""
+        val maxMessages = sharedPreferences.getString(context.getString(R.string.key_history_max_messages), "") ?: ""
+        return HistoryPreferences(
+            retentionDays = days.toLongOrNull() ?: HistoryPreferences.DEFAULT_RETENTION_DAYS,
+            maxMessages = maxMessages.toLongOrNull() ?: HistoryPreferences.DEFAULT_MAX_MESSAGES
+        )
+    }
+
+    /**
+     * Loads the routing rules from the shared preferences.
+     *
+     * @return The rules as entered, compiled by [RoutingRules.compile].
+     */
+    fun loadRoutingRules(): String {
+        return sharedPreferences.getString(context.getString(R.string.key_routing_rules), "") ?: ""
+    }
+
+    /**
+     * Loads which messages are urgent from the shared preferences.
+     *
+     * @return An instance of [UrgencyClassifier] for the loaded preferences.
+     */
+    fun loadUrgencyClassifier(): UrgencyClassifier {
+        return UrgencyClassifier.of(
+            sharedPreferences.getBoolean(context.getString(R.string.key_urgent_otp), true),
+            sharedPreferences.getString(context.getString(R.string.key_urgent_senders), "") ?: "",
+            sharedPreferences.getString(context.getString(R.string.key_urgent_keywords), "") ?: ""
+        )
+    }
+}
@@ -0,0 +1,164 @@
+package com.enixcoda.smsforward;
+
+import androidx.annotation.NonNull;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A token bucket that keeps forwards within the rate a destination accepts.
+ * <p>
+ * The bucket holds up to {@code burst} tokens and refills at {@code ratePerSecond}. Rather than
+ * counting tokens it stores the single point in time at which the bucket will be full again, so
+ * taking a token is one compare-and-set and callers never block each other.
+ * <p>
+ * Sending over the limit only collects 429 responses, so callers ask how long to wait and delay
+ * the request instead.
+ * <p>
+ * Limiters are shared by key. Past {@link #MAX_LIMITERS} keys, limiters whose bucket is full are
+ * dropped, which loses nothing: a new limiter starts with a full bucket too.
+ */
+public class RateLimiter {
+    /** Far more than the destinations configured at once, keys only pile up as settings change. */
+    static final int MAX_LIMITERS = 64;
+
+    private static final ConcurrentHashMap<String, RateLimiter> limiters = new ConcurrentHashMap<>();
+
+    private final double ratePerSecond;
+    private final int burst;
+    private final long intervalNanos;
+    private final long capacityNanos;
+    /** {@link System#nanoTime()} at which the bucket is full again. */
+    private final AtomicLong fullAt;
+
+    private RateLimiter(double ratePerSecond, int burst) {
+        this.ratePerSecond = ratePerSecond;
+        this.burst = burst;
+        intervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / ratePerSecond);
+        capacityNanos = intervalNanos * burst;
+        fullAt = new AtomicLong(System.nanoTime());
+    }
+
+    /**
+     * @param key           Identifies the limited target, e.g. channel and chat id. Keys are
+     *                      exported with the metrics, secrets must be {@link #redact redacted}.
+     * @param ratePerSecond Sustained number of requests per second.
+     * @param burst         Number of requests that may be sent at once after an idle period.
+     * @return The limiter shared by every request to {@code key}. A different rate or burst than
+     * before, e.g. after the settings changed, replaces it with a full one.
+     */
+    @NonNull
+    public static RateLimiter forKey(@NonNull String key, double ratePerSecond, int burst) {
+        RateLimiter limiter = limiters.compute(key, (k, current) ->
+                current != null && current.ratePerSecond == ratePerSecond && current.burst == burst
+                        ? current : new RateLimiter(ratePerSecond, burst));
+        if (limiters.size() > MAX_LIMITERS) {
+            evictFull(key);
+        }
+        return limiter;
+    }
+
+    /**
+     * Drops the limiters whose bucket is full, other than {@code keep}'s.
+     */
+    private static void evictFull(String keep) {
+        for (Map.Entry<String, RateLimiter> entry : limiters.entrySet()) {
+            if (!entry.getKey().equals(keep) && entry.getValue().isFull()) {
+                limiters.remove(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * @return A short digest of {@code secret}, to tell limiters apart by it without revealing it.
+     */
+    @NonNull
+    public static String redact(@NonNull String secret) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(secret.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder();
+            for (int i = 0; i < 4; i++) {
+                hex.append(String.format("%02x", digest[i]));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform has SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return The current token level of every limiter, by key.
+     */
+    @NonNull
+    public static Map<String, Double> getTokenLevels() {
+        Map<String, Double> levels = new TreeMap<>();
+        for (Map.Entry<String, RateLimiter> entry : limiters.entrySet()) {
+            levels.put(entry.getKey(), entry.getValue().getAvailableTokens());
+        }
+        return levels;
+    }
+
+    /**
+     * @return How long until a token is available, without taking one.
+     */
+    public long peekWaitMs() {
+        long now = System.nanoTime();
+        return toMillis(waitNanos(Math.max(fullAt.get(), now) + intervalNanos, now));
+    }
+
+    /**
+     * Takes a token, possibly one that only becomes available in the future.
+     *
+     * @return How long the caller must wait before sending, {@code 0} to send right away.
+     */
+    public long reserve() {
+        while (true) {
+            long now = System.nanoTime();
+            long current = fullAt.get();
+            long next = Math.max(current, now) + intervalNanos;
+            if (fullAt.compareAndSet(current, next)) {
+                return toMillis(waitNanos(next, now));
+            }
+        }
+    }
+
+    /**
+     * Takes a token right away, even if there is none. The requests after it wait that much longer,
+     * so urgent requests can go first without raising the rate over time.
+     */
+    public void borrow() {
+        while (true) {
+            long now = System.nanoTime();
+            long current = fullAt.get();
+            if (fullAt.compareAndSet(current, Math.max(current, now) + intervalNanos)) return;
+        }
+    }
+
+    /**
+     * @return The number of requests that could be sent right now.
+     */
+    public double getAvailableTokens() {
+        long used = Math.max(0, fullAt.get() - System.nanoTime());
+        return Math.max(0, capacityNanos - used) / (double) intervalNanos;
+    }
+
+    private boolean isFull() {
+        return fullAt.get() <= System.nanoTime();
+    }
+
+    private long waitNanos(long fullAfterTaking, long now) {
+        return Math.max(0, fullAfterTaking - now - capacityNanos);
+    }
+
+    private static long toMillis(long nanos) {
+        // round up, waking early would find the bucket still empty
+        return (nanos + 999_999) / 1_000_000;
+    }
+}
@@ -0,0 +1,70 @@
+package com.enixcoda.smsforward;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+
+import javax.mail.AuthenticationFailedException;
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+
+/**
+ * Decides whether and when a failed forward is attempted again.
+ * <p>
+ * Delays grow exponentially from {@link #INITIAL_DELAY_MS} up to {@link #MAX_DELAY_MS}. Half of
+ * each delay is randomised so that entries failing together, for example a whole burst hitting
+ * an outage, do not all come back at the same moment. A wait requested by the server always
+ * takes precedence.
+ */
+public final class RetryPolicy {
+    static final int MAX_ATTEMPTS = 10;
+    static final long INITIAL_DELAY_MS = 5_000;
+    static final long MAX_DELAY_MS = 30 * 60_000;
+
+    /** Returned by {@link #nextDelayMs} when the entry should be given up. */
+    static final long GIVE_UP = -1;
+
+    private RetryPolicy() {
+    }
+
+    /**
+     * @param attempts The number of attempts made so far, including the one that just failed.
+     * @param error    The reason the last attempt failed.
+     * @return How long to wait before the next attempt, or {@link #GIVE_UP}.
+     */
+    static long nextDelayMs(int attempts, @NonNull Throwable error) {
+        if (attempts >= MAX_ATTEMPTS || !isRetryable(error)) {
+            return GIVE_UP;
+        }
+
+        if (error instanceof ForwardException) {
+            long retryAfterMs = ((ForwardException) error).getRetryAfterMs();
+            if (retryAfterMs != ForwardException.NO_RETRY_AFTER) {
+                return retryAfterMs;
+            }
+        }
+
+        long delay = Math.min(MAX_DELAY_MS, INITIAL_DELAY_MS << Math.min(attempts - 1, 20));
+        return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+    }
+
+    /**
+     * Errors are retryable unless the same attempt is bound to fail again: rejected requests,
+     * bad credentials, rejected recipients and invalid configuration.
+     */
+    static boolean isRetryable(@NonNull Throwable error) {
+        if (error instanceof ForwardException) {
+            return ((ForwardException) error).isRetryable();
+        }
+        if (error instanceof SendFailedException || error instanceof AuthenticationFailedException) {
+            return false;
+        }
+        if (error instanceof IOException || error instanceof MessagingException) {
+            // connection failures and timeouts
+            return true;
+        }
+        // IllegalArgumentException for a malformed URL, SecurityException without SMS permission, ...
+        return false;
+    }
+}
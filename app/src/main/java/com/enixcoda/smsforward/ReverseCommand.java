@@ -0,0 +1,84 @@
+package com.enixcoda.smsforward;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A reply sent from the target number, asking to send an SMS on to other numbers:
+ * <pre>
+ * To +15551234567, +447700900123:
+ * message body
+ * </pre>
+ * The header may end with {@code \n} or {@code \r\n}.
+ * Parsed by a single forward scan, so the cost is linear in the length of the header and the
+ * body is never looked at.
+ */
+public final class ReverseCommand {
+    private static final String PREFIX = "To ";
+
+    final List<String> recipients;
+    final String body;
+
+    private ReverseCommand(List<String> recipients, String body) {
+        this.recipients = Collections.unmodifiableList(recipients);
+        this.body = body;
+    }
+
+    /**
+     * @return The command in {@code message}, or {@code null} if it is not a well-formed command
+     * with at least one recipient and a non-empty body.
+     */
+    @Nullable
+    public static ReverseCommand parse(@NonNull String message) {
+        if (!message.startsWith(PREFIX)) return null;
+
+        List<String> recipients = new ArrayList<>(1);
+        int length = message.length();
+        int i = PREFIX.length();
+        while (true) {
+            i = skipSpaces(message, i);
+
+            int start = i;
+            if (i < length && message.charAt(i) == '+') i++;
+            int digitsStart = i;
+            while (i < length && isDigit(message.charAt(i))) i++;
+            if (i == digitsStart) return null;
+            recipients.add(message.substring(start, i));
+
+            i = skipSpaces(message, i);
+            if (i >= length) return null;
+
+            char separator = message.charAt(i++);
+            if (separator == ':') break;
+            if (separator != ',') return null;
+        }
+
+        // some phones end lines with CRLF, the body keeps its own line ends
+        if (i < length && message.charAt(i) == '\r') i++;
+        if (i >= length || message.charAt(i) != '\n') return null;
+        String body = message.substring(i + 1);
+        if (body.isEmpty()) return null;
+
+        return new ReverseCommand(recipients, body);
+    }
+
+    private static int skipSpaces(String message, int i) {
+        while (i < message.length() && message.charAt(i) == ' ') i++;
+        return i;
+    }
+
+    private static boolean isDigit(char c) {
+        // only ASCII digits, Character.isDigit also accepts other scripts
+        return c >= '0' && c <= '9';
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return "ReverseCommand{to=" + recipients + ", " + body.length() + " chars}";
+    }
+}
@@ -0,0 +1,54 @@
+package com.enixcoda.smsforward;
+
+import androidx.annotation.NonNull;
+
+import java.util.List;
+
+/**
+ * Forwards to a Rocket.Chat channel.
+ */
+class RocketChatChannel implements ForwardChannel {
+    @NonNull
+    @Override
+    public Channel getChannel() {
+        return Channel.ROCKET_CHAT;
+    }
+
+    @Override
+    public boolean isConfigured(@NonNull ForwardingConfig config) {
+        return config.getRocketChat().isValid();
+    }
+
+    @NonNull
+    @Override
+    public String destinationOf(@NonNull ForwardingConfig config) {
+        return getChannel() + ":" + config.getRocketChat().getRocketChatBaseUrl();
+    }
+
+    @Override
+    public void warmUp(@NonNull ForwardingConfig config) {
+        SharedHttpClient.warmUp();
+    }
+
+    @Override
+    public int send(@NonNull OutboxEntry entry, @NonNull ForwardingConfig config) throws Exception {
+        RocketChatPreferences rocketChatPreferences = config.getRocketChat();
+        return new ForwardTaskForRocketChat(rocketChatPreferences.getRocketChatBaseUrl(), rocketChatPreferences.getRocketChatUserId(), rocketChatPreferences.getRocketChatToken(), rocketChatPreferences.getRocketChatChannel(), entry.senderNumber, entry.message).send();
+    }
+
+    @Override
+    public boolean supportsBatch() {
+        return true;
+    }
+
+    @Override
+    public int getMaxBatchLength() {
+        return ForwardTaskForRocketChat.MAX_TEXT_LENGTH;
+    }
+
+    @Override
+    public int sendBatch(@NonNull List<OutboxEntry> entries, @NonNull ForwardingConfig config) throws Exception {
+        RocketChatPreferences rocketChatPreferences = config.getRocketChat();
+        return ForwardTaskForRocketChat.forBatch(entries, rocketChatPreferences.getRocketChatBaseUrl(), rocketChatPreferences.getRocketChatUserId(), rocketChatPreferences.getRocketChatToken(), rocketChatPreferences.getRocketChatChannel()).send();
+    }
+}
@@ -0,0 +1,347 @@
+package com.enixcoda.smsforward;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Rules that narrow down the channels a message is forwarded to.
+ * <p>
+ * One rule per line, checked in order, the first match wins:
+ * <pre>
+ * from:BANK from:+1555 -> email, web
+ * keyword:code keyword:otp -> telegram
+ * keyword:unsubscribe -> drop
+ * </pre>
+ * {@code from:} matches senders starting with the prefix and {@code keyword:} bodies containing
+ * the word, both ignoring case. Conditions of the same kind are alternatives; a rule with both
+ * kinds needs one of each, and {@code *} matches every message. A message that no rule matches
+ * goes to every enabled channel. Lines starting with {@code #} are comments.
+ * <p>
+ * The rules are compiled into a trie of sender prefixes and an Aho-Corasick automaton of
+ * keywords, each state knowing the set of rules it satisfies. Matching is then one walk along the
+ * sender and one pass over the body, however many rules there are.
+ */
+public final class RoutingRules {
+    private static final String ARROW = "->";
+    private static final String FROM = "from:";
+    private static final String KEYWORD = "keyword:";
+    private static final String MATCH_ALL = "*";
+    private static final String DROP = "drop";
+
+    /**
+     * The action of one rule.
+     */
+    public static final class Rule {
+        /** Line of the rule in the source, starting at 1. */
+        final int line;
+        /** The channels to forward to, empty to drop the message. */
+        @NonNull final Set<Channel> channels;
+
+        private Rule(int line, @NonNull Set<Channel> channels) {
+            this.line = line;
+            this.channels = Collections.unmodifiableSet(channels);
+        }
+
+        boolean isDrop() {
+            return channels.isEmpty();
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            return "Rule{line=" + line + ", " + (isDrop() ? DROP : channels.toString()) + "}";
+        }
+    }
+
+    /** The text the rules were compiled from. */
+    @NonNull final String source;
+    @NonNull final List<Rule> rules;
+    /** One message per line that could not be parsed and was left out. */
+    @NonNull final List<String> errors;
+
+    /** Rules without a {@code from:} condition, as a bit set over {@link #rules}. */
+    private final long[] anySender;
+    /** Rules without a {@code keyword:} condition. */
+    private final long[] anyBody;
+    private final Automaton senders;
+    private final Automaton keywords;
+
+    private RoutingRules(String source, List<Rule> rules, List<String> errors, long[] anySender, long[] anyBody,
+                         Automaton senders, Automaton keywords) {
+        this.source = source;
+        this.rules = Collections.unmodifiableList(rules);
+        this.errors = Collections.unmodifiableList(errors);
+        this.anySender = anySender;
+        this.anyBody = anyBody;
+        this.senders = senders;
+        this.keywords = keywords;
+    }
+
+    /**
+     * Parses and compiles {@code source}. Lines that cannot be parsed are reported in
+     * {@link #errors} and skipped, the other rules still apply.
+     */
+    @NonNull
+    public static RoutingRules compile(@NonNull String source) {
+        List<Rule> rules = new ArrayList<>();
+        List<String> errors = new ArrayList<>();
+        Builder senders = new Builder();
+        Builder keywords = new Builder();
+        List<Boolean> hasSender = new ArrayList<>();
+        List<Boolean> hasKeyword = new ArrayList<>();
+
+        String[] lines = source.split("\n");
+        for (int i = 0; i < lines.length; i++) {
+            String line = lines[i].trim();
+            if (line.isEmpty() || line.startsWith("#")) continue;
+
+            int arrow = line.indexOf(ARROW);
+            if (arrow < 0) {
+                errors.add("line " + (i + 1) + ": missing " + ARROW);
+                continue;
+            }
+
+            List<String> fromPrefixes = new ArrayList<>();
+            List<String> keywordList = new ArrayList<>();
+            String error = parseConditions(line.substring(0, arrow), fromPrefixes, keywordList);
+            Set<Channel> channels = EnumSet.noneOf(Channel.class);
+            if (error == null) error = parseChannels(line.substring(arrow + ARROW.length()), channels);
+            if (error != null) {
+                errors.add("line " + (i + 1) + ": " + error);
+                continue;
+            }
+
+            int index = rules.size();
+            rules.add(new Rule(i + 1, channels));
+            for (String prefix : fromPrefixes) senders.add(prefix, index);
+            for (String keyword : keywordList) keywords.add(keyword, index);
+            hasSender.add(!fromPrefixes.isEmpty());
+            hasKeyword.add(!keywordList.isEmpty());
+        }
+
+        int words = (rules.size() + 63) / 64;
+        long[] anySender = new long[words];
+        long[] anyBody = new long[words];
+        for (int index = 0; index < rules.size(); index++) {
+            if (!hasSender.get(index)) anySender[index >>> 6] |= 1L << index;
+            if (!hasKeyword.get(index)) anyBody[index >>> 6] |= 1L << index;
+        }
+        return new RoutingRules(source, rules, errors, anySender, anyBody,
+                senders.build(words, false), keywords.build(words, true));
+    }
+
+    private static String parseConditions(String conditions, List<String> fromPrefixes, List<String> keywords) {
+        boolean matchAll = false;
+        for (String token : conditions.trim().split("\\s+")) {
+            String lower = token.toLowerCase(Locale.ROOT);
+            if (token.equals(MATCH_ALL)) {
+                matchAll = true;
+            } else if (lower.startsWith(FROM) && token.length() > FROM.length()) {
+                fromPrefixes.add(lower.substring(FROM.length()));
+            } else if (lower.startsWith(KEYWORD) && token.length() > KEYWORD.length()) {
+                keywords.add(lower.substring(KEYWORD.length()));
+            } else if (!token.isEmpty()) {
+                return "unknown condition \"" + token + "\"";
+            }
+        }
+        if (!matchAll && fromPrefixes.isEmpty() && keywords.isEmpty()) {
+            return "no condition, use " + MATCH_ALL + " to match every message";
+        }
+        return null;
+    }
+
+    private static String parseChannels(String action, Set<Channel> channels) {
+        String trimmed = action.trim();
+        if (trimmed.equalsIgnoreCase(DROP)) return null;
+
+        for (String name : trimmed.split(",")) {
+            try {
+                channels.add(Channel.valueOf(name.trim().toUpperCase(Locale.ROOT)));
+            } catch (IllegalArgumentException e) {
+                return "unknown channel \"" + name.trim() + "\"";
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return The first rule matching the message, or {@code null} if none does.
+     */
+    @Nullable
+    public Rule match(@NonNull String senderNumber, @NonNull String body) {
+        if (rules.isEmpty()) return null;
+
+        long[] senderMatches = anySender.clone();
+        senders.matchPrefixes(senderNumber, senderMatches);
+        long[] bodyMatches = anyBody.clone();
+        keywords.matchAll(body, bodyMatches);
+
+        for (int word = 0; word < senderMatches.length; word++) {
+            long both = senderMatches[word] & bodyMatches[word];
+            if (both != 0) {
+                return rules.get((word << 6) + Long.numberOfTrailingZeros(both));
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Collects patterns as a trie while the rules are parsed.
+     */
+    private static final class Builder {
+        private static final class Node {
+            final TreeMap<Character, Node> next = new TreeMap<>();
+            final List<Integer> rules = new ArrayList<>();
+        }
+
+        private final Node root = new Node();
+
+        void add(String pattern, int rule) {
+            Node node = root;
+            for (int i = 0; i < pattern.length(); i++) {
+                node = node.next.computeIfAbsent(pattern.charAt(i), c -> new Node());
+            }
+            node.rules.add(rule);
+        }
+
+        /**
+         * Flattens the trie into arrays, numbering states breadth first.
+         *
+         * @param failureLinks Whether to add Aho-Corasick failure links, so every state also
+         *                     reports the patterns ending in its longest proper suffix.
+         */
+        Automaton build(int words, boolean failureLinks) {
+            List<Node> nodes = new ArrayList<>();
+            Map<Node, Integer> ids = new IdentityHashMap<>();
+            ArrayDeque<Node> queue = new ArrayDeque<>();
+            queue.add(root);
+            ids.put(root, 0);
+            while (!queue.isEmpty()) {
+                Node node = queue.poll();
+                nodes.add(node);
+                for (Node child : node.next.values()) {
+                    ids.put(child, ids.size());
+                    queue.add(child);
+                }
+            }
+
+            int states = nodes.size();
+            char[][] labels = new char[states][];
+            int[][] targets = new int[states][];
+            long[][] outputs = new long[states][];
+            for (int state = 0; state < states; state++) {
+                Node node = nodes.get(state);
+                labels[state] = new char[node.next.size()];
+                targets[state] = new int[node.next.size()];
+                int i = 0;
+                for (Map.Entry<Character, Node> edge : node.next.entrySet()) {
+                    labels[state][i] = edge.getKey();
+                    targets[state][i] = ids.get(edge.getValue());
+                    i++;
+                }
+                if (!node.rules.isEmpty()) {
+                    outputs[state] = new long[words];
+                    for (int rule : node.rules) outputs[state][rule >>> 6] |= 1L << rule;
+                }
+            }
+
+            int[] fail = new int[states];
+            if (failureLinks) {
+                // breadth first, so the failure state of a parent is known before its children
+                for (int state = 0; state < states; state++) {
+                    for (int i = 0; i < labels[state].length; i++) {
+                        int child = targets[state][i];
+                        int target = 0;
+                        if (state != 0) {
+                            int f = fail[state];
+                            while (true) {
+                                int next = Automaton.step(labels, targets, f, labels[state][i]);
+                                if (next >= 0) {
+                                    target = next;
+                                    break;
+                                }
+                                if (f == 0) break;
+                                f = fail[f];
+                            }
+                        }
+                        fail[child] = target;
+                        if (outputs[target] != null) {
+                            if (outputs[child] == null) outputs[child] = new long[words];
+                            for (int w = 0; w < words; w++) outputs[child][w] |= outputs[target][w];
+                        }
+                    }
+                }
+            }
+            return new Automaton(labels, targets, fail, outputs);
+        }
+    }
+
+    /**
+     * A compiled trie: sorted edge labels per state, searched by bisection.
+     */
+    private static final class Automaton {
+        private final char[][] labels;
+        private final int[][] targets;
+        private final int[] fail;
+        /** Rules satisfied on reaching a state, {@code null} for none. */
+        private final long[][] outputs;
+
+        Automaton(char[][] labels, int[][] targets, int[] fail, long[][] outputs) {
+            this.labels = labels;
+            this.targets = targets;
+            this.fail = fail;
+            this.outputs = outputs;
+        }
+
+        static int step(char[][] labels, int[][] targets, int state, char c) {
+            int i = Arrays.binarySearch(labels[state], c);
+            return i >= 0 ? targets[state][i] : -1;
+        }
+
+        /**
+         * Adds the rules of every pattern that {@code text} starts with.
+         */
+        void matchPrefixes(String text, long[] matches) {
+            int state = 0;
+            for (int i = 0, length = text.length(); i < length && labels[state].length > 0; i++) {
+                state = step(labels, targets, state, Character.toLowerCase(text.charAt(i)));
+                if (state < 0) return;
+                or(matches, outputs[state]);
+            }
+        }
+
+        /**
+         * Adds the rules of every pattern that occurs anywhere in {@code text}.
+         */
+        void matchAll(String text, long[] matches) {
+            if (labels[0].length == 0) return;
+            int state = 0;
+            for (int i = 0, length = text.length(); i < length; i++) {
+                char c = Character.toLowerCase(text.charAt(i));
+                int next;
+                while ((next = step(labels, targets, state, c)) < 0 && state != 0) {
+                    state = fail[state];
+                }
+                state = next < 0 ? 0 : next;
+                or(matches, outputs[state]);
+            }
+        }
+
+        private static void or(long[] matches, long[] output) {
+            if (output == null) return;
+            for (int w = 0; w < matches.length; w++) matches[w] |= output[w];
+        }
+    }
+}
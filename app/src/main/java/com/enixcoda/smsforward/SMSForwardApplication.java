@@ -0,0 +1,24 @@
+package com.enixcoda.smsforward;
+
+import android.app.Application;
+
+/**
+ * Application entry point, starts the forwarding pipeline.
+ * <p>
+ * Nothing is stopped here: {@link #onTerminate()} only runs in emulated processes, a real process
+ * is killed. The pipeline's threads exit on their own when idle, and the next process picks up
+ * what a killed one left, see {@link OutboxDrainer}.
+ */
+public class SMSForwardApplication extends Application {
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        // Load the settings and start following changes before the first SMS arrives.
+        ForwardingConfig.get(this);
+        SmsSender.getInstance(this);
+        // Runs alongside the broadcast that started the process, if one did.
+        ChannelWarmUp.start(this);
+        // Messages a killed process had accepted but not queued yet.
+        SMSReceiver.resumeReceived(this);
+    }
+}
@@ -8,12 +8,83 @@ import android.telephony.SmsMessage;
 import android.util.Log;
 
 import androidx.annotation.Keep;
+import androidx.annotation.NonNull;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * BroadcastReceiver to handle incoming SMS messages and forward them via various methods.
  */
 @Keep
 public class SMSReceiver extends BroadcastReceiver {
+    /** Broadcasts kept in memory until the receive thread gets to them, later ones wait on disk. */
+    static final int RECEIVED_CAPACITY = 64;
+    private static final String SPILL_FILE_NAME = "received.spill";
+
+    private static MultipartAssembler assembler;
+    private static SpillQueue<Received> received;
+    /** Whether a pass over {@link #received} is queued on the receive thread. Guarded by SMSReceiver.class. */
+    private static boolean receiveQueued = false;
+
+    /**
+     * The part of an SMS broadcast needed to forward it.
+     */
+    private static final class Received {
+        final byte[][] pdus;
+        final String format;
+        final int simSlot;
+        /** The broadcast to finish once handled, or {@code null} if it was finished already. */
+        final PendingResult pendingResult;
+
+        Received(byte[][] pdus, String format, int simSlot, PendingResult pendingResult) {
+            this.pdus = pdus;
+            this.format = format;
+            this.simSlot = simSlot;
+            this.pendingResult = pendingResult;
+        }
+    }
+
+    private static final SpillQueue.Codec<Received> RECEIVED_CODEC = new SpillQueue.Codec<Received>() {
+        @Override
+        public void write(@NonNull Received item, @NonNull DataOutputStream out) throws IOException {
+            out.writeInt(item.simSlot);
+            out.writeBoolean(item.format != null);
+            if (item.format != null) out.writeUTF(item.format);
+            out.writeInt(item.pdus.length);
+            for (byte[] pdu : item.pdus) {
+                out.writeInt(pdu.length);
+                out.write(pdu);
+            }
+        }
+
+        @NonNull
+        @Override
+        public Received read(@NonNull DataInputStream in) throws IOException {
+            int simSlot = in.readInt();
+            String format = in.readBoolean() ? in.readUTF() : null;
+            byte[][] pdus = new byte[in.readInt()][];
+            for (int i = 0; i < pdus.length; i++) {
+                pdus[i] = new byte[in.readInt()];
+                in.readFully(pdus[i]);
+            }
+            return new Received(pdus, format, simSlot, null);
+        }
+    };
+
+    private static synchronized MultipartAssembler getAssembler(Context context) {
+        if (assembler == null) {
+            final Context appContext = context.getApplicationContext();
+            // Parts completed by a later broadcast are returned from add(), this only sees leftovers
+            assembler = new MultipartAssembler(messages -> forward(appContext, messages),
+                    OutboxDatabase.getInstance(appContext));
+        }
+        return assembler;
+    }
 
     /**
      * Called when an SMS message is received.
@@ -26,80 +97,229 @@ public class SMSReceiver extends BroadcastReceiver {
         Log.d("SMSReceiver", "onReceive: action " + intent.getAction());
         if (!intent.getAction().equals(android.provider.Telephony.Sms.Intents.SMS_RECEIVED_ACTION))
             return;
+        Metrics.recordReceived(System.currentTimeMillis());
+
+        final Bundle bundle = intent.getExtras();
+        final Object[] pduObjects = (Object[]) bundle.get("pdus");
+        if (pduObjects == null) return;
+        final byte[][] pdus = new byte[pduObjects.length][];
+        for (int i = 0; i < pdus.length; i++) {
+            pdus[i] = (byte[]) pduObjects[i];
+        }
+        final String format = (String) bundle.get("format");
+        final int simSlot = getSimSlot(bundle);
+        final Context appContext = context.getApplicationContext();
+
+        // Queueing, parsing and forwarding touch the disk, keep the broadcast alive while they run
+        // off the main thread. Delivery itself is tracked by the outbox, not by this broadcast.
+        final PendingResult pendingResult = goAsync();
+        Received sms = new Received(pdus, format, simSlot, pendingResult);
+        ForwardingEngine.getInstance().intake(() -> take(appContext, sms));
+    }
+
+    /**
+     * Queues a broadcast for the receive thread, on the intake thread.
+     */
+    private static void take(Context context, Received sms) {
+        try {
+            if (!getReceived(context).offer(sms)) {
+                // the receive thread is behind, the message is safe on disk now
+                sms.pendingResult.finish();
+            }
+        } catch (IOException e) {
+            Log.e("SMSReceiver", "take: Cannot spill the message, handling it out of order", e);
+            ForwardingEngine.getInstance().receive(() -> handle(context, sms));
+            return;
+        }
+        scheduleReceive(context);
+    }
+
+    /**
+     * Forwards the messages a previous process left on disk, if any.
+     */
+    static void resumeReceived(@NonNull Context context) {
+        scheduleReceive(context.getApplicationContext());
+    }
+
+    private static synchronized SpillQueue<Received> getReceived(Context context) {
+        if (received == null) {
+            File segment = new File(context.getApplicationContext().getFilesDir(), SPILL_FILE_NAME);
+            received = new SpillQueue<>(RECEIVED_CAPACITY, segment, RECEIVED_CODEC);
+        }
+        return received;
+    }
+
+    private static void scheduleReceive(Context context) {
+        synchronized (SMSReceiver.class) {
+            if (receiveQueued) return;
+            receiveQueued = true;
+        }
+        ForwardingEngine.getInstance().receive(() -> receiveAll(context));
+    }
+
+    /**
+     * Handles received messages on the receive thread until none are left.
+     */
+    private static void receiveAll(Context context) {
+        // restores the parts a previous process was waiting on, so they expire even if no SMS follows
+        getAssembler(context);
+        SpillQueue<Received> queue = getReceived(context);
+        while (true) {
+            Received sms;
+            try {
+                sms = queue.poll();
+            } catch (SpillQueue.DroppedItemsException e) {
+                // the queue moved past them, the next poll goes on with the rest
+                Log.e("SMSReceiver", "receiveAll: Lost " + e.dropped + " of the broadcasts waiting on disk, "
+                        + e.getMessage(), e);
+                commit(queue);
+                continue;
+            }
+            if (sms == null) {
+                synchronized (SMSReceiver.class) {
+                    // offered after the poll above, its broadcast saw the pass still queued
+                    if (queue.size() > 0) continue;
+                    receiveQueued = false;
+                    return;
+                }
+            }
+            handle(context, sms);
+            // queued in the outbox now, a restart must not forward it again
+            commit(queue);
+        }
+    }
 
-        PreferencesLoader preferencesLoader = new PreferencesLoader(context);
+    private static void commit(SpillQueue<Received> queue) {
+        try {
+            queue.commit();
+        } catch (IOException e) {
+            Log.w("SMSReceiver", "commit: Handled messages may be forwarded again after a restart", e);
+        }
+    }
 
-        SMSPreferences smsPreferences = preferencesLoader.loadSMSPreferences();
-        WebPreferences webPreferences = preferencesLoader.loadWebPreferences();
-        TelegramPreferences telegramPreferences = preferencesLoader.loadTelegramPreferences();
-        RocketChatPreferences rocketChatPreferences = preferencesLoader.loadRocketChatPreferences();
-        TwilioPreferences twilioPreferences = preferencesLoader.loadTwilioPreferences();
-        EmailPreferences emailPreferences = preferencesLoader.loadEmailPreferences();
+    private static void handle(Context context, Received sms) {
+        try {
+            forward(context, assemble(context, sms.pdus, sms.format, sms.simSlot));
+            // before the broadcast is committed, a restart replays it until then
+            getAssembler(context).commit();
+        } catch (RuntimeException e) {
+            Log.e("SMSReceiver", "handle: Cannot forward message", e);
+        } finally {
+            if (sms.pendingResult != null) sms.pendingResult.finish();
+        }
+    }
 
-        Log.d("SMSReceiver", "onReceive: enableSMS = " + smsPreferences.getEnableSMS());
-        Log.d("SMSReceiver", "onReceive: enableTelegram = " + telegramPreferences.getEnableTelegram());
-        Log.d("SMSReceiver", "onReceive: enableRocketChat = " + rocketChatPreferences.getEnableRocketChat());
-        Log.d("SMSReceiver", "onReceive: enableWeb = " + webPreferences.getEnableWeb());
-        Log.d("SMSReceiver", "onReceive: enableTwilio = " + twilioPreferences.getEnableTwilio());
-        Log.d("SMSReceiver", "onReceive: enableEmail = " + emailPreferences.getEnableEmail());
+    /**
+     * Reads the SIM slot from the broadcast. The extra is not part of the public API, AOSP puts it
+     * in {@code "slot"} and some vendors only in {@code "phone"}.
+     */
+    private static int getSimSlot(Bundle bundle) {
+        return bundle.getInt("slot", bundle.getInt("phone", IncomingMessage.UNKNOWN_SIM_SLOT));
+    }
+
+    private static List<IncomingMessage> assemble(Context context, byte[][] pdus, String format, int simSlot) {
+        MultipartAssembler multipartAssembler = getAssembler(context);
+        List<IncomingMessage> messages = new ArrayList<>();
+        for (byte[] pdu : pdus) {
+            SmsMessage currentMessage = SmsMessage.createFromPdu(pdu, format);
+            if (currentMessage == null) continue;
+
+            IncomingMessage message = multipartAssembler.add(
+                    currentMessage.getDisplayOriginatingAddress(),
+                    currentMessage.getDisplayMessageBody(),
+                    currentMessage.getTimestampMillis(),
+                    simSlot,
+                    pdu,
+                    format);
+            if (message != null) {
+                messages.add(message);
+            }
+        }
+        return messages;
+    }
+
+    /**
+     * Forwards complete messages via all enabled methods, or sends them on if they are reverse
+     * messages from the target number.
+     */
+    static void forward(Context context, List<IncomingMessage> messages) {
+        if (messages.isEmpty()) return;
 
-        if (!smsPreferences.getEnableSMS() && !telegramPreferences.getEnableTelegram() && !rocketChatPreferences.getEnableRocketChat() && !webPreferences.getEnableWeb() && !twilioPreferences.getEnableTwilio()) {
-            Log.d("SMSReceiver", "onReceive: SMS Forwarding is disabled");
+        ForwardingConfig config = ForwardingConfig.get(context);
+        SMSPreferences smsPreferences = config.getSms();
+        if (!smsPreferences.getEnableSMS() && config.getEnabledChannels().isEmpty()) {
+            Log.d("SMSReceiver", "forward: SMS Forwarding is disabled");
             return;
         } else {
-            Log.d("SMSReceiver", "onReceive: SMS Forwarding is enabled");
+            Log.d("SMSReceiver", "forward: SMS Forwarding is enabled");
         }
 
-        final Bundle bundle = intent.getExtras();
-        final Object[] pduObjects = (Object[]) bundle.get("pdus");
-        if (pduObjects == null) return;
+        DuplicatePreferences duplicates = config.getDuplicates();
+        DuplicateFilter duplicateFilter = DuplicateFilter.getInstance(context);
+        List<OutboxEntry> entries = new ArrayList<>();
+        List<IncomingMessage> handled = new ArrayList<>(messages.size());
+        for (IncomingMessage message : messages) {
+            String senderNumber = message.senderNumber;
+            String rawMessageContent = message.body;
 
-        for (Object messageObj : pduObjects) {
-            SmsMessage currentMessage = SmsMessage.createFromPdu((byte[]) messageObj, (String) bundle.get("format"));
-            String senderNumber = currentMessage.getDisplayOriginatingAddress();
-            String rawMessageContent = currentMessage.getDisplayMessageBody();
+            if (duplicateFilter.isDuplicate(senderNumber, rawMessageContent, message.timestampMillis, duplicates)
+                    || isRepeated(message, handled, duplicates)) {
+                Log.d("SMSReceiver", "forward: Skipping duplicate of an earlier message");
+                continue;
+            }
+            handled.add(message);
 
             if (senderNumber.equals(smsPreferences.getTargetNumber())) {
                 // reverse message
-                String formatRegex = "To (\\+?\\d+?):\\n((.|\\n)*)";
-                if (rawMessageContent.matches(formatRegex)) {
-                    String forwardNumber = rawMessageContent.replaceFirst(formatRegex, "$1");
-                    String forwardContent = rawMessageContent.replaceFirst(formatRegex, "$2");
-                    Forwarder.sendSMS(forwardNumber, forwardContent);
+                ReverseCommand command = ReverseCommand.parse(rawMessageContent);
+                if (command != null) {
+                    Log.d("SMSReceiver", "forward: Sending " + command);
+                    SmsSender smsSender = SmsSender.getInstance(context);
+                    for (String recipient : command.recipients) {
+                        // not queued, a reply that fails is not retried
+                        ForwardingEngine.getInstance().submit(Channel.SMS, () -> {
+                            try {
+                                smsSender.send(recipient, command.body);
+                            } catch (IOException e) {
+                                Log.w("SMSReceiver", "forward: Reply to " + recipient + " failed", e);
+                            }
+                        });
+                    }
                 }
             } else {
-                // normal message, forward via all enabled methods
-
-                if (smsPreferences.isValid()) {
-                    Log.d("SMSReceiver", "onReceive: Forwarding SMS to " + smsPreferences.getTargetNumber());
-                    Forwarder.forwardViaSMS(senderNumber, rawMessageContent, smsPreferences.getTargetNumber());
-                }
-
-                if (telegramPreferences.isValid()) {
-                    Log.d("SMSReceiver", "onReceive: Forwarding Telegram to " + telegramPreferences.getTargetTelegram());
-                    Forwarder.forwardViaTelegram(senderNumber, rawMessageContent, telegramPreferences.getTargetTelegram(), telegramPreferences.getTelegramToken());
-                }
-
-                if (rocketChatPreferences.isValid()) {
-                    Log.d("SMSReceiver", "onReceive: Forwarding RocketChat to " + rocketChatPreferences.getRocketChatChannel());
-                    Forwarder.forwardViaRocketChat(rocketChatPreferences.getRocketChatBaseUrl(), rocketChatPreferences.getRocketChatUserId(), rocketChatPreferences.getRocketChatToken(), rocketChatPreferences.getRocketChatChannel());
-                }
-
-                if (twilioPreferences.isValid()) {
-                    Log.d("SMSReceiver", "onReceive: Forwarding Twilio to " + twilioPreferences.getTwilioToNumber());
-                    Forwarder.forwardViaTwilio(twilioPreferences.getTwilioAccountSid(), twilioPreferences.getTwilioAuthToken(), twilioPreferences.getTwilioFromNumber(), twilioPreferences.getTwilioToNumber(), rawMessageContent);
+                // normal message, queue it for the channels the routing rules pick
+                List<Channel> channels = config.channelsFor(senderNumber, rawMessageContent);
+                boolean urgent = config.getUrgency().isUrgent(senderNumber, rawMessageContent);
+                Log.d("SMSReceiver", "forward: Forwarding " + (urgent ? "urgent " : "") + "SMS via " + channels);
+                for (Channel channel : channels) {
+                    entries.add(OutboxEntry.create(channel, senderNumber, rawMessageContent, message.timestampMillis, message.simSlot,
+                            urgent));
                 }
+            }
+        }
 
-                if (webPreferences.isValid()) {
-                    Log.d("SMSReceiver", "onReceive: Forwarding Web to " + webPreferences.getTargetWeb());
-                    Forwarder.forwardViaWeb(senderNumber, rawMessageContent, webPreferences.getTargetWeb());
-                }
+        if (!entries.isEmpty()) {
+            OutboxDrainer.getInstance(context).enqueue(entries);
+        }
+        // only once queued, a copy redelivered after enqueue failed must not count as a duplicate
+        for (IncomingMessage message : handled) {
+            duplicateFilter.remember(message.senderNumber, message.body, message.timestampMillis, duplicates);
+        }
+    }
 
-                if (webPreferences.isValid()) {
-                    Log.d("SMSReceiver", "onReceive: Forwarding Email to " + emailPreferences.getToEmail());
-                    Forwarder.forwardViaEmail(senderNumber, rawMessageContent, emailPreferences);
-                }
+    /**
+     * @return Whether {@code message} repeats one of the same broadcast, which the
+     * {@link DuplicateFilter} does not know of yet.
+     */
+    private static boolean isRepeated(IncomingMessage message, List<IncomingMessage> handled,
+                                      DuplicatePreferences duplicates) {
+        if (!duplicates.isEnabled()) return false;
+        for (IncomingMessage earlier : handled) {
+            if (earlier.senderNumber.equals(message.senderNumber) && earlier.body.equals(message.body)
+                    && Math.abs(earlier.timestampMillis - message.timestampMillis) <= duplicates.getWindowMs()) {
+                return true;
             }
         }
+        return false;
     }
 }
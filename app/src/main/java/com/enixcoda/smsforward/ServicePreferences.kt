@@ -24,11 +24,13 @@ data class SMSPreferences(
  * Data class representing Web preferences.
  *
  * @property enableWeb Boolean indicating if Web is enabled.
- * @property targetWeb The target URL for Web.
+ * @property endpoints The webhooks every message is posted to.
+ * @property gzip Boolean indicating if large requests are sent gzip-encoded.
  */
 data class WebPreferences(
     val enableWeb: Boolean,
-    val targetWeb: String
+    val endpoints: WebEndpoints,
+    val gzip: Boolean
 ) {
     /**
      * Checks if Web preferences are valid.
@@ -36,7 +38,7 @@ data class WebPreferences(
      * @return Boolean indicating if Web preferences are valid.
      */
     fun isValid(): Boolean {
-        return enableWeb && targetWeb.isNotEmpty()
+        return enableWeb && !endpoints.isEmpty()
     }
 }
 
@@ -132,6 +134,8 @@ data class TwilioPreferences(
  * @property smtpPassword The SMTP password for Email.
  * @property fromEmail The sender email address.
  * @property toEmail The recipient email address.
+ * @property perMinute How many emails the SMTP host accepts per minute.
+ * @property burst How many emails may be sent at once after a quiet period.
  */
 data class EmailPreferences(
     val enableEmail: Boolean,
@@ -140,7 +144,9 @@ data class EmailPreferences(
     val smtpUser: String,
     val smtpPassword: String,
     val fromEmail: String,
-    val toEmail: String
+    val toEmail: String,
+    val perMinute: Int = DEFAULT_PER_MINUTE,
+    val burst: Int = DEFAULT_BURST
 ) {
     /**
      * Checks if Email preferences are valid.
@@ -156,4 +162,102 @@ data class EmailPreferences(
                 fromEmail.isNotEmpty() &&
                 toEmail.isNotEmpty()
     }
-}
\ No newline at end of file
+
+    companion object {
+        /** Relays commonly throttle per minute, well above what a phone receives. */
+        const val DEFAULT_PER_MINUTE = 30
+        const val DEFAULT_BURST = 10
+    }
+}
+
+/**
+ * Data class representing burst coalescing preferences.
+ *
+ * @property windowMs How long to collect messages before sending them as one request.
+ * @property coalesceTelegram Boolean indicating if Telegram messages are coalesced.
+ * @property coalesceRocketChat Boolean indicating if RocketChat messages are coalesced.
+ * @property coalesceWeb Boolean indicating if Web messages are coalesced.
+ * @property coalesceEmail Boolean indicating if Email messages are sent as a digest.
+ */
+data class CoalescingPreferences(
+    val windowMs: Long,
+    val coalesceTelegram: Boolean,
+    val coalesceRocketChat: Boolean,
+    val coalesceWeb: Boolean,
+    val coalesceEmail: Boolean
+) {
+    /**
+     * Checks if messages for the given channel should be coalesced.
+     *
+     * @return Boolean indicating if the channel is coalesced.
+     */
+    fun isEnabled(channel: Channel): Boolean {
+        if (windowMs <= 0) return false
+        return when (channel) {
+            Channel.TELEGRAM -> coalesceTelegram
+            Channel.ROCKET_CHAT -> coalesceRocketChat
+            Channel.WEB -> coalesceWeb
+            Channel.EMAIL -> coalesceEmail
+            else -> false
+        }
+    }
+
+    companion object {
+        const val DEFAULT_WINDOW_MS = 500L
+    }
+}
+
+/**
+ * Data class representing duplicate suppression preferences.
+ *
+ * @property windowMs Messages with the same sender and body within this time are forwarded once.
+ * @property persist Boolean indicating if seen messages are remembered across restarts.
+ */
+data class DuplicatePreferences(
+    val windowMs: Long,
+    val persist: Boolean
+) {
+    /**
+     * Checks if duplicates are suppressed at all.
+     *
+     * @return Boolean indicating if duplicate suppression is enabled.
+     */
+    fun isEnabled(): Boolean {
+        return windowMs > 0
+    }
+
+    companion object {
+        /** Off unless the user sets a window, a repeated "OK" from the same sender is a message too. */
+        const val DEFAULT_WINDOW_SECONDS = 0L
+    }
+}
+
+/**
+ * Data class representing delivery history preferences.
+ *
+ * @property retentionDays How long delivery attempts are kept.
+ * @property maxMessages How many messages are kept at most, the oldest are removed first.
+ */
+data class HistoryPreferences(
+    val retentionDays: Long,
+    val maxMessages: Long
+) {
+    /** [retentionDays] in milliseconds. */
+    val maxAgeMs: Long
+        get() = retentionDays * 24 * 60 * 60 * 1000
+
+    /**
+     * Checks if delivery attempts are recorded at all.
+     *
+     * @return Boolean indicating if the history is enabled.
+     */
+    fun isEnabled(): Boolean {
+        return retentionDays > 0 && maxMessages > 0
+    }
+
+    companion object {
+        /** Off, the history keeps the message text, one-time codes included. */
+        const val DEFAULT_RETENTION_DAYS = 0L
+        const val DEFAULT_MAX_MESSAGES = 100_000L
+    }
+}
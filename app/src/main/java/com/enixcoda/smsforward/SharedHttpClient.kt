@@ -0,0 +1,117 @@
+package com.enixcoda.smsforward
+
+import androidx.annotation.VisibleForTesting
+import okhttp3.ConnectionPool
+import okhttp3.Dispatcher
+import okhttp3.Interceptor
+import okhttp3.OkHttpClient
+import okhttp3.Protocol
+import okhttp3.Response
+import java.io.InterruptedIOException
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.Semaphore
+import java.util.concurrent.TimeUnit
+
+/**
+ * The single HTTP client used by every network channel.
+ *
+ * Sharing one [OkHttpClient] means all channels share one connection pool and one dispatcher, so
+ * a burst of messages to the same host reuses a few warm (and, where the server supports it,
+ * HTTP/2 multiplexed) connections instead of paying a TCP and TLS handshake per message.
+ *
+ * Calls to one host are limited to [MAX_REQUESTS_PER_HOST] at a time by [HostLimit], whether
+ * they are executed on the calling thread or enqueued. The dispatcher's limits only apply to
+ * enqueued calls.
+ *
+ * Channels that need different timeouts should derive a client with [OkHttpClient.newBuilder],
+ * which keeps the shared pool, dispatcher and host limit.
+ */
+object SharedHttpClient {
+    /** Idle connections kept warm across all hosts. */
+    private const val MAX_IDLE_CONNECTIONS = 8
+
+    /** How long an idle connection is kept before it is closed. */
+    private const val KEEP_ALIVE_MINUTES = 5L
+
+    /** Upper bound on concurrent enqueued requests across all hosts. */
+    private const val MAX_REQUESTS = 32
+
+    /** Upper bound on concurrent requests to a single host, multiplexed where HTTP/2 is available. */
+    private const val MAX_REQUESTS_PER_HOST = 6
+
+    private const val TIMEOUT_SECONDS = 15L
+
+    private val client: OkHttpClient by lazy {
+        val dispatcher = Dispatcher().apply {
+            maxRequests = MAX_REQUESTS
+            maxRequestsPerHost = MAX_REQUESTS_PER_HOST
+        }
+
+        OkHttpClient.Builder()
+            .connectionPool(ConnectionPool(MAX_IDLE_CONNECTIONS, KEEP_ALIVE_MINUTES, TimeUnit.MINUTES))
+            .dispatcher(dispatcher)
+            .addInterceptor(HostLimit)
+            .protocols(listOf(Protocol.HTTP_2, Protocol.HTTP_1_1))
+            .connectTimeout(TIMEOUT_SECONDS, TimeUnit.SECONDS)
+            .readTimeout(TIMEOUT_SECONDS, TimeUnit.SECONDS)
+            .writeTimeout(TIMEOUT_SECONDS, TimeUnit.SECONDS)
+            .retryOnConnectionFailure(true)
+            .build()
+    }
+
+    /**
+     * Holds a call until fewer than [MAX_REQUESTS_PER_HOST] calls to its host are running. A call
+     * that waits longer than its connect timeout fails like a connection that timed out.
+     */
+    private object HostLimit : Interceptor {
+        /** One per host the app posts to, a handful. */
+        private val permits = ConcurrentHashMap<String, Semaphore>()
+
+        override fun intercept(chain: Interceptor.Chain): Response {
+            val host = chain.request().url.host
+            val semaphore = permits.getOrPut(host) { Semaphore(MAX_REQUESTS_PER_HOST, true) }
+            val acquired = try {
+                semaphore.tryAcquire(chain.connectTimeoutMillis().toLong(), TimeUnit.MILLISECONDS)
+            } catch (e: InterruptedException) {
+                Thread.currentThread().interrupt()
+                throw InterruptedIOException("interrupted while waiting for $host")
+            }
+            if (!acquired) {
+                throw InterruptedIOException("$MAX_REQUESTS_PER_HOST calls to $host already running")
+            }
+            try {
+                return chain.proceed(chain.request())
+            } finally {
+                semaphore.release()
+            }
+        }
+    }
+
+    @Volatile
+    private var replacement: OkHttpClient? = null
+
+    /**
+     * @return The app-wide [OkHttpClient].
+     */
+    @JvmStatic
+    fun get(): OkHttpClient = replacement ?: client
+
+    /**
+     * Builds the client ahead of the first request. Building it sets up TLS, which loads the
+     * system trust store.
+     */
+    @JvmStatic
+    fun warmUp() {
+        get()
+    }
+
+    /**
+     * Replaces the client returned by [get], or restores the default with `null`. Lets the
+     * channels run against local stand-ins off-device, e.g. by redirecting their fixed hosts.
+     */
+    @JvmStatic
+    @VisibleForTesting
+    fun replace(replacement: OkHttpClient?) {
+        this.replacement = replacement
+    }
+}
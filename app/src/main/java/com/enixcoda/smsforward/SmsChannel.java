@@ -0,0 +1,32 @@
+package com.enixcoda.smsforward;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Forwards as an SMS to another phone, sent by this device.
+ */
+class SmsChannel implements ForwardChannel {
+    @NonNull
+    @Override
+    public Channel getChannel() {
+        return Channel.SMS;
+    }
+
+    @Override
+    public boolean isConfigured(@NonNull ForwardingConfig config) {
+        return config.getSms().isValid();
+    }
+
+    @Override
+    public boolean needsNetwork() {
+        return false;
+    }
+
+    @Override
+    public int send(@NonNull OutboxEntry entry, @NonNull ForwardingConfig config) throws Exception {
+        // one multipart SMS, the recipient's phone joins the segments again
+        SmsSender.getInstance().send(config.getSms().getTargetNumber(),
+                SmsSegments.pack(entry.senderNumber, entry.message));
+        return ForwardException.NO_STATUS;
+    }
+}
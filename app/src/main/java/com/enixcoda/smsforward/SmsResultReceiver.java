@@ -0,0 +1,43 @@
+package com.enixcoda.smsforward;
+
+import android.app.Activity;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.telephony.SmsMessage;
+import android.telephony.Telephony;
+import android.util.Log;
+
+/**
+ * Receives the sent and delivered reports of SMS sent by {@link SmsSender}.
+ */
+public class SmsResultReceiver extends BroadcastReceiver {
+    private static final String TAG = "SmsResultReceiver";
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        long sendId = intent.getLongExtra(SmsSender.EXTRA_SEND_ID, -1);
+        int part = intent.getIntExtra(SmsSender.EXTRA_PART, 0);
+        int parts = intent.getIntExtra(SmsSender.EXTRA_PARTS, 1);
+
+        if (SmsSender.ACTION_SENT.equals(intent.getAction())) {
+            SmsSender.getInstance(context).onSent(sendId, getResultCode());
+        } else if (SmsSender.ACTION_DELIVERED.equals(intent.getAction())) {
+            byte[] pdu = intent.getByteArrayExtra("pdu");
+            SmsMessage report = pdu != null ? SmsMessage.createFromPdu(pdu, intent.getStringExtra("format")) : null;
+            if (getResultCode() != Activity.RESULT_OK || report == null
+                    || report.getStatus() != Telephony.Sms.STATUS_COMPLETE) {
+                Log.w(TAG, "onReceive: part " + part + " of " + sendId + " not delivered, status "
+                        + (report != null ? report.getStatus() : "unknown"));
+                return;
+            }
+            // count the message once, when its last part is confirmed
+            if (part == parts - 1) {
+                Metrics.ChannelMetrics metrics = Metrics.of(Channel.SMS);
+                metrics.confirmed.increment();
+                metrics.sentToConfirmed.record(System.currentTimeMillis()
+                        - intent.getLongExtra(SmsSender.EXTRA_SENT_AT, System.currentTimeMillis()));
+            }
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package com.enixcoda.smsforward;
+
+import androidx.annotation.NonNull;
+
+/**
+ * How a text is split into SMS segments.
+ * <p>
+ * A text that only uses the GSM 03.38 alphabet is sent in 7-bit septets, 160 to a single SMS.
+ * Characters of the extension table, such as the euro sign or {@code [}, take an escape septet and
+ * count twice. Any other character switches the whole text to UCS-2 with 70 characters per SMS.
+ * Concatenated messages lose room to the user data header: 153 septets or 67 characters per
+ * segment, and an escape sequence or surrogate pair is never split between two segments.
+ * <p>
+ * This mirrors what {@code SmsManager.divideMessage} does without national language tables, so
+ * the count can be worked out before anything is sent.
+ */
+final class SmsSegments {
+    static final int GSM7_SINGLE_SEPTETS = 160;
+    static final int GSM7_SEGMENT_SEPTETS = 153;
+    static final int UCS2_SINGLE_UNITS = 70;
+    static final int UCS2_SEGMENT_UNITS = 67;
+
+    private static final String GSM7_BASIC = "@\u00A3$\u00A5\u00E8\u00E9\u00F9\u00EC\u00F2\u00C7\n\u00D8\u00F8\r\u00C5\u00E5\u0394_\u03A6\u0393\u039B\u03A9\u03A0\u03A8\u03A3\u0398\u039E\u00C6\u00E6\u00DF\u00C9 !\"#\u00A4%&'()*+,-./0123456789:;<=>?"
+            + "\u00A1ABCDEFGHIJKLMNOPQRSTUVWXYZ\u00C4\u00D6\u00D1\u00DC\u00A7\u00BFabcdefghijklmnopqrstuvwxyz\u00E4\u00F6\u00F1\u00FC\u00E0";
+    private static final String GSM7_EXTENSION = "\f^{}\\[~]|\u20AC";
+
+    /** Whether the text needs UCS-2. */
+    final boolean ucs2;
+    /** Septets for GSM-7, UTF-16 code units for UCS-2. */
+    final int units;
+    /** Number of SMS the text is sent as. */
+    final int count;
+
+    private SmsSegments(boolean ucs2, int units, int count) {
+        this.ucs2 = ucs2;
+        this.units = units;
+        this.count = count;
+    }
+
+    @NonNull
+    static SmsSegments of(@NonNull CharSequence text) {
+        boolean ucs2 = false;
+        for (int i = 0, length = text.length(); i < length; i++) {
+            if (septets(text.charAt(i)) == 0) {
+                ucs2 = true;
+                break;
+            }
+        }
+
+        int single = ucs2 ? UCS2_SINGLE_UNITS : GSM7_SINGLE_SEPTETS;
+        int perSegment = ucs2 ? UCS2_SEGMENT_UNITS : GSM7_SEGMENT_SEPTETS;
+        int units = 0;
+        int count = 1;
+        int used = 0;
+        for (int i = 0, length = text.length(); i < length; i++) {
+            char c = text.charAt(i);
+            int size;
+            if (ucs2) {
+                // keep surrogate pairs together
+                size = Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(text.charAt(i + 1)) ? 2 : 1;
+                if (size == 2) i++;
+            } else {
+                size = septets(c);
+            }
+            units += size;
+            if (used + size > perSegment) {
+                count++;
+                used = 0;
+            }
+            used += size;
+        }
+        if (units <= single) count = 1;
+        return new SmsSegments(ucs2, units, count);
+    }
+
+    /**
+     * Puts sender and body into one text for the fewest segments. The sender is introduced with
+     * {@code "From "} unless dropping it saves a segment.
+     */
+    @NonNull
+    static String pack(@NonNull String senderNumber, @NonNull String body) {
+        String full = "From " + senderNumber + ":\n" + body;
+        String compact = senderNumber + ":\n" + body;
+        return of(compact).count < of(full).count ? compact : full;
+    }
+
+    /**
+     * @return The septets {@code c} takes in GSM-7, or {@code 0} if it needs UCS-2.
+     */
+    private static int septets(char c) {
+        if (c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c >= '0' && c <= '9' || c == ' ') return 1;
+        if (GSM7_BASIC.indexOf(c) >= 0) return 1;
+        if (GSM7_EXTENSION.indexOf(c) >= 0) return 2;
+        return 0;
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return count + " x " + (ucs2 ? "UCS-2" : "GSM-7") + " (" + units + ")";
+    }
+}
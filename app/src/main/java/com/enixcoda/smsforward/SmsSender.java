@@ -0,0 +1,163 @@
+package com.enixcoda.smsforward;
+
+import android.app.Activity;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.net.Uri;
+import android.telephony.SmsManager;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sends SMS from this device and waits until the radio reports the result.
+ * <p>
+ * A text is split with {@link SmsManager#divideMessage} and sent as one multipart message, so the
+ * recipient's phone shows it as a single SMS. Every part carries a sent and a delivered
+ * {@link PendingIntent} for {@link SmsResultReceiver}: {@link #send} returns once all parts left
+ * the device and throws a {@link ForwardException} if one did not, so a failed SMS is retried like
+ * any other forward. Delivery reports arrive later and only feed {@link Metrics}.
+ */
+public class SmsSender {
+    private static final String TAG = "SmsSender";
+    /** The radio normally reports within seconds, a missing report means the send is lost. */
+    private static final long SENT_TIMEOUT_MS = 60_000;
+
+    static final String ACTION_SENT = "com.enixcoda.smsforward.SMS_SENT";
+    static final String ACTION_DELIVERED = "com.enixcoda.smsforward.SMS_DELIVERED";
+    static final String EXTRA_SEND_ID = "send_id";
+    static final String EXTRA_PART = "part";
+    static final String EXTRA_PARTS = "parts";
+    static final String EXTRA_SENT_AT = "sent_at";
+
+    private static volatile SmsSender instance;
+
+    private final Context context;
+    private final AtomicLong nextSendId = new AtomicLong();
+    private final ConcurrentHashMap<Long, PendingSend> pendingSends = new ConcurrentHashMap<>();
+
+    public static SmsSender getInstance(Context context) {
+        if (instance == null) {
+            synchronized (SmsSender.class) {
+                if (instance == null) {
+                    instance = new SmsSender(context.getApplicationContext());
+                }
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * @return The sender created by {@link SMSForwardApplication}.
+     */
+    @NonNull
+    static SmsSender getInstance() {
+        if (instance == null) throw new IllegalStateException("SmsSender used before Application.onCreate");
+        return instance;
+    }
+
+    private SmsSender(Context context) {
+        this.context = context;
+    }
+
+    private static class PendingSend {
+        final CountDownLatch sent;
+        /** The first error reported for a part, or {@link Activity#RESULT_OK}. */
+        volatile int resultCode = Activity.RESULT_OK;
+
+        PendingSend(int parts) {
+            sent = new CountDownLatch(parts);
+        }
+    }
+
+    /**
+     * Sends {@code text} to {@code number} on the calling thread.
+     *
+     * @throws ForwardException If the radio rejected a part or did not report back in time.
+     * @throws IOException      If the thread was interrupted while waiting.
+     */
+    public void send(@NonNull String number, @NonNull String text) throws IOException {
+        SmsManager smsManager = SmsManager.getDefault();
+        ArrayList<String> parts = smsManager.divideMessage(text);
+        long sendId = nextSendId.incrementAndGet();
+        long sentAt = System.currentTimeMillis();
+
+        ArrayList<PendingIntent> sentIntents = new ArrayList<>(parts.size());
+        ArrayList<PendingIntent> deliveryIntents = new ArrayList<>(parts.size());
+        for (int part = 0; part < parts.size(); part++) {
+            sentIntents.add(resultIntent(ACTION_SENT, sendId, part, parts.size(), sentAt));
+            deliveryIntents.add(resultIntent(ACTION_DELIVERED, sendId, part, parts.size(), sentAt));
+        }
+
+        PendingSend pending = new PendingSend(parts.size());
+        pendingSends.put(sendId, pending);
+        Metrics.recordSent(sentAt);
+        try {
+            Log.d(TAG, "send: " + SmsSegments.of(text) + " as " + parts.size() + " part(s)");
+            if (parts.size() == 1) {
+                smsManager.sendTextMessage(number, null, parts.get(0), sentIntents.get(0), deliveryIntents.get(0));
+            } else {
+                smsManager.sendMultipartTextMessage(number, null, parts, sentIntents, deliveryIntents);
+            }
+
+            if (!pending.sent.await(SENT_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                throw new ForwardException("SMS not reported as sent within " + SENT_TIMEOUT_MS + " ms",
+                        ForwardException.NO_STATUS, true, ForwardException.NO_RETRY_AFTER);
+            }
+            if (pending.resultCode != Activity.RESULT_OK) {
+                throw fromResultCode(pending.resultCode);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while sending SMS");
+        } finally {
+            pendingSends.remove(sendId);
+        }
+    }
+
+    /**
+     * Called by {@link SmsResultReceiver} when the radio reports one part as sent or failed.
+     */
+    void onSent(long sendId, int resultCode) {
+        PendingSend pending = pendingSends.get(sendId);
+        if (pending == null) {
+            // the sender gave up waiting, or the process was restarted in between
+            Log.d(TAG, "onSent: late result " + resultCode + " for " + sendId);
+            return;
+        }
+        if (resultCode != Activity.RESULT_OK && pending.resultCode == Activity.RESULT_OK) {
+            pending.resultCode = resultCode;
+        }
+        pending.sent.countDown();
+    }
+
+    private PendingIntent resultIntent(String action, long sendId, int part, int parts, long sentAt) {
+        Intent intent = new Intent(action, Uri.fromParts("smsforward", sendId + "/" + part, null),
+                context, SmsResultReceiver.class)
+                .putExtra(EXTRA_SEND_ID, sendId)
+                .putExtra(EXTRA_PART, part)
+                .putExtra(EXTRA_PARTS, parts)
+                .putExtra(EXTRA_SENT_AT, sentAt);
+        // the data URI keeps the intents of different parts apart, extras alone would not
+        return PendingIntent.getBroadcast(context, 0, intent, PendingIntent.FLAG_ONE_SHOT | PendingIntent.FLAG_IMMUTABLE);
+    }
+
+    /**
+     * Radio errors are retryable, the phone may be out of coverage or in flight mode, except for a
+     * message the platform could not encode.
+     */
+    private static ForwardException fromResultCode(int resultCode) {
+        boolean retryable = resultCode != SmsManager.RESULT_ERROR_NULL_PDU;
+        return new ForwardException("SMS not sent, result code " + resultCode,
+                ForwardException.NO_STATUS, retryable, ForwardException.NO_RETRY_AFTER);
+    }
+}
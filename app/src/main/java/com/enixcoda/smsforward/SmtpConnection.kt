@@ -0,0 +1,156 @@
+package com.enixcoda.smsforward
+
+import android.util.Log
+import java.util.Properties
+import javax.mail.MessagingException
+import javax.mail.PasswordAuthentication
+import javax.mail.SendFailedException
+import javax.mail.Session
+import javax.mail.Transport
+import javax.mail.internet.MimeMessage
+
+/**
+ * A long-lived, authenticated SMTP connection shared by all email forwards.
+ *
+ * Connecting, STARTTLS and AUTH cost a few round trips each, which used to be paid for every
+ * forwarded SMS. The connection is now opened on first use and reused for every following
+ * message. It is reopened lazily when the settings change, when it has been idle longer than
+ * most servers keep a session, or when the server no longer answers a NOOP before a send.
+ *
+ * A send that fails is not repeated here: the server may have taken the message before the
+ * connection broke, and sending it again would deliver it twice. The connection is closed and the
+ * [RetryPolicy] decides, the next attempt connects anew.
+ *
+ * All sends go through one lock, so messages are written one after another over the same
+ * connection.
+ */
+object SmtpConnection {
+    private const val TAG = "SmtpConnection"
+
+    /** Servers commonly drop idle sessions after a minute or so, reconnect rather than fail. */
+    private const val IDLE_TIMEOUT_MS = 50_000L
+
+    /** Idle shorter than this, the connection is used without checking it, e.g. within a burst. */
+    private const val CHECK_AFTER_IDLE_MS = 5_000L
+
+    /**
+     * Everything that identifies an SMTP session.
+     */
+    data class Config(
+        val host: String,
+        val port: String,
+        val user: String,
+        val password: String
+    )
+
+    private var config: Config? = null
+    private var session: Session? = null
+    private var transport: Transport? = null
+    private var lastUsedAt = 0L
+
+    /**
+     * Builds a message with the session for [config] and sends it over the shared connection.
+     *
+     * @throws MessagingException If the message could not be sent. It may have reached the server
+     * anyway if the connection broke while it was sent.
+     */
+    @Synchronized
+    @Throws(MessagingException::class)
+    fun send(config: Config, buildMessage: (Session) -> MimeMessage) {
+        val startedAt = System.currentTimeMillis()
+        val message = buildMessage(sessionFor(config))
+        Metrics.recordSent(System.currentTimeMillis())
+
+        val connected = connectedTransport()
+        try {
+            connected.sendMessage(message, message.allRecipients)
+        } catch (e: SendFailedException) {
+            // The server rejected the message itself, the connection is fine.
+            throw e
+        } catch (e: MessagingException) {
+            Log.d(TAG, "send: failed, closing the connection: ${e.message}")
+            close()
+            throw e
+        }
+
+        lastUsedAt = System.currentTimeMillis()
+        // until the server accepted the message, including a connect if one was needed
+        Metrics.of(Channel.EMAIL).timeToFirstByte.record(lastUsedAt - startedAt)
+        Log.d(TAG, "send: email sent in ${lastUsedAt - startedAt}ms")
+    }
+
+    /**
+     * Creates the session for [config] ahead of the first send, which loads javax.mail and reads
+     * its provider configuration. Does not connect.
+     */
+    @JvmStatic
+    @Synchronized
+    fun prepare(config: Config) {
+        sessionFor(config)
+    }
+
+    /**
+     * Closes the connection, if open. The next send reconnects.
+     */
+    @JvmStatic
+    @Synchronized
+    fun close() {
+        try {
+            transport?.close()
+        } catch (e: MessagingException) {
+            Log.d(TAG, "close: ${e.message}")
+        }
+        transport = null
+    }
+
+    private fun sessionFor(config: Config): Session {
+        val current = session
+        if (current != null && config == this.config) {
+            return current
+        }
+
+        close()
+        val properties = Properties().apply {
+            put("mail.smtp.host", config.host)
+            put("mail.smtp.port", config.port)
+            put("mail.smtp.auth", "true")
+            put("mail.smtp.connectiontimeout", "10000")
+            put("mail.smtp.timeout", "10000")
+            put("mail.smtp.writetimeout", "10000")
+            put("mail.smtp.allow8bitmime", "true")
+            put("mail.smtp.starttls.enable", "true")
+        }
+
+        val created = Session.getInstance(properties, object : javax.mail.Authenticator() {
+            override fun getPasswordAuthentication(): PasswordAuthentication {
+                return PasswordAuthentication(config.user, config.password)
+            }
+        })
+        this.config = config
+        this.session = created
+        return created
+    }
+
+    /**
+     * @return The open connection, or a new one if there is none or it is found dead. A
+     * connection that was idle for a while is checked with a NOOP first.
+     */
+    private fun connectedTransport(): Transport {
+        val current = transport
+        val idleMs = System.currentTimeMillis() - lastUsedAt
+        if (current != null && idleMs < IDLE_TIMEOUT_MS) {
+            if (idleMs < CHECK_AFTER_IDLE_MS || current.isConnected) {
+                return current
+            }
+            Log.d(TAG, "connectedTransport: connection lost after ${idleMs}ms idle, reconnecting")
+        }
+
+        close()
+        val config = checkNotNull(config)
+        val connected = checkNotNull(session).getTransport("smtp")
+        connected.connect(config.host, config.port.toIntOrNull() ?: -1, config.user, config.password)
+        transport = connected
+        lastUsedAt = System.currentTimeMillis()
+        return connected
+    }
+}
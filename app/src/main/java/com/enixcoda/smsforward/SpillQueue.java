@@ -0,0 +1,338 @@
+package com.enixcoda.smsforward;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * A first-in, first-out queue that keeps at most a fixed number of items in memory and appends the
+ * rest to a segment file.
+ * <p>
+ * Items are kept in a ring buffer while it has room. Once it is full, new items are appended to
+ * the segment file instead, and keep going there until every spilled item has been taken again,
+ * so items always come out in the order they were offered. When the segment is read to its end
+ * and {@link #commit() committed} it is deleted and the ring buffer takes over again. Memory
+ * therefore stays at {@code capacity} items however many are offered, and the producer never waits
+ * for the consumer.
+ * <p>
+ * The segment starts with the offset of the first item that was not committed yet, which
+ * {@link #commit()} rewrites once the consumer handled the items it took. A segment left behind by
+ * a previous process is replayed from there before anything offered since, so an item taken but
+ * not committed when the process died comes out again; committing after every item keeps that to
+ * the one being handled. An item cut short by a crash while it was being appended is discarded.
+ * <p>
+ * Every item in the segment is preceded by its length, so an item the {@link Codec} cannot read
+ * is skipped on its own. Only if the lengths themselves no longer add up is the rest of the
+ * segment given up.
+ *
+ * @param <T> The items, which the {@link Codec} writes to and reads from the segment.
+ */
+final class SpillQueue<T> {
+    private static final String TAG = "SpillQueue";
+    /** The header, the offset of the first item that was not committed. */
+    static final int HEADER_LENGTH = 8;
+
+    /**
+     * Converts items to and from their form in the segment file.
+     */
+    interface Codec<T> {
+        void write(@NonNull T item, @NonNull DataOutputStream out) throws IOException;
+
+        @NonNull
+        T read(@NonNull DataInputStream in) throws IOException;
+    }
+
+    /**
+     * Items were taken from the queue but could not be read, and are lost.
+     */
+    static final class DroppedItemsException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        /** How many items were lost. */
+        final int dropped;
+
+        DroppedItemsException(@NonNull String message, int dropped, @NonNull Throwable cause) {
+            super(message, cause);
+            this.dropped = dropped;
+        }
+    }
+
+    private final Object[] ring;
+    private final File segment;
+    private final Codec<T> codec;
+
+    /** Index of the oldest item in {@link #ring}. Guarded by {@code this}. */
+    private int head;
+    /** Items in {@link #ring}. Guarded by {@code this}. */
+    private int count;
+    /** Items in the segment that were not taken yet. Guarded by {@code this}. */
+    private int spilled;
+    /** Where the next item to take starts in the segment. Guarded by {@code this}. */
+    private long readOffset = HEADER_LENGTH;
+    /** Where the first item that was not committed starts, as in the header. Guarded by {@code this}. */
+    private long committedOffset = HEADER_LENGTH;
+    private FileOutputStream writer;
+    /** Reads items and rewrites the header. */
+    private RandomAccessFile reader;
+
+    /**
+     * @param capacity How many items are kept in memory.
+     * @param segment  Where items beyond {@code capacity} are kept. Items left there by a previous
+     *                 process come out first.
+     */
+    SpillQueue(int capacity, @NonNull File segment, @NonNull Codec<T> codec) {
+        this.ring = new Object[capacity];
+        this.segment = segment;
+        this.codec = codec;
+        recover();
+    }
+
+    /**
+     * Adds an item at the end of the queue.
+     *
+     * @return {@code true} if the item is kept in memory, {@code false} if it was appended to the
+     * segment file.
+     * @throws IOException If the item had to be spilled and could not be written. The queue is
+     *                     unchanged then, what was written of the item is cut off again. If that
+     *                     fails too, the segment no longer adds up after this item, and the items
+     *                     spilled after it are given up once {@link #poll} gets there.
+     */
+    synchronized boolean offer(@NonNull T item) throws IOException {
+        if (spilled == 0 && count < ring.length) {
+            ring[(head + count) % ring.length] = item;
+            count++;
+            return true;
+        }
+
+        if (spilled == 0) {
+            Log.i(TAG, "offer: " + count + " items in memory, spilling to " + segment.getName());
+        }
+        append(item);
+        spilled++;
+        return false;
+    }
+
+    /**
+     * Removes the oldest item.
+     *
+     * @return The item, or {@code null} if the queue is empty.
+     * @throws DroppedItemsException If a spilled item could not be read. It is skipped, the next
+     *                               poll goes on with the item after it. If the item cannot be
+     *                               told apart from the ones after it, the rest of the segment
+     *                               is given up, so the queue does not fail on it forever.
+     */
+    @Nullable
+    synchronized T poll() throws DroppedItemsException {
+        if (count > 0) {
+            @SuppressWarnings("unchecked")
+            T item = (T) ring[head];
+            ring[head] = null;
+            head = (head + 1) % ring.length;
+            count--;
+            return item;
+        }
+        if (spilled == 0) return null;
+
+        long offset = readOffset;
+        byte[] record;
+        try {
+            record = readRecord();
+        } catch (IOException e) {
+            int dropped = spilled;
+            String message = "gave up the last " + dropped + " spilled items, from offset " + offset + " of "
+                    + segment.getName();
+            Log.e(TAG, "poll: " + message, e);
+            spilled = 0;
+            deleteSegment();
+            throw new DroppedItemsException(message, dropped, e);
+        }
+
+        spilled--;
+        try {
+            return codec.read(new DataInputStream(new ByteArrayInputStream(record)));
+        } catch (IOException | RuntimeException e) {
+            String message = "skipped the unreadable item of " + record.length + " bytes at offset " + offset
+                    + " of " + segment.getName();
+            Log.e(TAG, "poll: " + message, e);
+            throw new DroppedItemsException(message, 1, e);
+        }
+    }
+
+    /**
+     * Records that the items taken so far have been handled, so a later process does not replay
+     * them. Deletes the segment once all of its items are. Cheap if no spilled item was taken
+     * since the last call.
+     *
+     * @throws IOException If the header could not be written. The items are replayed after a
+     *                     restart then, unless a later commit succeeds.
+     */
+    synchronized void commit() throws IOException {
+        if (readOffset == committedOffset) return;
+        if (spilled == 0) {
+            deleteSegment();
+            return;
+        }
+        // within one sector, a crash leaves the old or the new offset
+        reader.seek(0);
+        reader.writeLong(readOffset);
+        committedOffset = readOffset;
+    }
+
+    /**
+     * @return Items waiting, in memory and on disk.
+     */
+    synchronized int size() {
+        return count + spilled;
+    }
+
+    /**
+     * @return Items waiting in the segment file.
+     */
+    synchronized int spilledSize() {
+        return spilled;
+    }
+
+    private void append(T item) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        codec.write(item, new DataOutputStream(bytes));
+        if (writer == null) {
+            writer = new FileOutputStream(segment, true);
+        }
+        long previousLength = writer.getChannel().size();
+
+        ByteArrayOutputStream record = new ByteArrayOutputStream(HEADER_LENGTH + 4 + bytes.size());
+        DataOutputStream out = new DataOutputStream(record);
+        if (previousLength == 0) {
+            // a new segment, nothing in it is committed
+            out.writeLong(HEADER_LENGTH);
+        }
+        // length first, so a record cut short by a crash is recognised
+        out.writeInt(bytes.size());
+        bytes.writeTo(record);
+        try {
+            // unbuffered, straight to the OS, so it survives the process
+            record.writeTo(writer);
+        } catch (IOException e) {
+            truncate(previousLength);
+            throw e;
+        }
+    }
+
+    /**
+     * Cuts off what a failed append left behind, so the next item starts where it would have.
+     */
+    private void truncate(long length) {
+        try {
+            writer.close();
+        } catch (IOException e) {
+            Log.w(TAG, "truncate: " + e.getMessage());
+        }
+        writer = null;
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            file.setLength(length);
+        } catch (IOException e) {
+            Log.e(TAG, "truncate: cannot cut " + segment.getName() + " back to " + length + " bytes", e);
+        }
+    }
+
+    /**
+     * Reads the next record and moves past it.
+     *
+     * @throws IOException If the record could not be read, or its length is not possible.
+     */
+    private byte[] readRecord() throws IOException {
+        if (reader == null) {
+            reader = new RandomAccessFile(segment, "rw");
+        }
+        reader.seek(readOffset);
+        int length = reader.readInt();
+        if (length < 0 || readOffset + 4 + length > reader.length()) {
+            throw new IOException("record of " + length + " bytes past the end of " + segment.getName());
+        }
+        byte[] record = new byte[length];
+        reader.readFully(record);
+        readOffset += 4 + length;
+        return record;
+    }
+
+    private void deleteSegment() {
+        closeQuietly();
+        readOffset = HEADER_LENGTH;
+        committedOffset = HEADER_LENGTH;
+        if (segment.exists() && !segment.delete()) {
+            Log.w(TAG, "deleteSegment: could not delete " + segment);
+        }
+    }
+
+    private void closeQuietly() {
+        try {
+            if (writer != null) writer.close();
+            if (reader != null) reader.close();
+        } catch (IOException e) {
+            Log.w(TAG, "close: " + e.getMessage());
+        }
+        writer = null;
+        reader = null;
+    }
+
+    /**
+     * Counts the items a previous process left in the segment and did not commit, and cuts off a
+     * partial one.
+     */
+    private void recover() {
+        if (!segment.exists()) return;
+
+        long start = HEADER_LENGTH;
+        long end = start;
+        int items = 0;
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            long fileLength = file.length();
+            if (fileLength >= HEADER_LENGTH) {
+                long committed = file.readLong();
+                if (committed >= HEADER_LENGTH && committed <= fileLength) {
+                    start = committed;
+                    end = committed;
+                } else {
+                    // better twice than never
+                    Log.w(TAG, "recover: header " + committed + " out of range, replaying every item");
+                }
+            }
+            while (end + 4 <= fileLength) {
+                file.seek(end);
+                int length = file.readInt();
+                if (length < 0 || end + 4 + length > fileLength) break;
+                end += 4 + length;
+                items++;
+            }
+            if (end < fileLength) {
+                Log.w(TAG, "recover: discarding " + (fileLength - end) + " bytes of a partial item");
+                file.setLength(end);
+            }
+        } catch (EOFException e) {
+            // counted up to the last complete item
+        } catch (IOException e) {
+            Log.e(TAG, "recover: cannot read " + segment, e);
+            return;
+        }
+
+        spilled = items;
+        readOffset = start;
+        committedOffset = start;
+        if (items == 0) {
+            deleteSegment();
+        } else {
+            Log.i(TAG, "recover: replaying " + items + " items from " + segment.getName());
+        }
+    }
+}
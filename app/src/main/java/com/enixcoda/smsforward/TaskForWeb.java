@@ -1,46 +1,53 @@
 package com.enixcoda.smsforward;
 
-import android.net.Uri;
-import android.os.AsyncTask;
 import android.util.Log;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
-import java.net.HttpURLConnection;
-import java.net.URL;
-
-public class TaskForWeb extends AsyncTask<Void, Void, Void> {
-    static public void httpRequest(String endpoint, String content) throws IOException {
-        URL url = new URL(endpoint);
-        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-        connection.setRequestMethod("POST");
-        connection.setRequestProperty("Content-Type", "application/json; utf-8");
-
-        connection.setDoOutput(true);
-
-        OutputStreamWriter out = new OutputStreamWriter(connection.getOutputStream());
-        out.write(content);
-        out.flush();
-        out.close();
-
-        BufferedReader reader = new BufferedReader(new InputStreamReader(connection.getInputStream()));
-        String line;
-        StringBuilder response = new StringBuilder();
-        while ((line = reader.readLine()) != null) {
-            response.append(line);
-        }
-        reader.close();
 
-        Log.d(Forwarder.class.toString(), String.valueOf(connection.getResponseCode()));
-        Log.d(Forwarder.class.toString(), response.toString());
+import okhttp3.MediaType;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+/**
+ * Blocking HTTP helpers shared by the Java channel tasks.
+ */
+public final class TaskForWeb {
+    private static final String TAG = "TaskForWeb";
+    static final MediaType JSON = MediaType.get("application/json; charset=utf-8");
 
-        connection.disconnect();
+    private TaskForWeb() {
+    }
+
+    /**
+     * Executes the request on the calling thread using the {@link SharedHttpClient}.
+     *
+     * @param channel The channel the request is sent for, for {@link Metrics}.
+     * @return The status code of the response.
+     * @throws IOException If the request failed, or a {@link ForwardException} if the response was
+     *                     not a 2xx status.
+     */
+    static int execute(Channel channel, Request request) throws IOException {
+        try (Response response = SharedHttpClient.get().newCall(request).execute()) {
+            recordResponse(channel, response);
+            ResponseBody body = response.body();
+            String responseText = body != null ? body.string() : "";
+
+            Log.d(TAG, String.valueOf(response.code()));
+            Log.d(TAG, responseText);
+
+            if (!response.isSuccessful()) {
+                throw ForwardException.fromResponse(response, responseText);
+            }
+            return response.code();
+        }
     }
 
-    @Override
-    protected Void doInBackground(Void... voids) {
-        return null;
+    /**
+     * Records when a request was sent and how long the server took to answer it.
+     */
+    static void recordResponse(Channel channel, Response response) {
+        Metrics.recordSent(response.sentRequestAtMillis());
+        Metrics.of(channel).timeToFirstByte.record(response.receivedResponseAtMillis() - response.sentRequestAtMillis());
     }
-}
\ No newline at end of file
+}
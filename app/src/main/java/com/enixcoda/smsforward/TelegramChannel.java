@@ -0,0 +1,64 @@
+package com.enixcoda.smsforward;
+
+import androidx.annotation.NonNull;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Forwards to a Telegram chat through a bot.
+ */
+class TelegramChannel implements ForwardChannel {
+    // about 30 messages per second per bot, one per second per chat
+    static final double BOT_PER_SECOND = 30;
+    static final double CHAT_PER_SECOND = 1;
+
+    @NonNull
+    @Override
+    public Channel getChannel() {
+        return Channel.TELEGRAM;
+    }
+
+    @Override
+    public boolean isConfigured(@NonNull ForwardingConfig config) {
+        return config.getTelegram().isValid();
+    }
+
+    @NonNull
+    @Override
+    public List<RateLimiter> rateLimitersOf(@NonNull ForwardingConfig config) {
+        TelegramPreferences telegramPreferences = config.getTelegram();
+        // the key is exported with the metrics, the token is secret
+        String bot = RateLimiter.redact(telegramPreferences.getTelegramToken());
+        return Arrays.asList(
+                RateLimiter.forKey("TELEGRAM:bot" + bot, BOT_PER_SECOND, (int) BOT_PER_SECOND),
+                RateLimiter.forKey("TELEGRAM:" + telegramPreferences.getTargetTelegram(), CHAT_PER_SECOND, 1));
+    }
+
+    @Override
+    public void warmUp(@NonNull ForwardingConfig config) {
+        SharedHttpClient.warmUp();
+    }
+
+    @Override
+    public int send(@NonNull OutboxEntry entry, @NonNull ForwardingConfig config) throws Exception {
+        TelegramPreferences telegramPreferences = config.getTelegram();
+        return new ForwardTaskForTelegram(entry.senderNumber, entry.message, telegramPreferences.getTargetTelegram(), telegramPreferences.getTelegramToken()).send();
+    }
+
+    @Override
+    public boolean supportsBatch() {
+        return true;
+    }
+
+    @Override
+    public int getMaxBatchLength() {
+        return ForwardTaskForTelegram.MAX_TEXT_LENGTH;
+    }
+
+    @Override
+    public int sendBatch(@NonNull List<OutboxEntry> entries, @NonNull ForwardingConfig config) throws Exception {
+        TelegramPreferences telegramPreferences = config.getTelegram();
+        return ForwardTaskForTelegram.forBatch(entries, telegramPreferences.getTargetTelegram(), telegramPreferences.getTelegramToken()).send();
+    }
+}
@@ -0,0 +1,43 @@
+package com.enixcoda.smsforward;
+
+import androidx.annotation.NonNull;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Forwards as an SMS sent through the Twilio API.
+ */
+class TwilioChannel implements ForwardChannel {
+    // one message segment per second for a long code sender
+    static final double NUMBER_PER_SECOND = 1;
+
+    @NonNull
+    @Override
+    public Channel getChannel() {
+        return Channel.TWILIO;
+    }
+
+    @Override
+    public boolean isConfigured(@NonNull ForwardingConfig config) {
+        return config.getTwilio().isValid();
+    }
+
+    @NonNull
+    @Override
+    public List<RateLimiter> rateLimitersOf(@NonNull ForwardingConfig config) {
+        String fromNumber = config.getTwilio().getTwilioFromNumber();
+        return Collections.singletonList(RateLimiter.forKey("TWILIO:" + fromNumber, NUMBER_PER_SECOND, 1));
+    }
+
+    @Override
+    public void warmUp(@NonNull ForwardingConfig config) {
+        SharedHttpClient.warmUp();
+    }
+
+    @Override
+    public int send(@NonNull OutboxEntry entry, @NonNull ForwardingConfig config) throws Exception {
+        TwilioPreferences twilioPreferences = config.getTwilio();
+        return new ForwardTaskForTwilio(twilioPreferences.getTwilioAccountSid(), twilioPreferences.getTwilioAuthToken(), twilioPreferences.getTwilioFromNumber(), twilioPreferences.getTwilioToNumber(), entry.message).sendTwilioSms();
+    }
+}
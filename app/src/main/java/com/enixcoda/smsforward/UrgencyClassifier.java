@@ -0,0 +1,80 @@
+package com.enixcoda.smsforward;
+
+import androidx.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+/**
+ * Decides which messages are urgent and overtake the backlog on their way through the outbox and
+ * the {@link ForwardingEngine}.
+ * <p>
+ * A message is urgent if it looks like a one-time password, if its sender starts with one of the
+ * listed prefixes, or if its body contains one of the listed keywords. Prefixes and keywords
+ * ignore case.
+ */
+public final class UrgencyClassifier {
+    /** A word that one-time password messages use for the code. */
+    private static final Pattern OTP_WORD = Pattern.compile(
+            "\\b(code|otp|one[- ]time|passcode|password|pin|verification|verify|token|2fa|login|sign[- ]in)\\b",
+            Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE);
+    /** The code itself, 4 to 8 digits or two groups of 3, not part of a longer number. */
+    private static final Pattern OTP_CODE = Pattern.compile("(?<![\\d.,])(\\d{4,8}|\\d{3}[- ]\\d{3})(?!\\d|[.,]\\d)");
+
+    private final boolean detectOtp;
+    private final List<String> senderPrefixes;
+    private final List<String> keywords;
+
+    private UrgencyClassifier(boolean detectOtp, List<String> senderPrefixes, List<String> keywords) {
+        this.detectOtp = detectOtp;
+        this.senderPrefixes = senderPrefixes;
+        this.keywords = keywords;
+    }
+
+    /**
+     * @param detectOtp Whether messages that look like one-time passwords are urgent.
+     * @param senders   Sender prefixes, separated by commas or line breaks.
+     * @param keywords  Keywords, separated by commas or line breaks.
+     */
+    @NonNull
+    public static UrgencyClassifier of(boolean detectOtp, @NonNull String senders, @NonNull String keywords) {
+        return new UrgencyClassifier(detectOtp, split(senders), split(keywords));
+    }
+
+    private static List<String> split(String list) {
+        List<String> items = new ArrayList<>();
+        for (String item : list.split("[,\\n]")) {
+            String trimmed = item.trim().toLowerCase(Locale.ROOT);
+            if (!trimmed.isEmpty()) items.add(trimmed);
+        }
+        return items;
+    }
+
+    /**
+     * @return Whether the message should be forwarded ahead of others.
+     */
+    public boolean isUrgent(@NonNull String senderNumber, @NonNull String body) {
+        if (!senderPrefixes.isEmpty()) {
+            String sender = senderNumber.toLowerCase(Locale.ROOT);
+            for (String prefix : senderPrefixes) {
+                if (sender.startsWith(prefix)) return true;
+            }
+        }
+        if (!keywords.isEmpty()) {
+            String lowerBody = body.toLowerCase(Locale.ROOT);
+            for (String keyword : keywords) {
+                if (lowerBody.contains(keyword)) return true;
+            }
+        }
+        return detectOtp && looksLikeOtp(body);
+    }
+
+    /**
+     * @return Whether {@code body} names a code and contains one.
+     */
+    static boolean looksLikeOtp(@NonNull String body) {
+        return OTP_CODE.matcher(body).find() && OTP_WORD.matcher(body).find();
+    }
+}
@@ -0,0 +1,72 @@
+package com.enixcoda.smsforward;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Forwards as JSON posted to one or more webhooks, see {@link WebhookFanOut}.
+ */
+class WebChannel implements ForwardChannel {
+    private final WebhookFanOut fanOut = new WebhookFanOut();
+
+    @NonNull
+    @Override
+    public Channel getChannel() {
+        return Channel.WEB;
+    }
+
+    @Override
+    public boolean isConfigured(@NonNull ForwardingConfig config) {
+        return config.getWeb().isValid();
+    }
+
+    @Nullable
+    @Override
+    public CircuitBreaker breakerOf(@NonNull ForwardingConfig config) {
+        // the fan-out keeps one per endpoint, a breaker for all of them would let one dead
+        // webhook hold back the others
+        return null;
+    }
+
+    @NonNull
+    @Override
+    public Health getHealth(@NonNull ForwardingConfig config) {
+        if (!isConfigured(config)) return Health.DISABLED;
+        int open = 0;
+        boolean recovering = false;
+        List<WebEndpoints.Endpoint> endpoints = config.getWeb().getEndpoints().endpoints;
+        for (WebEndpoints.Endpoint endpoint : endpoints) {
+            CircuitBreaker.State state = WebhookFanOut.breakerFor(endpoint).getState();
+            if (state == CircuitBreaker.State.OPEN) open++;
+            else if (state == CircuitBreaker.State.HALF_OPEN) recovering = true;
+        }
+        if (open == endpoints.size()) return Health.UNAVAILABLE;
+        // some endpoints are held back, the others still get every message
+        return recovering || open > 0 ? Health.RECOVERING : Health.HEALTHY;
+    }
+
+    @Override
+    public void warmUp(@NonNull ForwardingConfig config) {
+        SharedHttpClient.warmUp();
+    }
+
+    @Override
+    public int send(@NonNull OutboxEntry entry, @NonNull ForwardingConfig config) throws Exception {
+        WebPreferences webPreferences = config.getWeb();
+        return fanOut.send(Collections.singletonList(entry), webPreferences.getEndpoints().endpoints, webPreferences.getGzip(), false);
+    }
+
+    @Override
+    public boolean supportsBatch() {
+        return true;
+    }
+
+    @Override
+    public int sendBatch(@NonNull List<OutboxEntry> entries, @NonNull ForwardingConfig config) throws Exception {
+        WebPreferences webPreferences = config.getWeb();
+        return fanOut.send(entries, webPreferences.getEndpoints().endpoints, webPreferences.getGzip(), true);
+    }
+}
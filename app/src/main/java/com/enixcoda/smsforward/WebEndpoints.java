@@ -0,0 +1,144 @@
+package com.enixcoda.smsforward;
+
+import androidx.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+import okhttp3.Headers;
+import okhttp3.HttpUrl;
+
+/**
+ * The webhooks every message forwarded via Web is posted to.
+ * <p>
+ * One endpoint per line, the URL first, then optionally a timeout and headers, separated by
+ * {@code |}:
+ * <pre>
+ * https://ingest.example.com/sms
+ * https://audit.example.com/sms | timeout=5s | Authorization: Bearer 1234
+ * https://eu.example.com/sms | timeout=1500ms
+ * </pre>
+ * A timeout without a unit is in seconds and bounds the whole request, endpoints without one use
+ * the timeouts of {@link SharedHttpClient}. Lines starting with {@code #} are comments.
+ */
+public final class WebEndpoints {
+    private static final String SEPARATOR = "\\|";
+    private static final String TIMEOUT = "timeout=";
+
+    /**
+     * One webhook.
+     */
+    public static final class Endpoint {
+        @NonNull final HttpUrl url;
+        /** Sent with every request, in addition to the payload's own headers. */
+        @NonNull final Headers headers;
+        /** The longest a request may take in all, or 0 for the client's timeouts. */
+        final long timeoutMs;
+
+        Endpoint(@NonNull HttpUrl url, @NonNull Headers headers, long timeoutMs) {
+            this.url = url;
+            this.headers = headers;
+            this.timeoutMs = timeoutMs;
+        }
+
+        /**
+         * @return An endpoint without headers or timeout.
+         * @throws IllegalArgumentException If {@code url} is not an HTTP or HTTPS URL.
+         */
+        @NonNull
+        static Endpoint of(@NonNull String url) {
+            return new Endpoint(HttpUrl.get(url), Headers.of(), 0);
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            // the URL only, headers may carry credentials
+            return url.toString();
+        }
+    }
+
+    /** The text the endpoints were parsed from. */
+    @NonNull final String source;
+    @NonNull final List<Endpoint> endpoints;
+    /** One message per line that could not be parsed and was left out. */
+    @NonNull final List<String> errors;
+
+    private WebEndpoints(@NonNull String source, @NonNull List<Endpoint> endpoints, @NonNull List<String> errors) {
+        this.source = source;
+        this.endpoints = Collections.unmodifiableList(endpoints);
+        this.errors = Collections.unmodifiableList(errors);
+    }
+
+    /**
+     * Parses the endpoints, leaving out lines that cannot be parsed.
+     */
+    @NonNull
+    public static WebEndpoints parse(@NonNull String source) {
+        List<Endpoint> endpoints = new ArrayList<>();
+        List<String> errors = new ArrayList<>();
+        String[] lines = source.split("\n");
+        for (int i = 0; i < lines.length; i++) {
+            String line = lines[i].trim();
+            if (line.isEmpty() || line.startsWith("#")) continue;
+            try {
+                endpoints.add(parseLine(line));
+            } catch (IllegalArgumentException e) {
+                errors.add("line " + (i + 1) + ": " + e.getMessage());
+            }
+        }
+        return new WebEndpoints(source, endpoints, errors);
+    }
+
+    private static Endpoint parseLine(String line) {
+        String[] parts = line.split(SEPARATOR);
+        HttpUrl url = HttpUrl.parse(parts[0].trim());
+        if (url == null) {
+            throw new IllegalArgumentException("not an http(s) URL: " + parts[0].trim());
+        }
+
+        Headers.Builder headers = new Headers.Builder();
+        long timeoutMs = 0;
+        for (int i = 1; i < parts.length; i++) {
+            String part = parts[i].trim();
+            if (part.isEmpty()) continue;
+            if (part.toLowerCase(Locale.ROOT).startsWith(TIMEOUT)) {
+                timeoutMs = parseTimeout(part.substring(TIMEOUT.length()).trim());
+            } else if (part.indexOf(':') > 0) {
+                // rejects names and values OkHttp could not send
+                headers.add(part);
+            } else {
+                throw new IllegalArgumentException("expected timeout=... or Name: value, got " + part);
+            }
+        }
+        return new Endpoint(url, headers.build(), timeoutMs);
+    }
+
+    private static long parseTimeout(String value) {
+        String lower = value.toLowerCase(Locale.ROOT);
+        long timeoutMs;
+        try {
+            if (lower.endsWith("ms")) {
+                timeoutMs = Long.parseLong(lower.substring(0, lower.length() - 2).trim());
+            } else {
+                String seconds = lower.endsWith("s") ? lower.substring(0, lower.length() - 1).trim() : lower;
+                timeoutMs = Math.round(Double.parseDouble(seconds) * 1000);
+            }
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("bad timeout " + value);
+        }
+        if (timeoutMs <= 0) {
+            throw new IllegalArgumentException("bad timeout " + value);
+        }
+        return timeoutMs;
+    }
+
+    /**
+     * @return Whether there is no endpoint to post to.
+     */
+    public boolean isEmpty() {
+        return endpoints.isEmpty();
+    }
+}
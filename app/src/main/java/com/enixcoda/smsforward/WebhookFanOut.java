@@ -0,0 +1,231 @@
+package com.enixcoda.smsforward;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+
+import kotlin.Unit;
+
+/**
+ * Posts the entries forwarded via Web to every {@link WebEndpoints} endpoint at once, and
+ * remembers which endpoints are done with which entries.
+ * <p>
+ * Every endpoint has its own {@link CircuitBreaker}, so a dead webhook does not hold back the
+ * others. Endpoints whose breaker is open are skipped and stay pending, the entries are retried
+ * for them once it lets a request through again.
+ * <p>
+ * The requests run side by side on the {@link SharedHttpClient}, so a message takes as long as its
+ * slowest endpoint rather than the sum of them, and endpoints on one host share its pooled,
+ * HTTP/2 multiplexed connection. The last request runs on the calling thread, a single endpoint
+ * costs no thread hop.
+ * <p>
+ * If some endpoints fail, the entries are retried as usual, but the retry only goes to the
+ * endpoints that have not accepted them yet. An endpoint that rejects entries for good is not
+ * tried again for them either. This is only remembered in memory, for up to
+ * {@link #MAX_TRACKED_ENTRIES} entries: after a restart a retry posts to every endpoint again, and
+ * receivers can tell repeats by the message id. Entries that are not stored in the outbox are
+ * never tracked.
+ */
+final class WebhookFanOut {
+    private static final String TAG = "WebhookFanOut";
+    /** Entries with partial progress kept in memory, the oldest are forgotten first. */
+    static final int MAX_TRACKED_ENTRIES = 10_000;
+
+    /** Per entry id, the endpoints that are done with the entry. Guarded by itself. */
+    private final Map<Long, Set<String>> done = new LinkedHashMap<Long, Set<String>>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Set<String>> eldest) {
+            return size() > MAX_TRACKED_ENTRIES;
+        }
+    };
+
+    /**
+     * @return The breaker shared by every request to {@code endpoint}.
+     */
+    @NonNull
+    static CircuitBreaker breakerFor(@NonNull WebEndpoints.Endpoint endpoint) {
+        return CircuitBreaker.forDestination(Channel.WEB + ":" + endpoint);
+    }
+
+    /**
+     * Posts the entries to every endpoint that is not done with them yet and whose breaker lets
+     * the request through, on the calling thread and the client's dispatcher, and waits for all
+     * of them.
+     *
+     * @param batch Whether to post the entries as one JSON array rather than a single object.
+     * @return The status code of the first endpoint posted to, in the order they are configured,
+     * or {@link ForwardException#NO_STATUS} if every endpoint was done with the entries already.
+     * @throws IOException If an endpoint failed. Retryable failures are preferred over final ones,
+     *                     the others are added as suppressed exceptions. A
+     *                     {@link CircuitOpenException} if endpoints were skipped and no other
+     *                     endpoint failed retryably.
+     */
+    int send(@NonNull List<OutboxEntry> entries, @NonNull List<WebEndpoints.Endpoint> endpoints, boolean gzip,
+              boolean batch) throws IOException {
+        List<WebEndpoints.Endpoint> targets = new ArrayList<>(endpoints.size());
+        List<List<OutboxEntry>> pending = new ArrayList<>(endpoints.size());
+        List<WebEndpoints.Endpoint> skipped = new ArrayList<>();
+        long retryAt = Long.MAX_VALUE;
+        for (WebEndpoints.Endpoint endpoint : endpoints) {
+            List<OutboxEntry> notDone = pendingFor(entries, endpoint);
+            if (notDone.isEmpty()) continue;
+            CircuitBreaker breaker = breakerFor(endpoint);
+            if (!breaker.allowRequest()) {
+                skipped.add(endpoint);
+                retryAt = Math.min(retryAt, breaker.getRetryAt());
+                continue;
+            }
+            targets.add(endpoint);
+            pending.add(notDone);
+        }
+        CircuitOpenException open = null;
+        if (!skipped.isEmpty()) {
+            Log.d(TAG, "send: circuit open, skipping " + skipped);
+            open = new CircuitOpenException("circuit open for " + skipped, retryAt);
+        }
+        if (targets.isEmpty()) {
+            if (open != null) throw open;
+            return ForwardException.NO_STATUS;
+        }
+
+        int count = targets.size();
+        int[] statusCodes = new int[count];
+        IOException[] errors = new IOException[count];
+        CountDownLatch finished = new CountDownLatch(count - 1);
+        for (int i = 0; i < count - 1; i++) {
+            final int index = i;
+            task(pending.get(i), targets.get(i), gzip, batch).sendAsync((statusCode, error) -> {
+                recordOutcome(targets.get(index), error);
+                statusCodes[index] = statusCode;
+                errors[index] = error;
+                finished.countDown();
+                return Unit.INSTANCE;
+            });
+        }
+        try {
+            statusCodes[count - 1] = task(pending.get(count - 1), targets.get(count - 1), gzip, batch).send();
+        } catch (IOException e) {
+            errors[count - 1] = e;
+        } finally {
+            // also for an unexpected exception, or a trial request wedges the breaker half-open
+            recordOutcome(targets.get(count - 1), errors[count - 1]);
+        }
+        try {
+            // every call ends, at the latest when the client's timeouts expire
+            finished.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while posting to " + targets);
+        }
+
+        IOException failure = null;
+        for (int i = 0; i < count; i++) {
+            IOException error = errors[i];
+            if (error == null) {
+                markDone(pending.get(i), targets.get(i));
+                continue;
+            }
+            boolean retryable = RetryPolicy.isRetryable(error);
+            Log.w(TAG, "send: " + targets.get(i) + " failed" + (retryable ? ", will retry: " : ": ") + error.getMessage());
+            if (!retryable) {
+                markDone(pending.get(i), targets.get(i));
+            }
+            if (failure == null) {
+                failure = error;
+            } else if (retryable && !RetryPolicy.isRetryable(failure)) {
+                error.addSuppressed(failure);
+                failure = error;
+            } else {
+                failure.addSuppressed(error);
+            }
+        }
+        if (open != null) {
+            // the skipped endpoints still need the entries, whatever the others answered
+            if (failure != null && RetryPolicy.isRetryable(failure)) {
+                failure.addSuppressed(open);
+            } else {
+                if (failure != null) open.addSuppressed(failure);
+                failure = open;
+            }
+        }
+        forgetFinished(entries, endpoints);
+        if (failure != null) throw failure;
+        return statusCodes[0];
+    }
+
+    /**
+     * Reports to the endpoint's breaker. Only retryable failures count against it, an endpoint
+     * that rejects a request is still up.
+     */
+    private static void recordOutcome(WebEndpoints.Endpoint endpoint, IOException error) {
+        CircuitBreaker breaker = breakerFor(endpoint);
+        if (error != null && RetryPolicy.isRetryable(error)) {
+            breaker.recordFailure();
+        } else {
+            breaker.recordSuccess();
+        }
+    }
+
+    private static ForwardTaskForWeb task(List<OutboxEntry> entries, WebEndpoints.Endpoint endpoint, boolean gzip,
+                                          boolean batch) {
+        return batch ? ForwardTaskForWeb.forBatch(entries, endpoint, gzip) : new ForwardTaskForWeb(entries.get(0), endpoint, gzip);
+    }
+
+    private List<OutboxEntry> pendingFor(List<OutboxEntry> entries, WebEndpoints.Endpoint endpoint) {
+        String key = endpoint.toString();
+        List<OutboxEntry> notDone = new ArrayList<>(entries.size());
+        synchronized (done) {
+            for (OutboxEntry entry : entries) {
+                Set<String> endpoints = done.get(entry.id);
+                if (endpoints == null || !endpoints.contains(key)) notDone.add(entry);
+            }
+        }
+        return notDone;
+    }
+
+    private void markDone(List<OutboxEntry> entries, WebEndpoints.Endpoint endpoint) {
+        String key = endpoint.toString();
+        synchronized (done) {
+            for (OutboxEntry entry : entries) {
+                if (entry.id == 0) continue;
+                Set<String> endpoints = done.get(entry.id);
+                if (endpoints == null) {
+                    endpoints = new HashSet<>();
+                    done.put(entry.id, endpoints);
+                }
+                endpoints.add(key);
+            }
+        }
+    }
+
+    /**
+     * Stops tracking entries every endpoint is done with, they leave the outbox now.
+     */
+    private void forgetFinished(List<OutboxEntry> entries, List<WebEndpoints.Endpoint> endpoints) {
+        synchronized (done) {
+            for (OutboxEntry entry : entries) {
+                Set<String> finished = done.get(entry.id);
+                if (finished == null) continue;
+                boolean all = true;
+                for (WebEndpoints.Endpoint endpoint : endpoints) {
+                    if (!finished.contains(endpoint.toString())) {
+                        all = false;
+                        break;
+                    }
+                }
+                if (all) done.remove(entry.id);
+            }
+        }
+    }
+}
@@ -0,0 +1,216 @@
+package com.enixcoda.smsforward;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.BufferedSink;
+import okio.GzipSink;
+import okio.Okio;
+import okio.Utf8;
+
+/**
+ * The JSON body posted to a webhook, encoded straight into the request stream.
+ * <p>
+ * A single message is posted as one object, a batch as an array of them:
+ * <pre>
+ * {"id":"3f9a0c1d2b4e5f60","from":"+15551234567","message":"Hello","timestamp":1700000000000,"simSlot":0}
+ * </pre>
+ * {@code id} is the same on every retry of a message, so the endpoint can drop repeats, and
+ * {@code simSlot} is {@code null} when the broadcast did not say which SIM received it.
+ * <p>
+ * No string or JSON tree is built: every {@link #writeTo} encodes the entries again, which also
+ * makes the body safe to send more than once when OkHttp retries. With gzip allowed, bodies over
+ * {@link #GZIP_THRESHOLD_BYTES} are compressed on the way out, smaller ones would only grow.
+ */
+final class WebhookPayload extends RequestBody {
+    static final long GZIP_THRESHOLD_BYTES = 1024;
+
+    private static final String ID = "{\"id\":\"";
+    private static final String FROM = "\",\"from\":";
+    private static final String MESSAGE = ",\"message\":";
+    private static final String TIMESTAMP = ",\"timestamp\":";
+    private static final String SIM_SLOT = ",\"simSlot\":";
+    private static final String NULL = "null";
+    private static final int ID_LENGTH = 16;
+    private static final byte[] HEX = {'0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f'};
+
+    private final List<OutboxEntry> entries;
+    private final boolean array;
+    /** Size of the uncompressed body. */
+    private final long jsonLength;
+    private final boolean gzip;
+
+    private WebhookPayload(@NonNull List<OutboxEntry> entries, boolean array, boolean allowGzip) {
+        this.entries = entries;
+        this.array = array;
+        this.jsonLength = measure();
+        this.gzip = allowGzip && jsonLength > GZIP_THRESHOLD_BYTES;
+    }
+
+    /**
+     * @param allowGzip Whether the endpoint accepts gzip-encoded request bodies.
+     */
+    static WebhookPayload single(@NonNull OutboxEntry entry, boolean allowGzip) {
+        return new WebhookPayload(Collections.singletonList(entry), false, allowGzip);
+    }
+
+    /**
+     * @param allowGzip Whether the endpoint accepts gzip-encoded request bodies.
+     */
+    static WebhookPayload batch(@NonNull List<OutboxEntry> entries, boolean allowGzip) {
+        return new WebhookPayload(entries, true, allowGzip);
+    }
+
+    /**
+     * @return Whether the body is sent gzip-encoded and needs a {@code Content-Encoding} header.
+     */
+    boolean isGzipped() {
+        return gzip;
+    }
+
+    @Override
+    public MediaType contentType() {
+        return TaskForWeb.JSON;
+    }
+
+    @Override
+    public long contentLength() {
+        // the compressed size is only known once written, send it chunked
+        return gzip ? -1 : jsonLength;
+    }
+
+    @Override
+    public void writeTo(@NonNull BufferedSink sink) throws IOException {
+        if (!gzip) {
+            write(sink);
+            return;
+        }
+        try (BufferedSink gzipSink = Okio.buffer(new GzipSink(sink))) {
+            write(gzipSink);
+        }
+    }
+
+    private void write(BufferedSink sink) throws IOException {
+        if (array) sink.writeByte('[');
+        for (int i = 0, size = entries.size(); i < size; i++) {
+            if (i > 0) sink.writeByte(',');
+            OutboxEntry entry = entries.get(i);
+
+            sink.writeUtf8(ID);
+            long id = entry.getMessageId();
+            for (int shift = 60; shift >= 0; shift -= 4) {
+                sink.writeByte(HEX[(int) (id >>> shift) & 0xf]);
+            }
+            sink.writeUtf8(FROM);
+            writeString(sink, entry.senderNumber);
+            sink.writeUtf8(MESSAGE);
+            writeString(sink, entry.message);
+            sink.writeUtf8(TIMESTAMP);
+            sink.writeDecimalLong(entry.receivedAt);
+            sink.writeUtf8(SIM_SLOT);
+            if (entry.simSlot < 0) {
+                sink.writeUtf8(NULL);
+            } else {
+                sink.writeDecimalLong(entry.simSlot);
+            }
+            sink.writeByte('}');
+        }
+        if (array) sink.writeByte(']');
+    }
+
+    /**
+     * Counts the bytes {@link #write} produces, without encoding anything.
+     */
+    private long measure() {
+        long length = array ? 2 + Math.max(0, entries.size() - 1) : 0;
+        for (OutboxEntry entry : entries) {
+            length += ID.length() + ID_LENGTH + FROM.length() + MESSAGE.length() + TIMESTAMP.length()
+                    + SIM_SLOT.length() + 1;
+            length += stringLength(entry.senderNumber);
+            length += stringLength(entry.message);
+            length += decimalLength(entry.receivedAt);
+            length += entry.simSlot < 0 ? NULL.length() : decimalLength(entry.simSlot);
+        }
+        return length;
+    }
+
+    /**
+     * Writes a quoted JSON string, copying runs of characters that need no escaping in one go.
+     */
+    private static void writeString(BufferedSink sink, String value) throws IOException {
+        sink.writeByte('"');
+        int start = 0;
+        for (int i = 0, length = value.length(); i < length; i++) {
+            char c = value.charAt(i);
+            if (!needsEscape(c)) continue;
+
+            if (start < i) sink.writeUtf8(value, start, i);
+            switch (c) {
+                case '"':
+                    sink.writeUtf8("\\\"");
+                    break;
+                case '\\':
+                    sink.writeUtf8("\\\\");
+                    break;
+                case '\n':
+                    sink.writeUtf8("\\n");
+                    break;
+                case '\r':
+                    sink.writeUtf8("\\r");
+                    break;
+                case '\t':
+                    sink.writeUtf8("\\t");
+                    break;
+                default:
+                    sink.writeUtf8("\\u");
+                    sink.writeByte(HEX[c >>> 12]);
+                    sink.writeByte(HEX[(c >>> 8) & 0xf]);
+                    sink.writeByte(HEX[(c >>> 4) & 0xf]);
+                    sink.writeByte(HEX[c & 0xf]);
+                    break;
+            }
+            start = i + 1;
+        }
+        sink.writeUtf8(value, start, value.length());
+        sink.writeByte('"');
+    }
+
+    private static long stringLength(String value) {
+        long length = 2;
+        int start = 0;
+        for (int i = 0, size = value.length(); i < size; i++) {
+            char c = value.charAt(i);
+            if (!needsEscape(c)) continue;
+
+            length += Utf8.size(value, start, i);
+            length += c == '"' || c == '\\' || c == '\n' || c == '\r' || c == '\t' ? 2 : 6;
+            start = i + 1;
+        }
+        return length + Utf8.size(value, start, value.length());
+    }
+
+    /**
+     * Control characters must be escaped. The line and paragraph separators are valid JSON but
+     * break endpoints that evaluate the body as JavaScript.
+     */
+    private static boolean needsEscape(char c) {
+        return c < 0x20 || c == '"' || c == '\\' || c == '\u2028' || c == '\u2029';
+    }
+
+    private static int decimalLength(long value) {
+        if (value < 0) {
+            return value == Long.MIN_VALUE ? 20 : 1 + decimalLength(-value);
+        }
+        int length = 1;
+        while (value >= 10) {
+            value /= 10;
+            length++;
+        }
+        return length;
+    }
+}
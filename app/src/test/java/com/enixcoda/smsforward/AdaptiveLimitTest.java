@@ -0,0 +1,87 @@
+package com.enixcoda.smsforward;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+
+public class AdaptiveLimitTest {
+    private static long now() {
+        return System.currentTimeMillis();
+    }
+
+    @Test
+    public void growsOnlyWhileFullyUsed() {
+        AdaptiveLimit batch = new AdaptiveLimit(4, 1, 6, true);
+        batch.onSuccess(now(), 10, 3);
+        assertEquals(4, batch.get());
+        batch.onSuccess(now(), 10, 4);
+        assertEquals(5, batch.get());
+        batch.onSuccess(now(), 10, 5);
+        batch.onSuccess(now(), 10, 6);
+        assertEquals(6, batch.get());
+    }
+
+    @Test
+    public void growsByOnePerRoundOfConcurrentRequests() {
+        AdaptiveLimit concurrency = new AdaptiveLimit(4, 1, 10, false);
+        for (int i = 0; i < 4; i++) concurrency.onSuccess(now(), 10, 4);
+        // 4 + 1/4 + 1/4.25 + ..., just short of 5
+        assertEquals(4, concurrency.get());
+        concurrency.onSuccess(now(), 10, 4);
+        assertEquals(5, concurrency.get());
+    }
+
+    @Test
+    public void halvesOncePerBurstOfOverloads() {
+        AdaptiveLimit limit = new AdaptiveLimit(16, 1, 32, false);
+        long burstStartedAt = now() - 1;
+        limit.onOverload(burstStartedAt);
+        limit.onOverload(burstStartedAt);
+        limit.onOverload(burstStartedAt);
+        assertEquals(8, limit.get());
+
+        limit.onOverload(now());
+        assertEquals(4, limit.get());
+        for (int i = 0; i < 10; i++) limit.onOverload(now() + i);
+        assertEquals(1, limit.get());
+    }
+
+    @Test
+    public void lowersOnLatencyBeyondTheBaseline() {
+        AdaptiveLimit limit = new AdaptiveLimit(10, 1, 32, false);
+        limit.onSuccess(now(), 10, 0);
+        // within twice the minimum baseline
+        limit.onSuccess(now(), 40, 0);
+        assertEquals(10, limit.get());
+        limit.onSuccess(now(), 41, 0);
+        assertEquals(9, limit.get());
+    }
+
+    @Test
+    public void baselineFollowsADestinationThatBecameSlower() {
+        AdaptiveLimit limit = new AdaptiveLimit(10, 1, 32, true);
+        limit.onSuccess(now(), 10, 0);
+        // sent before the first decrease, they cannot lower the limit any further
+        for (int i = 1; i < 2 * AdaptiveLimit.BASELINE_WINDOW; i++) limit.onSuccess(0, 100, 0);
+        assertEquals(9, limit.get());
+
+        limit.onSuccess(now(), 150, 9);
+        assertEquals(10, limit.get());
+    }
+
+    @Test
+    public void recognisesOverload() {
+        assertTrue(AdaptiveLimit.isOverload(new ForwardException("", 429, true, ForwardException.NO_RETRY_AFTER)));
+        assertTrue(AdaptiveLimit.isOverload(new ForwardException("", 503, true, ForwardException.NO_RETRY_AFTER)));
+        assertFalse(AdaptiveLimit.isOverload(new ForwardException("", 500, true, ForwardException.NO_RETRY_AFTER)));
+        assertTrue(AdaptiveLimit.isOverload(new SocketTimeoutException()));
+        assertTrue(AdaptiveLimit.isOverload(new IOException("send failed", new InterruptedIOException())));
+        assertFalse(AdaptiveLimit.isOverload(new IOException("connection refused")));
+    }
+}
@@ -0,0 +1,98 @@
+package com.enixcoda.smsforward;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class CircuitBreakerTest {
+    private long now;
+    private CircuitBreaker breaker;
+
+    @Before
+    public void setUp() {
+        now = 1_000_000;
+        breaker = new CircuitBreaker() {
+            @Override
+            long now() {
+                return now;
+            }
+        };
+    }
+
+    private void fail(int times) {
+        for (int i = 0; i < times; i++) breaker.recordFailure();
+    }
+
+    @Test
+    public void opensAfterConsecutiveFailures() {
+        fail(CircuitBreaker.FAILURE_THRESHOLD - 1);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        assertTrue(breaker.allowRequest());
+
+        breaker.recordFailure();
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertFalse(breaker.allowRequest());
+        assertTrue(breaker.isRejecting());
+        assertEquals(now + CircuitBreaker.INITIAL_OPEN_MS, breaker.getRetryAt());
+    }
+
+    @Test
+    public void successResetsTheCount() {
+        fail(CircuitBreaker.FAILURE_THRESHOLD - 1);
+        breaker.recordSuccess();
+        fail(CircuitBreaker.FAILURE_THRESHOLD - 1);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    public void letsOneTrialThroughAfterTheCoolDown() {
+        fail(CircuitBreaker.FAILURE_THRESHOLD);
+        now += CircuitBreaker.INITIAL_OPEN_MS;
+        // checking does not use up the trial
+        assertFalse(breaker.isRejecting());
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+
+        assertTrue(breaker.allowRequest());
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        assertFalse(breaker.allowRequest());
+        assertTrue(breaker.isRejecting());
+
+        breaker.recordSuccess();
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        assertTrue(breaker.allowRequest());
+    }
+
+    @Test
+    public void doublesTheCoolDownAfterAFailedTrial() {
+        fail(CircuitBreaker.FAILURE_THRESHOLD);
+        long openMs = CircuitBreaker.INITIAL_OPEN_MS;
+        while (openMs < CircuitBreaker.MAX_OPEN_MS) {
+            now += openMs;
+            assertTrue(breaker.allowRequest());
+            breaker.recordFailure();
+            openMs = Math.min(CircuitBreaker.MAX_OPEN_MS, openMs * 2);
+            assertEquals(now + openMs, breaker.getRetryAt());
+        }
+        now += openMs;
+        assertTrue(breaker.allowRequest());
+        breaker.recordFailure();
+        assertEquals(now + CircuitBreaker.MAX_OPEN_MS, breaker.getRetryAt());
+
+        // a success starts over from the initial cool-down
+        now += CircuitBreaker.MAX_OPEN_MS;
+        assertTrue(breaker.allowRequest());
+        breaker.recordSuccess();
+        fail(CircuitBreaker.FAILURE_THRESHOLD);
+        assertEquals(now + CircuitBreaker.INITIAL_OPEN_MS, breaker.getRetryAt());
+    }
+
+    @Test
+    public void sharesOneBreakerPerDestination() {
+        CircuitBreaker breaker = CircuitBreaker.forDestination("CircuitBreakerTest.example.com");
+        assertSame(breaker, CircuitBreaker.forDestination("CircuitBreakerTest.example.com"));
+    }
+}
@@ -0,0 +1,107 @@
+package com.enixcoda.smsforward;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+
+public class DuplicateFilterTest {
+    private static final long WINDOW_MS = 60_000;
+    private static final DuplicatePreferences IN_MEMORY = new DuplicatePreferences(WINDOW_MS, false);
+    private static final DuplicatePreferences PERSISTENT = new DuplicatePreferences(WINDOW_MS, true);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File file;
+
+    @Before
+    public void setUp() {
+        file = new File(folder.getRoot(), "duplicates.bin");
+    }
+
+    @Test
+    public void matchesSameSenderAndBodyWithinTheWindow() {
+        DuplicateFilter filter = new DuplicateFilter(file);
+        filter.remember("+1555", "hello", 100_000, IN_MEMORY);
+
+        assertTrue(filter.isDuplicate("+1555", "hello", 100_000, IN_MEMORY));
+        assertTrue(filter.isDuplicate("+1555", "hello", 100_000 + WINDOW_MS, IN_MEMORY));
+        // redelivered copies may carry an earlier timestamp
+        assertTrue(filter.isDuplicate("+1555", "hello", 100_000 - WINDOW_MS, IN_MEMORY));
+        assertFalse(filter.isDuplicate("+1555", "hello", 100_001 + WINDOW_MS, IN_MEMORY));
+        assertFalse(filter.isDuplicate("+1556", "hello", 100_000, IN_MEMORY));
+        assertFalse(filter.isDuplicate("+1555", "hello!", 100_000, IN_MEMORY));
+    }
+
+    @Test
+    public void checksNothingWhenDisabled() {
+        DuplicatePreferences disabled = new DuplicatePreferences(0, false);
+        DuplicateFilter filter = new DuplicateFilter(file);
+        filter.remember("+1555", "hello", 100_000, disabled);
+        assertFalse(filter.isDuplicate("+1555", "hello", 100_000, IN_MEMORY));
+
+        filter.remember("+1555", "hello", 100_000, IN_MEMORY);
+        assertFalse(filter.isDuplicate("+1555", "hello", 100_000, disabled));
+    }
+
+    @Test
+    public void forgetsTheOldestOnceTheRingWrapsAround() {
+        DuplicateFilter filter = new DuplicateFilter(file);
+        for (int i = 0; i < DuplicateFilter.CAPACITY; i++) {
+            filter.remember("+1555", "message " + i, 100_000, IN_MEMORY);
+        }
+        assertTrue(filter.isDuplicate("+1555", "message 0", 100_000, IN_MEMORY));
+
+        filter.remember("+1555", "one more", 100_000, IN_MEMORY);
+        assertFalse(filter.isDuplicate("+1555", "message 0", 100_000, IN_MEMORY));
+        assertTrue(filter.isDuplicate("+1555", "message 1", 100_000, IN_MEMORY));
+        assertTrue(filter.isDuplicate("+1555", "one more", 100_000, IN_MEMORY));
+    }
+
+    @Test
+    public void restoresRecordsAfterRestart() {
+        DuplicateFilter filter = new DuplicateFilter(file);
+        // past the end of the ring, so the restored slot to write next matters
+        for (int i = 0; i <= DuplicateFilter.CAPACITY; i++) {
+            filter.remember("+1555", "message " + i, 100_000, PERSISTENT);
+        }
+        assertTrue(file.exists());
+
+        DuplicateFilter restarted = new DuplicateFilter(file);
+        assertTrue(restarted.isDuplicate("+1555", "message " + DuplicateFilter.CAPACITY, 100_000, PERSISTENT));
+        assertTrue(restarted.isDuplicate("+1555", "message 1", 100_000, PERSISTENT));
+        assertFalse(restarted.isDuplicate("+1555", "message 0", 100_000, PERSISTENT));
+
+        restarted.remember("+1555", "after restart", 100_000, PERSISTENT);
+        assertFalse(restarted.isDuplicate("+1555", "message 1", 100_000, PERSISTENT));
+        assertTrue(restarted.isDuplicate("+1555", "message 2", 100_000, PERSISTENT));
+    }
+
+    @Test
+    public void keepsRecordsSeenBeforePersistenceWasEnabled() {
+        DuplicateFilter filter = new DuplicateFilter(file);
+        filter.remember("+1555", "in memory", 100_000, IN_MEMORY);
+        filter.remember("+1555", "on disk", 100_000, PERSISTENT);
+
+        DuplicateFilter restarted = new DuplicateFilter(file);
+        assertTrue(restarted.isDuplicate("+1555", "in memory", 100_000, PERSISTENT));
+        assertTrue(restarted.isDuplicate("+1555", "on disk", 100_000, PERSISTENT));
+    }
+
+    @Test
+    public void deletesTheFileWhenPersistenceIsTurnedOff() {
+        DuplicateFilter filter = new DuplicateFilter(file);
+        filter.remember("+1555", "hello", 100_000, PERSISTENT);
+        assertTrue(file.exists());
+
+        assertTrue(filter.isDuplicate("+1555", "hello", 100_000, IN_MEMORY));
+        assertFalse(file.exists());
+        assertFalse(new DuplicateFilter(file).isDuplicate("+1555", "hello", 100_000, PERSISTENT));
+    }
+}
@@ -0,0 +1,37 @@
+package com.enixcoda.smsforward;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+public class HistoryDatabaseTest {
+
+    /**
+     * FTS4 only takes a prefix query with the star inside the quotes, {@code "verif"*} matches
+     * the whole word {@code verif} and nothing else.
+     */
+    @Test
+    public void searchesEveryWordByPrefix() {
+        assertEquals("\"verif*\"", HistoryDatabase.toMatchQuery("verif"));
+        assertEquals("\"ban*\" \"verif*\"", HistoryDatabase.toMatchQuery("ban verif"));
+    }
+
+    @Test
+    public void collapsesWhitespaceBetweenWords() {
+        assertEquals("\"ban*\" \"verif*\"", HistoryDatabase.toMatchQuery("  ban \t\n verif  "));
+    }
+
+    @Test
+    public void takesOperatorsAndQuotesLiterally() {
+        assertEquals("\"OR*\" \"code*\"", HistoryDatabase.toMatchQuery("OR \"code\""));
+        assertEquals("\"-bank*\" \"NEAR/2*\"", HistoryDatabase.toMatchQuery("-bank NEAR/2"));
+    }
+
+    @Test
+    public void returnsNullWithoutWords() {
+        assertNull(HistoryDatabase.toMatchQuery(""));
+        assertNull(HistoryDatabase.toMatchQuery("   "));
+        assertNull(HistoryDatabase.toMatchQuery("\" \"\""));
+    }
+}
@@ -0,0 +1,137 @@
+package com.enixcoda.smsforward;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class HistoryPagerTest {
+    private static final int PAGE_SIZE = 3;
+
+    /** Runs tasks only when asked to, like a busy background thread. */
+    private static final class QueuedExecutor implements Executor {
+        final Queue<Runnable> tasks = new ArrayDeque<>();
+
+        @Override
+        public void execute(Runnable task) {
+            tasks.add(task);
+        }
+
+        void runAll() {
+            Runnable task;
+            while ((task = tasks.poll()) != null) task.run();
+        }
+    }
+
+    /** The numbers after {@code after} up to {@code count}. */
+    private static HistoryPager.Source<Integer> numbers(int count, AtomicInteger reads) {
+        return (after, limit) -> {
+            reads.incrementAndGet();
+            List<Integer> page = new ArrayList<>();
+            for (int i = after == null ? 0 : after + 1; i < count && page.size() < limit; i++) page.add(i);
+            return page;
+        };
+    }
+
+    private static HistoryPager<Integer> pager(Executor background, AtomicInteger changes) {
+        return new HistoryPager<>(background, Runnable::run, PAGE_SIZE, changes::incrementAndGet);
+    }
+
+    @Test
+    public void pagesUntilExhausted() {
+        AtomicInteger reads = new AtomicInteger();
+        HistoryPager<Integer> pager = pager(Runnable::run, new AtomicInteger());
+        pager.reset(numbers(7, reads));
+        assertEquals(3, pager.getRows().size());
+        pager.loadNextPage();
+        pager.loadNextPage();
+        assertEquals(7, pager.getRows().size());
+        assertEquals(Integer.valueOf(6), pager.getRows().get(6));
+        assertTrue(pager.isExhausted());
+
+        pager.loadNextPage();
+        assertEquals(3, reads.get());
+    }
+
+    @Test
+    public void readsOnePageAtATime() {
+        QueuedExecutor background = new QueuedExecutor();
+        AtomicInteger reads = new AtomicInteger();
+        HistoryPager<Integer> pager = pager(background, new AtomicInteger());
+        pager.reset(numbers(7, reads));
+        pager.loadNextPage();
+        assertTrue(pager.isLoading());
+        assertEquals(1, background.tasks.size());
+
+        background.runAll();
+        assertFalse(pager.isLoading());
+        assertEquals(3, pager.getRows().size());
+        assertEquals(1, reads.get());
+    }
+
+    @Test
+    public void failingQueryStopsLoadingWithError() {
+        AtomicInteger reads = new AtomicInteger();
+        AtomicInteger changes = new AtomicInteger();
+        IllegalStateException failure = new IllegalStateException("malformed MATCH expression");
+        HistoryPager<Integer> pager = pager(Runnable::run, changes);
+        pager.reset((after, limit) -> {
+            reads.incrementAndGet();
+            throw failure;
+        });
+
+        assertFalse(pager.isLoading());
+        assertSame(failure, pager.getError());
+        assertTrue(pager.getRows().isEmpty());
+        // once for the reset, once for the failure
+        assertEquals(2, changes.get());
+
+        // scrolling does not read it again
+        pager.loadNextPage();
+        assertEquals(1, reads.get());
+    }
+
+    @Test
+    public void resetAfterFailureLoadsAgain() {
+        AtomicInteger reads = new AtomicInteger();
+        HistoryPager<Integer> pager = pager(Runnable::run, new AtomicInteger());
+        pager.reset((after, limit) -> {
+            throw new IllegalStateException("database is locked");
+        });
+        pager.reset(numbers(2, reads));
+
+        assertNull(pager.getError());
+        assertEquals(2, pager.getRows().size());
+        assertTrue(pager.isExhausted());
+    }
+
+    @Test
+    public void ignoresPagesOfAnOlderQuery() {
+        QueuedExecutor background = new QueuedExecutor();
+        HistoryPager<Integer> pager = pager(background, new AtomicInteger());
+        pager.reset((after, limit) -> {
+            throw new IllegalStateException("slow and failing");
+        });
+        pager.reset(numbers(7, new AtomicInteger()));
+        background.runAll();
+
+        assertNull(pager.getError());
+        assertEquals(3, pager.getRows().size());
+
+        pager.loadNextPage();
+        pager.reset(null);
+        background.runAll();
+        assertTrue(pager.getRows().isEmpty());
+        assertFalse(pager.isLoading());
+    }
+}
@@ -0,0 +1,183 @@
+package com.enixcoda.smsforward;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import androidx.annotation.NonNull;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+public class MultipartAssemblerTest {
+    private static final String SENDER = "+15551234567";
+
+    /** Keeps parts like the outbox database does, in memory. */
+    private static final class MemoryStore implements MultipartAssembler.PartStore {
+        final Map<String, TreeMap<Integer, MultipartAssembler.Part>> groups = new LinkedHashMap<>();
+
+        @Override
+        public void updateParts(@NonNull Collection<String> finishedGroups, @NonNull List<MultipartAssembler.Part> parts) {
+            for (String group : finishedGroups) groups.remove(group);
+            for (MultipartAssembler.Part part : parts) {
+                groups.computeIfAbsent(part.groupKey, key -> new TreeMap<>()).putIfAbsent(part.sequence, part);
+            }
+        }
+
+        @NonNull
+        @Override
+        public List<MultipartAssembler.Part> loadParts() {
+            List<MultipartAssembler.Part> parts = new ArrayList<>();
+            for (TreeMap<Integer, MultipartAssembler.Part> group : groups.values()) parts.addAll(group.values());
+            return parts;
+        }
+
+        int size() {
+            int size = 0;
+            for (TreeMap<Integer, MultipartAssembler.Part> group : groups.values()) size += group.size();
+            return size;
+        }
+    }
+
+    private final List<IncomingMessage> handedOn = new ArrayList<>();
+
+    private MultipartAssembler assembler(MultipartAssembler.PartStore store) {
+        return new MultipartAssembler(handedOn::addAll, store);
+    }
+
+    private static IncomingMessage add(MultipartAssembler assembler, int reference, int total, int sequence, String body) {
+        return assembler.add(SENDER, body, 1_000, 0, pdu(reference, total, sequence), "3gpp");
+    }
+
+    @Test
+    public void joinsPartsInSequenceOrder() {
+        MultipartAssembler assembler = assembler(null);
+        assertNull(add(assembler, 7, 3, 2, "b"));
+        assertNull(add(assembler, 7, 3, 3, "c"));
+        // a repeated part changes nothing
+        assertNull(add(assembler, 7, 3, 3, "c"));
+        IncomingMessage message = add(assembler, 7, 3, 1, "a");
+        assertNotNull(message);
+        assertEquals("abc", message.body);
+        assertEquals(SENDER, message.senderNumber);
+    }
+
+    @Test
+    public void passesSinglePartsThrough() {
+        MultipartAssembler assembler = assembler(null);
+        IncomingMessage message = add(assembler, 0, 1, 1, "hello");
+        assertNotNull(message);
+        assertEquals("hello", message.body);
+        // concatenation header of 3GPP2 PDUs is not read
+        assertNotNull(assembler.add(SENDER, "part", 1_000, 0, pdu(7, 2, 1), "3gpp2"));
+    }
+
+    @Test
+    public void savesOnlyPartsStillWaitingOnCommit() {
+        MemoryStore store = new MemoryStore();
+        MultipartAssembler assembler = assembler(store);
+        add(assembler, 1, 2, 1, "a");
+        assertEquals(0, store.size());
+        // the rest of group 1 in the same broadcast
+        add(assembler, 1, 2, 2, "b");
+        add(assembler, 2, 2, 1, "c");
+        assembler.commit();
+        assertEquals(1, store.size());
+        assertTrue(store.groups.containsKey(SENDER + "#2#2"));
+    }
+
+    @Test
+    public void forgetsGroupsOnceTheyAreCommitted() {
+        MemoryStore store = new MemoryStore();
+        MultipartAssembler assembler = assembler(store);
+        add(assembler, 1, 2, 1, "a");
+        assembler.commit();
+        assertNotNull(add(assembler, 1, 2, 2, "b"));
+        assertEquals(1, store.size());
+        assembler.commit();
+        assertEquals(0, store.size());
+    }
+
+    @Test
+    public void completesGroupsOfThePreviousProcess() {
+        MemoryStore store = new MemoryStore();
+        MultipartAssembler before = assembler(store);
+        add(before, 1, 3, 1, "a");
+        add(before, 1, 3, 3, "c");
+        before.commit();
+
+        MultipartAssembler restarted = assembler(store);
+        IncomingMessage message = add(restarted, 1, 3, 2, "b");
+        assertNotNull(message);
+        assertEquals("abc", message.body);
+        assertEquals(1_000, message.timestampMillis);
+        restarted.commit();
+        assertEquals(0, store.size());
+    }
+
+    @Test
+    public void replayedBroadcastCompletesAGroupThatWasNotCommitted() {
+        MemoryStore store = new MemoryStore();
+        MultipartAssembler before = assembler(store);
+        add(before, 1, 2, 1, "a");
+        before.commit();
+        // completed, but the process dies before the commit
+        assertNotNull(add(before, 1, 2, 2, "b"));
+
+        MultipartAssembler restarted = assembler(store);
+        IncomingMessage message = add(restarted, 1, 2, 2, "b");
+        assertNotNull(message);
+        assertEquals("ab", message.body);
+    }
+
+    @Test
+    public void forgetsEvictedGroups() {
+        MemoryStore store = new MemoryStore();
+        MultipartAssembler assembler = assembler(store);
+        for (int reference = 0; reference < MultipartAssembler.MAX_PENDING_GROUPS; reference++) {
+            add(assembler, reference, 2, 1, "part " + reference);
+        }
+        assembler.commit();
+        assertEquals(MultipartAssembler.MAX_PENDING_GROUPS, store.size());
+
+        add(assembler, 99, 2, 1, "one more");
+        assertEquals(1, handedOn.size());
+        assertEquals("part 0", handedOn.get(0).body);
+        assertEquals(MultipartAssembler.MAX_PENDING_GROUPS - 1, store.size());
+    }
+
+    /**
+     * Builds an SMS-DELIVER PDU with the concatenation header of part {@code sequence} of
+     * {@code total}, or without a header if {@code total} is 1. The text is left out, the
+     * assembler takes it from the decoded message.
+     */
+    private static byte[] pdu(int reference, int total, int sequence) {
+        boolean concatenated = total > 1;
+        byte[] smsc = {0x07, (byte) 0x91, 0x51, 0x55, 0x21, 0x43, 0x65, (byte) 0xf7};
+        byte[] originator = {0x0b, (byte) 0x91, 0x51, 0x55, 0x21, 0x43, 0x65, (byte) 0xf7};
+        byte[] header = {0x05, 0x00, 0x03, (byte) reference, (byte) total, (byte) sequence};
+
+        byte[] pdu = new byte[smsc.length + 1 + originator.length + 2 + 7 + 1 + (concatenated ? header.length : 0)];
+        int i = 0;
+        System.arraycopy(smsc, 0, pdu, i, smsc.length);
+        i += smsc.length;
+        // SMS-DELIVER, with TP-UDHI for concatenated parts
+        pdu[i++] = (byte) (concatenated ? 0x44 : 0x04);
+        System.arraycopy(originator, 0, pdu, i, originator.length);
+        i += originator.length;
+        // TP-PID, TP-DCS and TP-SCTS stay zero
+        i += 2 + 7;
+        pdu[i++] = (byte) (concatenated ? header.length : 0);
+        if (concatenated) {
+            System.arraycopy(header, 0, pdu, i, header.length);
+        }
+        return pdu;
+    }
+}
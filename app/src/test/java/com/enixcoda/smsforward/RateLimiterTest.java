@@ -0,0 +1,87 @@
+package com.enixcoda.smsforward;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class RateLimiterTest {
+    /** One token a second, slow enough that refilling during a test does not matter. */
+    private static RateLimiter limiter(String key, int burst) {
+        return RateLimiter.forKey("RateLimiterTest." + key, 1, burst);
+    }
+
+    private static void assertWait(long expectedMs, long waitMs) {
+        assertTrue("waits " + waitMs + " ms", waitMs <= expectedMs && waitMs > expectedMs - 100);
+    }
+
+    @Test
+    public void sendsTheBurstRightAwayThenSpacesRequests() {
+        RateLimiter limiter = limiter("burst", 3);
+        assertEquals(3, limiter.getAvailableTokens(), 0.01);
+        assertEquals(0, limiter.reserve());
+        assertEquals(0, limiter.reserve());
+        assertEquals(0, limiter.reserve());
+        assertWait(1000, limiter.reserve());
+        assertWait(2000, limiter.reserve());
+        assertEquals(0, limiter.getAvailableTokens(), 0.01);
+    }
+
+    @Test
+    public void peekingTakesNoToken() {
+        RateLimiter limiter = limiter("peek", 1);
+        assertEquals(0, limiter.peekWaitMs());
+        assertEquals(0, limiter.peekWaitMs());
+        assertEquals(0, limiter.reserve());
+        assertWait(1000, limiter.peekWaitMs());
+        assertWait(1000, limiter.reserve());
+    }
+
+    @Test
+    public void borrowingDelaysTheRequestsAfterIt() {
+        RateLimiter limiter = limiter("borrow", 1);
+        assertEquals(0, limiter.reserve());
+        limiter.borrow();
+        limiter.borrow();
+        assertWait(3000, limiter.reserve());
+    }
+
+    @Test
+    public void sharesOneLimiterPerKeyUntilTheSettingsChange() {
+        RateLimiter limiter = limiter("shared", 2);
+        assertSame(limiter, limiter("shared", 2));
+
+        limiter.reserve();
+        limiter.reserve();
+        RateLimiter replaced = limiter("shared", 5);
+        assertNotSame(limiter, replaced);
+        assertEquals(5, replaced.getAvailableTokens(), 0.01);
+    }
+
+    @Test
+    public void dropsFullLimitersPastTheLimit() {
+        RateLimiter busy = limiter("busy", 1);
+        busy.reserve();
+        RateLimiter idle = limiter("idle", 1);
+        for (int i = 0; i < RateLimiter.MAX_LIMITERS; i++) {
+            limiter("filler" + i, 1);
+        }
+
+        assertSame(busy, limiter("busy", 1));
+        assertFalse(RateLimiter.getTokenLevels().containsKey("RateLimiterTest.idle"));
+        assertNotSame(idle, limiter("idle", 1));
+    }
+
+    @Test
+    public void redactsKeysToAShortStableDigest() {
+        String secret = "123456:ABC-DEF1234ghIkl-zyx57W2v1u123ew11";
+        String redacted = RateLimiter.redact(secret);
+        assertEquals(8, redacted.length());
+        assertTrue(redacted.matches("[0-9a-f]{8}"));
+        assertEquals(redacted, RateLimiter.redact(secret));
+        assertFalse(redacted.equals(RateLimiter.redact(secret + "x")));
+    }
+}
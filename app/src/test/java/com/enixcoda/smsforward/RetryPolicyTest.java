@@ -0,0 +1,61 @@
+package com.enixcoda.smsforward;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+
+import javax.mail.AuthenticationFailedException;
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+
+public class RetryPolicyTest {
+    private static ForwardException status(int statusCode, boolean retryable, long retryAfterMs) {
+        return new ForwardException("HTTP " + statusCode, statusCode, retryable, retryAfterMs);
+    }
+
+    @Test
+    public void retriesConnectionFailuresOnly() {
+        assertTrue(RetryPolicy.isRetryable(new SocketTimeoutException()));
+        assertTrue(RetryPolicy.isRetryable(new IOException("reset")));
+        assertTrue(RetryPolicy.isRetryable(new MessagingException("connect failed")));
+        assertFalse(RetryPolicy.isRetryable(new SendFailedException("no such recipient")));
+        assertFalse(RetryPolicy.isRetryable(new AuthenticationFailedException("bad password")));
+        assertFalse(RetryPolicy.isRetryable(new IllegalArgumentException("bad url")));
+        assertFalse(RetryPolicy.isRetryable(new SecurityException("no permission")));
+    }
+
+    @Test
+    public void leavesForwardExceptionsToDecide() {
+        assertTrue(RetryPolicy.isRetryable(status(503, true, ForwardException.NO_RETRY_AFTER)));
+        assertFalse(RetryPolicy.isRetryable(status(400, false, ForwardException.NO_RETRY_AFTER)));
+    }
+
+    @Test
+    public void backsOffExponentiallyWithJitter() {
+        for (int attempts = 1; attempts < RetryPolicy.MAX_ATTEMPTS; attempts++) {
+            long delay = Math.min(RetryPolicy.MAX_DELAY_MS, RetryPolicy.INITIAL_DELAY_MS << (attempts - 1));
+            for (int i = 0; i < 20; i++) {
+                long next = RetryPolicy.nextDelayMs(attempts, new IOException());
+                assertTrue("attempt " + attempts + " waits " + next, next >= delay / 2 && next <= delay);
+            }
+        }
+    }
+
+    @Test
+    public void honoursTheServersRetryAfter() {
+        assertEquals(42_000, RetryPolicy.nextDelayMs(1, status(429, true, 42_000)));
+        assertEquals(0, RetryPolicy.nextDelayMs(3, status(429, true, 0)));
+    }
+
+    @Test
+    public void givesUpAfterTheLastAttemptOrOnPermanentErrors() {
+        assertEquals(RetryPolicy.GIVE_UP, RetryPolicy.nextDelayMs(RetryPolicy.MAX_ATTEMPTS, new IOException()));
+        assertEquals(RetryPolicy.GIVE_UP, RetryPolicy.nextDelayMs(RetryPolicy.MAX_ATTEMPTS, status(429, true, 1_000)));
+        assertEquals(RetryPolicy.GIVE_UP, RetryPolicy.nextDelayMs(1, status(401, false, ForwardException.NO_RETRY_AFTER)));
+    }
+}
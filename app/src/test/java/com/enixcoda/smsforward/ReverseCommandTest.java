@@ -0,0 +1,94 @@
+package com.enixcoda.smsforward;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+public class ReverseCommandTest {
+
+    @Test
+    public void parsesSingleRecipient() {
+        ReverseCommand command = ReverseCommand.parse("To +15551234567:\nHello there");
+        assertNotNull(command);
+        assertEquals(Collections.singletonList("+15551234567"), command.recipients);
+        assertEquals("Hello there", command.body);
+    }
+
+    @Test
+    public void parsesRecipientWithoutPlus() {
+        ReverseCommand command = ReverseCommand.parse("To 5551234:\nHi");
+        assertNotNull(command);
+        assertEquals(Collections.singletonList("5551234"), command.recipients);
+    }
+
+    @Test
+    public void parsesCommaSeparatedRecipients() {
+        ReverseCommand command = ReverseCommand.parse("To +15551234567, +447700900123 ,5550000:\nHi all");
+        assertNotNull(command);
+        assertEquals(Arrays.asList("+15551234567", "+447700900123", "5550000"), command.recipients);
+        assertEquals("Hi all", command.body);
+    }
+
+    @Test
+    public void keepsBodyLinesAsTheyAre() {
+        ReverseCommand command = ReverseCommand.parse("To +1555:\nline one\nline two\n");
+        assertNotNull(command);
+        assertEquals("line one\nline two\n", command.body);
+    }
+
+    @Test
+    public void rejectsMissingColon() {
+        assertNull(ReverseCommand.parse("To +15551234567\nHello"));
+    }
+
+    @Test
+    public void rejectsMissingNewline() {
+        assertNull(ReverseCommand.parse("To +15551234567: Hello"));
+        assertNull(ReverseCommand.parse("To +15551234567:"));
+    }
+
+    @Test
+    public void rejectsMissingOrMalformedRecipients() {
+        assertNull(ReverseCommand.parse("To :\nHello"));
+        assertNull(ReverseCommand.parse("To +1555,:\nHello"));
+        assertNull(ReverseCommand.parse("To +1555x:\nHello"));
+        assertNull(ReverseCommand.parse("Hello\nTo +1555:\nHello"));
+    }
+
+    /**
+     * The regular expression this parser replaced accepted an empty body and passed it on to
+     * SmsManager, which fails on it. Such commands are ignored now.
+     */
+    @Test
+    public void rejectsEmptyBody() {
+        assertNull(ReverseCommand.parse("To +15551234567:\n"));
+        assertNull(ReverseCommand.parse("To +15551234567:\r\n"));
+    }
+
+    @Test
+    public void acceptsCrlfAfterHeader() {
+        ReverseCommand command = ReverseCommand.parse("To +15551234567, +447700900123:\r\nHello\r\nthere");
+        assertNotNull(command);
+        assertEquals(Arrays.asList("+15551234567", "+447700900123"), command.recipients);
+        assertEquals("Hello\r\nthere", command.body);
+    }
+
+    @Test
+    public void rejectsCarriageReturnWithoutNewline() {
+        assertNull(ReverseCommand.parse("To +15551234567:\rHello"));
+    }
+
+    @Test
+    public void parsesMultiKilobyteBody() {
+        StringBuilder body = new StringBuilder();
+        while (body.length() < 8 * 1024) body.append("Lorem ipsum dolor sit amet.\n");
+        ReverseCommand command = ReverseCommand.parse("To +15551234567:\n" + body);
+        assertNotNull(command);
+        assertEquals(body.toString(), command.body);
+    }
+}
@@ -0,0 +1,112 @@
+package com.enixcoda.smsforward;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.EnumSet;
+
+public class RoutingRulesTest {
+    private static int lineOf(RoutingRules rules, String sender, String body) {
+        RoutingRules.Rule rule = rules.match(sender, body);
+        assertNotNull(rule);
+        return rule.line;
+    }
+
+    @Test
+    public void firstMatchingRuleWins() {
+        RoutingRules rules = RoutingRules.compile("keyword:code -> telegram\n"
+                + "from:BANK -> email\n"
+                + "* -> web");
+        assertEquals(1, lineOf(rules, "BANK", "your code is 1234"));
+        assertEquals(2, lineOf(rules, "BANK", "balance low"));
+        assertEquals(3, lineOf(rules, "+15550000", "hello"));
+        assertEquals(EnumSet.of(Channel.TELEGRAM), rules.match("BANK", "code").channels);
+    }
+
+    @Test
+    public void ruleWithBothKindsNeedsOneOfEach() {
+        RoutingRules rules = RoutingRules.compile("from:BANK from:+1555 keyword:code keyword:otp -> telegram");
+        assertNotNull(rules.match("+15551234", "your OTP"));
+        assertNotNull(rules.match("BANKX", "code 1"));
+        assertNull(rules.match("BANK", "balance low"));
+        assertNull(rules.match("SHOP", "your code"));
+    }
+
+    @Test
+    public void senderMustStartWithThePrefix() {
+        RoutingRules rules = RoutingRules.compile("from:bank -> email");
+        assertNotNull(rules.match("BANK-ALERTS", ""));
+        assertNull(rules.match("MYBANK", ""));
+        assertNull(rules.match("BAN", ""));
+    }
+
+    @Test
+    public void keywordMatchesAnywhereIgnoringCase() {
+        RoutingRules rules = RoutingRules.compile("keyword:OTP -> telegram\nkeyword:shx -> web\nkeyword:hers -> email");
+        assertEquals(1, lineOf(rules, "x", "Your otp: 1234"));
+        assertEquals(1, lineOf(rules, "x", "XOTPX"));
+        // "hers" is only found through the failure link from "sh"
+        assertEquals(3, lineOf(rules, "x", "SHERS"));
+        assertEquals(2, lineOf(rules, "x", "sshx"));
+        assertNull(rules.match("x", "nothing"));
+    }
+
+    @Test
+    public void dropHasNoChannels() {
+        RoutingRules rules = RoutingRules.compile("keyword:unsubscribe -> DROP\n* -> web");
+        RoutingRules.Rule rule = rules.match("x", "reply Unsubscribe to stop");
+        assertNotNull(rule);
+        assertTrue(rule.isDrop());
+        assertTrue(rule.channels.isEmpty());
+        assertEquals(2, lineOf(rules, "x", "hello"));
+    }
+
+    @Test
+    public void reportsBadLinesAndKeepsTheRest() {
+        RoutingRules rules = RoutingRules.compile("# comment\n"
+                + "\n"
+                + "from:BANK email\n"
+                + "-> web\n"
+                + "to:me -> web\n"
+                + "from:BANK -> pigeon\n"
+                + "from:BANK -> email, Web");
+        assertEquals(4, rules.errors.size());
+        assertTrue(rules.errors.get(0).startsWith("line 3:"));
+        assertEquals(1, rules.rules.size());
+        RoutingRules.Rule rule = rules.match("BANK", "");
+        assertNotNull(rule);
+        assertEquals(7, rule.line);
+        assertEquals(EnumSet.of(Channel.EMAIL, Channel.WEB), rule.channels);
+    }
+
+    @Test
+    public void matchesNothingWithoutRules() {
+        assertNull(RoutingRules.compile("").match("x", "y"));
+        assertNull(RoutingRules.compile("# only a comment").match("x", "y"));
+    }
+
+    @Test
+    public void ruleIndexesPastOneWordOfTheBitSets() {
+        StringBuilder source = new StringBuilder();
+        for (int i = 0; i < 130; i++) {
+            source.append("from:s").append(i).append(" keyword:k").append(i).append("x -> web\n");
+        }
+        source.append("keyword:last -> email\n");
+        source.append("from:z -> telegram\n");
+        RoutingRules rules = RoutingRules.compile(source.toString());
+        assertEquals(132, rules.rules.size());
+
+        assertEquals(64, lineOf(rules, "s63", "k63x"));
+        assertEquals(65, lineOf(rules, "s64", "k64x"));
+        assertEquals(130, lineOf(rules, "s129", "k129x"));
+        // the same bit in different words: rules 2 and 130, rules 66 and 2
+        assertNull(rules.match("s1", "k129x"));
+        assertNull(rules.match("s65", "k1x"));
+        assertEquals(131, lineOf(rules, "anyone", "the last one"));
+        assertEquals(132, lineOf(rules, "zed", "nothing"));
+    }
+}
@@ -0,0 +1,114 @@
+package com.enixcoda.smsforward;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class SmsSegmentsTest {
+    private static final String SENDER = "+15551234567";
+    /** Cyrillic, needs UCS-2 but no surrogates. */
+    private static final char CYRILLIC = '\u042F';
+    /** An emoji, one surrogate pair. */
+    private static final String EMOJI = "\ud83d\ude00";
+
+    private static String repeat(String text, int times) {
+        StringBuilder out = new StringBuilder();
+        for (int i = 0; i < times; i++) out.append(text);
+        return out.toString();
+    }
+
+    private static String repeat(char c, int times) {
+        return repeat(String.valueOf(c), times);
+    }
+
+    @Test
+    public void gsm7SingleAndSegmentBoundaries() {
+        assertEquals(1, SmsSegments.of("").count);
+        assertEquals(1, SmsSegments.of(repeat('a', 160)).count);
+        assertEquals(2, SmsSegments.of(repeat('a', 161)).count);
+        assertEquals(2, SmsSegments.of(repeat('a', 2 * 153)).count);
+        assertEquals(3, SmsSegments.of(repeat('a', 2 * 153 + 1)).count);
+
+        SmsSegments segments = SmsSegments.of(repeat('a', 161));
+        assertFalse(segments.ucs2);
+        assertEquals(161, segments.units);
+    }
+
+    @Test
+    public void ucs2SingleAndSegmentBoundaries() {
+        assertEquals(1, SmsSegments.of(repeat(CYRILLIC, 70)).count);
+        assertEquals(2, SmsSegments.of(repeat(CYRILLIC, 71)).count);
+        assertEquals(2, SmsSegments.of(repeat(CYRILLIC, 2 * 67)).count);
+        assertEquals(3, SmsSegments.of(repeat(CYRILLIC, 2 * 67 + 1)).count);
+        assertTrue(SmsSegments.of(repeat(CYRILLIC, 71)).ucs2);
+    }
+
+    @Test
+    public void oneCharacterOutsideGsm7SwitchesTheWholeTextToUcs2() {
+        SmsSegments segments = SmsSegments.of(repeat('a', 100) + CYRILLIC);
+        assertTrue(segments.ucs2);
+        assertEquals(101, segments.units);
+        assertEquals(2, segments.count);
+    }
+
+    @Test
+    public void gsm7BasicSymbolsCountOnce() {
+        SmsSegments segments = SmsSegments.of("@\u00A3$\u00E9\u00DF\n");
+        assertFalse(segments.ucs2);
+        assertEquals(6, segments.units);
+    }
+
+    @Test
+    public void extensionCharactersCountAsTwoSeptets() {
+        SmsSegments segments = SmsSegments.of("a[\u20AC");
+        assertFalse(segments.ucs2);
+        assertEquals(5, segments.units);
+
+        assertEquals(1, SmsSegments.of(repeat('\u20AC', 80)).count);
+        assertEquals(2, SmsSegments.of(repeat('\u20AC', 81)).count);
+    }
+
+    @Test
+    public void escapeSequenceIsNotSplitBetweenSegments() {
+        // 306 septets would fit two segments exactly, but the euro sign cannot start at septet 153
+        String text = repeat('a', 152) + '\u20AC' + repeat('a', 152);
+        SmsSegments segments = SmsSegments.of(text);
+        assertEquals(306, segments.units);
+        assertEquals(3, segments.count);
+
+        // moved to the second segment, which then still has room for the rest
+        assertEquals(2, SmsSegments.of(repeat('a', 152) + '\u20AC' + repeat('a', 151)).count);
+    }
+
+    @Test
+    public void surrogatePairIsNotSplitBetweenSegments() {
+        // 134 units would fit two segments exactly, but the pair cannot start at unit 67
+        String text = repeat(CYRILLIC, 66) + EMOJI + repeat(CYRILLIC, 66);
+        SmsSegments segments = SmsSegments.of(text);
+        assertTrue(segments.ucs2);
+        assertEquals(134, segments.units);
+        assertEquals(3, segments.count);
+
+        assertEquals(2, SmsSegments.of(repeat(CYRILLIC, 66) + EMOJI + repeat(CYRILLIC, 65)).count);
+    }
+
+    @Test
+    public void packKeepsFromPrefixWhenItCostsNoSegment() {
+        assertEquals("From " + SENDER + ":\nHello", SmsSegments.pack(SENDER, "Hello"));
+
+        // 300 and 305 septets, two segments either way
+        String body = repeat('a', 300 - SENDER.length() - 2);
+        assertEquals("From " + SENDER + ":\n" + body, SmsSegments.pack(SENDER, body));
+    }
+
+    @Test
+    public void packDropsFromPrefixWhenThatSavesASegment() {
+        // exactly 160 septets without the prefix, 165 with it
+        String body = repeat('a', 160 - SENDER.length() - 2);
+        String packed = SmsSegments.pack(SENDER, body);
+        assertEquals(SENDER + ":\n" + body, packed);
+        assertEquals(1, SmsSegments.of(packed).count);
+    }
+}
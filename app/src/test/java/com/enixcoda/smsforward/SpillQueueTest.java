@@ -0,0 +1,183 @@
+package com.enixcoda.smsforward;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import androidx.annotation.NonNull;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+public class SpillQueueTest {
+    /** Written like any other item, but fails to read back. */
+    private static final String UNREADABLE = "unreadable";
+
+    private static final SpillQueue.Codec<String> CODEC = new SpillQueue.Codec<String>() {
+        @Override
+        public void write(@NonNull String item, @NonNull DataOutputStream out) throws IOException {
+            out.writeUTF(item);
+        }
+
+        @NonNull
+        @Override
+        public String read(@NonNull DataInputStream in) throws IOException {
+            String item = in.readUTF();
+            if (item.equals(UNREADABLE)) throw new IOException("cannot read " + item);
+            return item;
+        }
+    };
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File segment;
+
+    @Before
+    public void setUp() {
+        segment = new File(folder.getRoot(), "test.spill");
+    }
+
+    private SpillQueue<String> queue(int capacity) {
+        return new SpillQueue<>(capacity, segment, CODEC);
+    }
+
+    private static void offer(SpillQueue<String> queue, String... items) throws IOException {
+        for (String item : items) queue.offer(item);
+    }
+
+    @Test
+    public void keepsOrderAcrossMemoryAndSegment() throws IOException {
+        SpillQueue<String> queue = queue(2);
+        assertTrue(queue.offer("a"));
+        assertTrue(queue.offer("b"));
+        assertFalse(queue.offer("c"));
+        assertEquals("a", queue.poll());
+        // the ring has room again, but "c" is still on disk
+        assertFalse(queue.offer("d"));
+        assertEquals(2, queue.spilledSize());
+
+        assertEquals("b", queue.poll());
+        assertEquals("c", queue.poll());
+        assertEquals("d", queue.poll());
+        assertNull(queue.poll());
+        assertEquals(0, queue.size());
+    }
+
+    @Test
+    public void deletesSegmentOnceEveryItemIsCommitted() throws IOException {
+        SpillQueue<String> queue = queue(1);
+        offer(queue, "a", "b", "c");
+        assertTrue(segment.exists());
+        queue.poll();
+        queue.poll();
+        queue.poll();
+        assertTrue(segment.exists());
+        queue.commit();
+        assertFalse(segment.exists());
+
+        // spills to a new segment afterwards
+        offer(queue, "d", "e");
+        assertEquals("d", queue.poll());
+        assertEquals("e", queue.poll());
+    }
+
+    @Test
+    public void replaysOnlyUncommittedItemsAfterCrash() throws IOException {
+        SpillQueue<String> queue = queue(1);
+        offer(queue, "a", "b", "c", "d", "e");
+        assertEquals("a", queue.poll());
+        assertEquals("b", queue.poll());
+        assertEquals("c", queue.poll());
+        queue.commit();
+        // taken, but the process dies before it is handled
+        assertEquals("d", queue.poll());
+
+        SpillQueue<String> restarted = queue(1);
+        assertEquals(2, restarted.size());
+        assertEquals("d", restarted.poll());
+        assertEquals("e", restarted.poll());
+        assertNull(restarted.poll());
+        restarted.commit();
+        assertFalse(segment.exists());
+    }
+
+    @Test
+    public void replaysNothingWhenEverythingWasCommitted() throws IOException {
+        SpillQueue<String> queue = queue(1);
+        offer(queue, "a", "b", "c");
+        queue.poll();
+        queue.poll();
+        queue.poll();
+        queue.commit();
+
+        SpillQueue<String> restarted = queue(1);
+        assertEquals(0, restarted.size());
+        assertNull(restarted.poll());
+    }
+
+    @Test
+    public void discardsItemCutShortByCrash() throws IOException {
+        SpillQueue<String> queue = queue(1);
+        offer(queue, "a", "b", "c");
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            file.setLength(file.length() - 1);
+        }
+
+        SpillQueue<String> restarted = queue(1);
+        assertEquals(1, restarted.size());
+        assertEquals("b", restarted.poll());
+        assertNull(restarted.poll());
+        // a new item goes after the last complete one
+        offer(restarted, "x", "y");
+        assertEquals("x", restarted.poll());
+        assertEquals("y", restarted.poll());
+    }
+
+    @Test
+    public void skipsOnlyTheUnreadableItem() throws IOException {
+        SpillQueue<String> queue = queue(1);
+        offer(queue, "a", "b", UNREADABLE, "c");
+        assertEquals("a", queue.poll());
+        assertEquals("b", queue.poll());
+        try {
+            queue.poll();
+            fail();
+        } catch (SpillQueue.DroppedItemsException e) {
+            assertEquals(1, e.dropped);
+        }
+        assertEquals("c", queue.poll());
+        assertNull(queue.poll());
+    }
+
+    @Test
+    public void givesUpTheRestWhenLengthsNoLongerAddUp() throws IOException {
+        SpillQueue<String> queue = queue(1);
+        offer(queue, "a", "b", "c", "d");
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            // the length of "c", behind the header and the record of "b"
+            file.seek(SpillQueue.HEADER_LENGTH + 4 + 3);
+            file.writeInt(Integer.MAX_VALUE);
+        }
+        assertEquals("a", queue.poll());
+        assertEquals("b", queue.poll());
+        try {
+            queue.poll();
+            fail();
+        } catch (SpillQueue.DroppedItemsException e) {
+            assertEquals(2, e.dropped);
+        }
+        assertEquals(0, queue.size());
+        assertFalse(segment.exists());
+    }
+}
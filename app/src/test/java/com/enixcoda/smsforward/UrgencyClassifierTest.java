@@ -0,0 +1,52 @@
+package com.enixcoda.smsforward;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class UrgencyClassifierTest {
+    @Test
+    public void recognisesOneTimePasswords() {
+        assertTrue(UrgencyClassifier.looksLikeOtp("Your verification code is 123456"));
+        assertTrue(UrgencyClassifier.looksLikeOtp("123-456 is your login code."));
+        assertTrue(UrgencyClassifier.looksLikeOtp("Use 4821 to sign in"));
+        assertTrue(UrgencyClassifier.looksLikeOtp("Your OTP: 90210"));
+    }
+
+    @Test
+    public void needsBothTheWordAndTheCode() {
+        assertFalse(UrgencyClassifier.looksLikeOtp("Your parcel 123456 has shipped"));
+        assertFalse(UrgencyClassifier.looksLikeOtp("Enter the code we sent you"));
+        // part of a longer number, an amount or a date
+        assertFalse(UrgencyClassifier.looksLikeOtp("Account 1234567890 code reset"));
+        assertFalse(UrgencyClassifier.looksLikeOtp("Paid 1,250.00 with PIN"));
+        assertFalse(UrgencyClassifier.looksLikeOtp("Your pin expires 2026.10.01"));
+        // inside a word
+        assertFalse(UrgencyClassifier.looksLikeOtp("Decoded 123456"));
+    }
+
+    @Test
+    public void matchesSenderPrefixesAndKeywordsIgnoringCase() {
+        UrgencyClassifier classifier = UrgencyClassifier.of(false, " BANK, +1555\n", "Fraud,\nalarm");
+        assertTrue(classifier.isUrgent("bank-alerts", "hello"));
+        assertTrue(classifier.isUrgent("+15551234", "hello"));
+        assertFalse(classifier.isUrgent("MYBANK", "hello"));
+        assertTrue(classifier.isUrgent("shop", "Possible FRAUD on your card"));
+        assertTrue(classifier.isUrgent("shop", "Alarm triggered"));
+        assertFalse(classifier.isUrgent("shop", "Your code is 123456"));
+    }
+
+    @Test
+    public void detectsOneTimePasswordsOnlyWhenEnabled() {
+        assertTrue(UrgencyClassifier.of(true, "", "").isUrgent("shop", "Your code is 123456"));
+        assertFalse(UrgencyClassifier.of(true, "", "").isUrgent("shop", "Sale ends today"));
+        assertFalse(UrgencyClassifier.of(false, "", "").isUrgent("shop", "Your code is 123456"));
+    }
+
+    @Test
+    public void ignoresEmptyListItems() {
+        UrgencyClassifier classifier = UrgencyClassifier.of(false, ",,\n ,", " , ");
+        assertFalse(classifier.isUrgent("anyone", "anything"));
+    }
+}
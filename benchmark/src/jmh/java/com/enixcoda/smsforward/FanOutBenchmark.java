@@ -0,0 +1,127 @@
+package com.enixcoda.smsforward;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+
+/**
+ * Forwarding one message to several HTTP channels through the {@link ForwardingEngine}, against
+ * local stub servers answering after a fixed latency.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class FanOutBenchmark {
+    @Param({"0", "20"})
+    public int serverLatencyMs;
+
+    private final List<MockWebServer> servers = new ArrayList<>();
+    private final List<String> webhooks = new ArrayList<>();
+    private String rocketChatUrl;
+
+    @Setup
+    public void setUp() throws IOException {
+        for (int i = 0; i < 4; i++) {
+            MockWebServer server = new MockWebServer();
+            server.setDispatcher(new Dispatcher() {
+                @Override
+                public MockResponse dispatch(RecordedRequest request) {
+                    return new MockResponse()
+                            .setBody("{\"success\":true}")
+                            .setHeadersDelay(serverLatencyMs, TimeUnit.MILLISECONDS);
+                }
+            });
+            server.start();
+            servers.add(server);
+        }
+        for (int i = 0; i < 3; i++) {
+            webhooks.add(servers.get(i).url("/hook").toString());
+        }
+        rocketChatUrl = servers.get(3).url("").toString().replaceAll("/$", "");
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        for (MockWebServer server : servers) {
+            server.shutdown();
+        }
+    }
+
+    /**
+     * All channels at once, the way the drainer dispatches them.
+     */
+    @Benchmark
+    public int engine() throws InterruptedException {
+        ForwardingEngine engine = ForwardingEngine.getInstance();
+        CountDownLatch done = new CountDownLatch(webhooks.size() + 1);
+        AtomicInteger failures = new AtomicInteger();
+
+        for (String webhook : webhooks) {
+            engine.submit(Channel.WEB, () -> {
+                try {
+                    new ForwardTaskForWeb(PayloadBenchmark.ENTRY, webhook, false).send();
+                } catch (IOException e) {
+                    failures.incrementAndGet();
+                } finally {
+                    done.countDown();
+                }
+            });
+        }
+        engine.submit(Channel.ROCKET_CHAT, () -> {
+            try {
+                rocketChat().send();
+            } catch (IOException e) {
+                failures.incrementAndGet();
+            } finally {
+                done.countDown();
+            }
+        });
+
+        done.await();
+        return failures.get();
+    }
+
+    /**
+     * One channel after the other, for comparison.
+     */
+    @Benchmark
+    public int sequential() {
+        int failures = 0;
+        for (String webhook : webhooks) {
+            try {
+                new ForwardTaskForWeb(PayloadBenchmark.ENTRY, webhook, false).send();
+            } catch (IOException e) {
+                failures++;
+            }
+        }
+        try {
+            rocketChat().send();
+        } catch (IOException e) {
+            failures++;
+        }
+        return failures;
+    }
+
+    private ForwardTaskForRocketChat rocketChat() {
+        return new ForwardTaskForRocketChat(rocketChatUrl, "user", "token", "#sms",
+                PayloadBenchmark.SENDER, PayloadBenchmark.MESSAGE);
+    }
+}
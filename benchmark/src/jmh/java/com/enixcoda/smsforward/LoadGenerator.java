@@ -0,0 +1,617 @@
+package com.enixcoda.smsforward;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeMessage;
+
+import okhttp3.HttpUrl;
+import okhttp3.Interceptor;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+
+/**
+ * Offline end-to-end load test: synthesised SMS through the app's receive and forwarding code into
+ * local stand-ins for every network channel.
+ * <p>
+ * Messages are generated at a steady rate with periodic bursts. Some are unicode and some arrive as
+ * concatenated parts in random order. Every part goes through what {@link SMSReceiver} does: into
+ * a {@link SpillQueue} holding {@code --receive-capacity} parts in memory and the rest on disk, then
+ * on the engine's receive thread the {@link MultipartAssembler}, the {@link RoutingRules}, then one send
+ * per channel on the {@link ForwardingEngine} with the real channel tasks, in the urgent lane if
+ * the {@link UrgencyClassifier} finds a one-time password. Telegram, Twilio,
+ * Rocket.Chat and the webhooks are {@link MockWebServer}s, email goes to an {@link SmtpStandIn}, and
+ * the fixed Telegram and Twilio hosts are redirected through {@link SharedHttpClient#replace}.
+ * With {@code --webhooks} above 1, Web posts through the {@link WebhookFanOut} to that many
+ * webhooks, and a message counts as arrived once all of them have it. {@code --h2 true} speaks
+ * HTTP/2 to every stand-in, as the app does with servers that offer it.
+ * <p>
+ * Each send's outcome is recorded in the engine's {@link AdaptiveLimit} for its channel, as the
+ * {@link OutboxDrainer} does, unless {@code --adaptive false} keeps the initial limits. With
+ * {@code --server-capacity}, the HTTP stand-ins answer 429 to requests beyond that many at once,
+ * and those sends are submitted again shortly after, standing in for the outbox's retries.
+ * <p>
+ * Not covered, because they need the framework: decoding PDUs with {@code SmsMessage}, the SQLite
+ * outbox with its retries, and the SMS channel.
+ * <p>
+ * Each stand-in notes when a message arrived, and the report lists per channel the throughput,
+ * the latency from generation to arrival, separately for one-time passwords, the messages lost
+ * the connections the stand-ins accepted, the 429s, the concurrency limit at the end, and how far the receive thread fell behind. The exit status is 1 if more
+ * messages were lost than {@code --max-loss} allows, so a CI job can fail on it.
+ * <pre>
+ * ./gradlew :benchmark:loadTest -PloadArgs="--rate 200 --duration 60 --latency 80"
+ * </pre>
+ */
+public final class LoadGenerator {
+    private static final Pattern MARKER = Pattern.compile("LG-(\\d+)-");
+    private static final String GSM_TEXT = "Your parcel is out for delivery today, track it in the app. ";
+    /** Cyrillic and an emoji, so the message needs UCS-2. */
+    private static final String UNICODE_TEXT = "\u0412\u0430\u0448\u0430 \u043f\u043e\u0441\u044b\u043b\u043a\u0430 \u0432 \u043f\u0443\u0442\u0438 \ud83d\ude00 ";
+    /** How long a throttled send waits before it is submitted again. */
+    private static final long RETRY_DELAY_MS = 500;
+    private static final String OTP_TEXT = "Your verification code is %06d. It expires in 10 minutes.";
+
+    /**
+     * Command line options, {@code --name value}.
+     */
+    static final class Options {
+        /** Messages per second, not counting bursts. */
+        double rate = 20;
+        int durationSeconds = 30;
+        /** Messages sent at once every {@link #burstEverySeconds}, 0 for none. */
+        int burstSize = 100;
+        int burstEverySeconds = 10;
+        double multipartRatio = 0.2;
+        double unicodeRatio = 0.2;
+        /** Share of single part one-time password messages, which take the urgent lane. */
+        double otpRatio = 0.02;
+        /** How long each stand-in takes to answer. */
+        long latencyMs = 50;
+        /** How long to wait for stragglers once generation stopped. */
+        int drainSeconds = 60;
+        Set<Channel> channels = EnumSet.of(Channel.TELEGRAM, Channel.ROCKET_CHAT, Channel.TWILIO, Channel.WEB, Channel.EMAIL);
+        String rules = "";
+        boolean gzip = false;
+        int webhooks = 1;
+        boolean h2 = false;
+        /** Parts waiting for the receive thread in memory, as {@link SMSReceiver#RECEIVED_CAPACITY}. */
+        int receiveCapacity = 64;
+        /** Requests each HTTP stand-in handles at once before answering 429, 0 for no limit. */
+        int serverCapacity = 0;
+        boolean adaptive = true;
+        long seed = 1;
+        long maxLoss = 0;
+
+        static Options parse(String[] args) {
+            Options options = new Options();
+            for (int i = 0; i + 1 < args.length; i += 2) {
+                String value = args[i + 1];
+                switch (args[i]) {
+                    case "--rate": options.rate = Double.parseDouble(value); break;
+                    case "--duration": options.durationSeconds = Integer.parseInt(value); break;
+                    case "--burst": options.burstSize = Integer.parseInt(value); break;
+                    case "--burst-every": options.burstEverySeconds = Integer.parseInt(value); break;
+                    case "--multipart": options.multipartRatio = Double.parseDouble(value); break;
+                    case "--unicode": options.unicodeRatio = Double.parseDouble(value); break;
+                    case "--otp": options.otpRatio = Double.parseDouble(value); break;
+                    case "--latency": options.latencyMs = Long.parseLong(value); break;
+                    case "--drain": options.drainSeconds = Integer.parseInt(value); break;
+                    case "--rules": options.rules = value.replace(';', '\n'); break;
+                    case "--gzip": options.gzip = Boolean.parseBoolean(value); break;
+                    case "--webhooks": options.webhooks = Integer.parseInt(value); break;
+                    case "--h2": options.h2 = Boolean.parseBoolean(value); break;
+                    case "--receive-capacity": options.receiveCapacity = Integer.parseInt(value); break;
+                    case "--server-capacity": options.serverCapacity = Integer.parseInt(value); break;
+                    case "--adaptive": options.adaptive = Boolean.parseBoolean(value); break;
+                    case "--seed": options.seed = Long.parseLong(value); break;
+                    case "--max-loss": options.maxLoss = Long.parseLong(value); break;
+                    case "--channels":
+                        options.channels = EnumSet.noneOf(Channel.class);
+                        for (String name : value.split(",")) {
+                            options.channels.add(Channel.valueOf(name.trim().toUpperCase(Locale.ROOT)));
+                        }
+                        break;
+                    default:
+                        throw new IllegalArgumentException("unknown option " + args[i]);
+                }
+            }
+            if (options.channels.contains(Channel.SMS)) {
+                throw new IllegalArgumentException("SMS has no stand-in, it needs the device radio");
+            }
+            return options;
+        }
+    }
+
+    /**
+     * What one channel's stand-in saw.
+     */
+    private static final class ChannelStats {
+        final LongAdder dispatched = new LongAdder();
+        final LongAdder errors = new LongAdder();
+        final LongAdder duplicates = new LongAdder();
+        final LongAdder connections = new LongAdder();
+        final LongAdder throttled = new LongAdder();
+        final Set<Integer> delivered = ConcurrentHashMap.newKeySet();
+        final LatencyHistogram latency = new LatencyHistogram();
+        final LatencyHistogram otpLatency = new LatencyHistogram();
+        volatile long lastArrivalNanos;
+    }
+
+    /**
+     * One part as it waits for the receive thread.
+     */
+    private static final class Part {
+        final String sender;
+        final String body;
+        final long timestamp;
+        final byte[] pdu;
+
+        Part(String sender, String body, long timestamp, byte[] pdu) {
+            this.sender = sender;
+            this.body = body;
+            this.timestamp = timestamp;
+            this.pdu = pdu;
+        }
+    }
+
+    private static final SpillQueue.Codec<Part> PART_CODEC = new SpillQueue.Codec<Part>() {
+        @Override
+        public void write(Part item, DataOutputStream out) throws IOException {
+            out.writeUTF(item.sender);
+            out.writeUTF(item.body);
+            out.writeLong(item.timestamp);
+            out.writeInt(item.pdu.length);
+            out.write(item.pdu);
+        }
+
+        @Override
+        public Part read(DataInputStream in) throws IOException {
+            String sender = in.readUTF();
+            String body = in.readUTF();
+            long timestamp = in.readLong();
+            byte[] pdu = new byte[in.readInt()];
+            in.readFully(pdu);
+            return new Part(sender, body, timestamp, pdu);
+        }
+    };
+
+    private final Options options;
+    private final Random random;
+    private final ForwardingEngine engine = ForwardingEngine.getInstance();
+    private final MultipartAssembler assembler = new MultipartAssembler(messages -> {
+        for (IncomingMessage message : messages) forward(message);
+    });
+    private final RoutingRules routing;
+    private final UrgencyClassifier urgency = UrgencyClassifier.of(true, "", "");
+    private final Map<Channel, ChannelStats> stats = new EnumMap<>(Channel.class);
+    private final Map<Channel, MockWebServer> httpStandIns = new EnumMap<>(Channel.class);
+    private final List<MockWebServer> webhookStandIns = new ArrayList<>();
+    private final WebhookFanOut webhookFanOut = new WebhookFanOut();
+    /** Submits throttled sends again, as the outbox would retry them. */
+    private final ScheduledExecutorService retries = Executors.newSingleThreadScheduledExecutor();
+    private List<WebEndpoints.Endpoint> webhooks;
+    /** Per message, the webhooks it arrived at. */
+    private final ConcurrentHashMap<Integer, AtomicInteger> webhookArrivals = new ConcurrentHashMap<>();
+    private SmtpStandIn smtpStandIn;
+    /** {@link System#nanoTime()} at which each message was generated, by sequence number. */
+    private final ConcurrentHashMap<Integer, Long> generatedAt = new ConcurrentHashMap<>();
+    private final Set<Integer> otps = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger assembled = new AtomicInteger();
+    private File spillSegment;
+    private SpillQueue<Part> received;
+    /** Whether a pass over {@link #received} is queued on the receive thread. Guarded by {@link #received}. */
+    private boolean receiveQueued;
+    private int spilledParts;
+    private int maxReceiveBacklog;
+    private int generated;
+    private int multipart;
+    private int unicode;
+    private long startNanos;
+    private long generationEndNanos;
+
+    LoadGenerator(Options options) {
+        this.options = options;
+        this.random = new Random(options.seed);
+        this.routing = RoutingRules.compile(options.rules);
+        for (Channel channel : Channel.values()) stats.put(channel, new ChannelStats());
+        if (!routing.errors.isEmpty()) throw new IllegalArgumentException("rules: " + routing.errors);
+    }
+
+    public static void main(String[] args) throws Exception {
+        LoadGenerator generator = new LoadGenerator(Options.parse(args));
+        try {
+            generator.start();
+            generator.generate();
+            generator.awaitDelivery();
+        } finally {
+            generator.stop();
+        }
+        long lost = generator.report(System.out);
+        System.exit(lost > generator.options.maxLoss ? 1 : 0);
+    }
+
+    private void start() throws IOException {
+        spillSegment = File.createTempFile("received", ".spill");
+        received = new SpillQueue<>(options.receiveCapacity, spillSegment, PART_CODEC);
+        httpStandIns.put(Channel.TELEGRAM, httpStandIn(Channel.TELEGRAM, 200, "{\"ok\":true,\"result\":{}}"));
+        httpStandIns.put(Channel.ROCKET_CHAT, httpStandIn(Channel.ROCKET_CHAT, 200, "{\"success\":true}"));
+        httpStandIns.put(Channel.TWILIO, httpStandIn(Channel.TWILIO, 201, "{\"sid\":\"SM0123\",\"status\":\"queued\"}"));
+        smtpStandIn = new SmtpStandIn(options.latencyMs, this::arrived);
+
+        Map<String, HttpUrl> redirects = new ConcurrentHashMap<>();
+        redirects.put("api.telegram.org", httpStandIns.get(Channel.TELEGRAM).url("/"));
+        redirects.put("api.twilio.com", httpStandIns.get(Channel.TWILIO).url("/"));
+        // separate services on separate hosts, as far as the client's per-host limits go
+        StringBuilder endpoints = new StringBuilder();
+        for (int i = 0; i < options.webhooks; i++) {
+            MockWebServer webhook = httpStandIn(Channel.WEB, 200, "{}");
+            webhookStandIns.add(webhook);
+            String host = "webhook" + i + ".example.com";
+            redirects.put(host, webhook.url("/"));
+            endpoints.append("http://").append(host).append("/hook\n");
+        }
+        webhooks = WebEndpoints.parse(endpoints.toString()).endpoints;
+        Interceptor redirect = chain -> {
+            Request request = chain.request();
+            HttpUrl target = redirects.get(request.url().host());
+            if (target == null) return chain.proceed(request);
+            HttpUrl url = request.url().newBuilder().scheme(target.scheme()).host(target.host()).port(target.port()).build();
+            return chain.proceed(request.newBuilder().url(url).build());
+        };
+        OkHttpClient.Builder client = SharedHttpClient.get().newBuilder().addInterceptor(redirect);
+        if (options.h2) client.protocols(Collections.singletonList(Protocol.H2_PRIOR_KNOWLEDGE));
+        SharedHttpClient.replace(client.build());
+    }
+
+    private MockWebServer httpStandIn(Channel channel, int status, String responseBody) throws IOException {
+        MockWebServer server = new MockWebServer();
+        if (options.h2) server.setProtocols(Collections.singletonList(Protocol.H2_PRIOR_KNOWLEDGE));
+        AtomicInteger active = new AtomicInteger();
+        server.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+                // numbered per connection
+                if (request.getSequenceNumber() == 0) stats.get(channel).connections.increment();
+                try {
+                    if (options.serverCapacity > 0 && active.incrementAndGet() > options.serverCapacity) {
+                        stats.get(channel).throttled.increment();
+                        return new MockResponse().setResponseCode(429).setBody("{\"ok\":false}");
+                    }
+                    return answer(request);
+                } finally {
+                    if (options.serverCapacity > 0) active.decrementAndGet();
+                }
+            }
+
+            private MockResponse answer(RecordedRequest request) throws InterruptedException {
+                Thread.sleep(options.latencyMs);
+                String content = request.getBody().readUtf8();
+                if (channel == Channel.WEB) {
+                    arrivedAtWebhook(content);
+                } else {
+                    arrived(channel, content);
+                }
+                return new MockResponse().setResponseCode(status).setBody(responseBody);
+            }
+        });
+        server.start();
+        return server;
+    }
+
+    private void generate() {
+        long intervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / options.rate);
+        long burstIntervalNanos = TimeUnit.SECONDS.toNanos(options.burstEverySeconds);
+        startNanos = System.nanoTime();
+        long end = startNanos + TimeUnit.SECONDS.toNanos(options.durationSeconds);
+        long nextBurst = options.burstSize > 0 && burstIntervalNanos > 0 ? startNanos + burstIntervalNanos : Long.MAX_VALUE;
+
+        for (long next = startNanos; next < end; next += intervalNanos) {
+            long wait;
+            while ((wait = next - System.nanoTime()) > 0) LockSupport.parkNanos(wait);
+            emit(generated++);
+            if (next >= nextBurst) {
+                for (int i = 0; i < options.burstSize; i++) emit(generated++);
+                nextBurst += burstIntervalNanos;
+            }
+        }
+        generationEndNanos = System.nanoTime();
+    }
+
+    /**
+     * Generates message {@code seq} and hands its parts, in random order, to the receive thread.
+     */
+    private void emit(int seq) {
+        if (random.nextDouble() < options.otpRatio) {
+            otps.add(seq);
+            String body = "LG-" + seq + "- " + String.format(Locale.ROOT, OTP_TEXT, random.nextInt(1_000_000));
+            emit(seq, Collections.singletonList(body));
+            return;
+        }
+
+        boolean isUnicode = random.nextDouble() < options.unicodeRatio;
+        boolean isMultipart = random.nextDouble() < options.multipartRatio;
+        if (isUnicode) unicode++;
+        if (isMultipart) multipart++;
+
+        int single = isUnicode ? SmsSegments.UCS2_SINGLE_UNITS : SmsSegments.GSM7_SINGLE_SEPTETS;
+        int perPart = isUnicode ? SmsSegments.UCS2_SEGMENT_UNITS : SmsSegments.GSM7_SEGMENT_SEPTETS;
+        int length = isMultipart
+                ? perPart * (1 + random.nextInt(3)) + 1 + random.nextInt(perPart - 1)
+                : 20 + random.nextInt(single - 20);
+        String body = text(seq, isUnicode ? UNICODE_TEXT : GSM_TEXT, length);
+        emit(seq, isMultipart ? split(body, perPart) : Collections.singletonList(body));
+    }
+
+    private void emit(int seq, List<String> parts) {
+        String sender = String.format(Locale.ROOT, "+1555%07d", seq % 1000);
+        long timestamp = System.currentTimeMillis();
+        int reference = seq & 0xff;
+        List<Integer> order = new ArrayList<>();
+        for (int i = 0; i < parts.size(); i++) order.add(i);
+        Collections.shuffle(order, random);
+
+        generatedAt.put(seq, System.nanoTime());
+        for (int index : order) {
+            String part = parts.get(index);
+            byte[] pdu = PduBenchmark.pdu(reference, parts.size(), index + 1);
+            receive(new Part(sender, part, timestamp, pdu));
+        }
+    }
+
+    /**
+     * What {@link SMSReceiver} does with a broadcast on its intake thread, here on the generator's.
+     */
+    private void receive(Part part) {
+        try {
+            if (!received.offer(part)) spilledParts++;
+        } catch (IOException e) {
+            throw new IllegalStateException("cannot spill", e);
+        }
+        maxReceiveBacklog = Math.max(maxReceiveBacklog, received.size());
+        synchronized (received) {
+            if (receiveQueued) return;
+            receiveQueued = true;
+        }
+        engine.receive(this::receiveAll);
+    }
+
+    private void receiveAll() {
+        while (true) {
+            Part part;
+            try {
+                part = received.poll();
+            } catch (IOException e) {
+                throw new IllegalStateException("cannot read spilled parts", e);
+            }
+            if (part == null) {
+                synchronized (received) {
+                    if (received.size() > 0) continue;
+                    receiveQueued = false;
+                    return;
+                }
+            }
+            IncomingMessage message = assembler.add(part.sender, part.body, part.timestamp, 0, part.pdu, "3gpp");
+            if (message != null) forward(message);
+            try {
+                received.commit();
+            } catch (IOException e) {
+                throw new IllegalStateException("cannot commit spilled parts", e);
+            }
+        }
+    }
+
+    private static String text(int seq, String filler, int length) {
+        StringBuilder text = new StringBuilder("LG-").append(seq).append("- ");
+        while (text.length() < length) text.append(filler);
+        text.setLength(length);
+        // don't end on half a surrogate pair
+        if (Character.isHighSurrogate(text.charAt(length - 1))) text.setLength(length - 1);
+        return text.toString();
+    }
+
+    private static List<String> split(String text, int perPart) {
+        List<String> parts = new ArrayList<>();
+        int start = 0;
+        while (start < text.length()) {
+            int end = Math.min(text.length(), start + perPart);
+            if (end < text.length() && Character.isHighSurrogate(text.charAt(end - 1))) end--;
+            parts.add(text.substring(start, end));
+            start = end;
+        }
+        return parts;
+    }
+
+    /**
+     * The forwarding half of {@link SMSReceiver}, with the channel tasks pointed at the stand-ins.
+     */
+    private void forward(IncomingMessage message) {
+        assembled.incrementAndGet();
+        RoutingRules.Rule rule = routing.match(message.senderNumber, message.body);
+        boolean urgent = urgency.isUrgent(message.senderNumber, message.body);
+        for (Channel channel : options.channels) {
+            if (rule != null && !rule.channels.contains(channel)) continue;
+
+            stats.get(channel).dispatched.increment();
+            submit(channel, message, urgent);
+        }
+    }
+
+    private void submit(Channel channel, IncomingMessage message, boolean urgent) {
+        engine.submit(channel, () -> attempt(channel, message, urgent), urgent);
+    }
+
+    /**
+     * Sends and records the outcome like {@link OutboxDrainer} does.
+     */
+    private void attempt(Channel channel, IncomingMessage message, boolean urgent) {
+        AdaptiveLimit limit = engine.getConcurrencyLimit(channel);
+        long startedAt = System.currentTimeMillis();
+        try {
+            send(channel, message);
+            if (options.adaptive) {
+                limit.onSuccess(startedAt, System.currentTimeMillis() - startedAt, engine.getRunningCount(channel));
+            }
+        } catch (Exception e) {
+            if (!AdaptiveLimit.isOverload(e)) {
+                stats.get(channel).errors.increment();
+                return;
+            }
+            if (options.adaptive) limit.onOverload(startedAt);
+            retries.schedule(() -> submit(channel, message, urgent), RETRY_DELAY_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void send(Channel channel, IncomingMessage message) throws IOException, MessagingException {
+        switch (channel) {
+            case TELEGRAM:
+                new ForwardTaskForTelegram(message.senderNumber, message.body, "123456789", "123:token").send();
+                break;
+            case ROCKET_CHAT:
+                String baseUrl = httpStandIns.get(Channel.ROCKET_CHAT).url("").toString();
+                new ForwardTaskForRocketChat(baseUrl.substring(0, baseUrl.length() - 1), "user", "token", "#sms",
+                        message.senderNumber, message.body).send();
+                break;
+            case TWILIO:
+                new ForwardTaskForTwilio("AC0123", "token", "+15550001111", "+15552223333", message.body).sendTwilioSms();
+                break;
+            case WEB:
+                OutboxEntry entry = OutboxEntry.create(Channel.WEB, message.senderNumber, message.body,
+                        message.timestampMillis, message.simSlot);
+                webhookFanOut.send(Collections.singletonList(entry), webhooks, options.gzip, false);
+                break;
+            case EMAIL:
+                new ForwardTaskForEmail("127.0.0.1", String.valueOf(smtpStandIn.getPort()), "user", "password",
+                        "from@example.com", "to@example.com", "Forwarded SMS message from " + message.senderNumber,
+                        message.body).send();
+                break;
+            default:
+                throw new IllegalArgumentException(channel + " has no stand-in");
+        }
+    }
+
+    private void arrived(MimeMessage email) {
+        try {
+            arrived(Channel.EMAIL, String.valueOf(email.getContent()));
+        } catch (IOException | MessagingException e) {
+            stats.get(Channel.EMAIL).errors.increment();
+        }
+    }
+
+    private void arrivedAtWebhook(String content) {
+        Matcher matcher = MARKER.matcher(content);
+        if (!matcher.find()) return;
+        int seq = Integer.parseInt(matcher.group(1));
+        if (webhookArrivals.computeIfAbsent(seq, key -> new AtomicInteger()).incrementAndGet() == webhooks.size()) {
+            arrived(Channel.WEB, content);
+        }
+    }
+
+    private void arrived(Channel channel, String content) {
+        Matcher matcher = MARKER.matcher(content);
+        if (!matcher.find()) return;
+        int seq = Integer.parseInt(matcher.group(1));
+        ChannelStats channelStats = stats.get(channel);
+        if (!channelStats.delivered.add(seq)) {
+            channelStats.duplicates.increment();
+            return;
+        }
+        long now = System.nanoTime();
+        long latencyMs = TimeUnit.NANOSECONDS.toMillis(now - generatedAt.get(seq));
+        channelStats.latency.record(latencyMs);
+        if (otps.contains(seq)) channelStats.otpLatency.record(latencyMs);
+        channelStats.lastArrivalNanos = now;
+    }
+
+    private void awaitDelivery() throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(options.drainSeconds);
+        while (System.nanoTime() < deadline && !isSettled()) {
+            Thread.sleep(100);
+        }
+    }
+
+    private boolean isSettled() {
+        if (assembled.get() < generated) return false;
+        for (Channel channel : options.channels) {
+            ChannelStats channelStats = stats.get(channel);
+            if (channelStats.delivered.size() + channelStats.errors.sum() < channelStats.dispatched.sum()) return false;
+        }
+        return true;
+    }
+
+    private void stop() throws IOException {
+        retries.shutdownNow();
+        engine.shutdown(5_000);
+        SmtpConnection.close();
+        SharedHttpClient.replace(null);
+        for (MockWebServer server : httpStandIns.values()) server.shutdown();
+        for (MockWebServer server : webhookStandIns) server.shutdown();
+        if (smtpStandIn != null) smtpStandIn.close();
+        if (spillSegment != null && spillSegment.exists() && !spillSegment.delete()) {
+            System.err.println("could not delete " + spillSegment);
+        }
+    }
+
+    /**
+     * Prints the results.
+     *
+     * @return The number of messages lost on the way, counting every channel.
+     */
+    private long report(PrintStream out) {
+        double seconds = (generationEndNanos - startNanos) / 1e9;
+        int incomplete = generated - assembled.get();
+        out.printf(Locale.ROOT, "generated %d messages in %.1f s (%.1f/s), %d multipart, %d unicode, %d OTP, %d not assembled%n",
+                generated, seconds, generated / seconds, multipart, unicode, otps.size(), incomplete);
+        out.printf(Locale.ROOT, "stand-in latency %d ms, %d webhook(s), %s%n", options.latencyMs, options.webhooks,
+                options.h2 ? "HTTP/2" : "HTTP/1.1");
+        out.printf(Locale.ROOT, "receive backlog max %d parts, %d in memory, %d spilled to disk%n%n", maxReceiveBacklog,
+                Math.min(maxReceiveBacklog, options.receiveCapacity), spilledParts);
+        out.printf(Locale.ROOT, "%-12s %10s %10s %7s %7s %5s %8s %7s %7s %7s %7s %8s %6s %6s %5s%n",
+                "channel", "dispatched", "delivered", "errors", "lost", "dup", "msg/s", "p50", "p90", "p99", "max ms",
+                "OTP max", "conns", "429s", "limit");
+
+        long lost = incomplete;
+        for (Channel channel : options.channels) {
+            ChannelStats channelStats = stats.get(channel);
+            long delivered = channelStats.delivered.size();
+            long channelLost = channelStats.dispatched.sum() - delivered;
+            lost += channelLost;
+            double activeSeconds = (channelStats.lastArrivalNanos - startNanos) / 1e9;
+            LatencyHistogram latency = channelStats.latency;
+            out.printf(Locale.ROOT, "%-12s %10d %10d %7d %7d %5d %8.1f %7d %7d %7d %7d %8d %6d %6d %5s%n",
+                    channel, channelStats.dispatched.sum(), delivered, channelStats.errors.sum(), channelLost,
+                    channelStats.duplicates.sum(), activeSeconds > 0 ? delivered / activeSeconds : 0,
+                    latency.getPercentile(50), latency.getPercentile(90), latency.getPercentile(99), latency.getMax(),
+                    channelStats.otpLatency.getMax(), channelStats.connections.sum(), channelStats.throttled.sum(),
+                    engine.getConcurrencyLimit(channel));
+        }
+        out.printf(Locale.ROOT, "%nlost %d%n", lost);
+        return lost;
+    }
+}
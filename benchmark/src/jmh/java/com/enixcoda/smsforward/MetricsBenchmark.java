@@ -0,0 +1,34 @@
+package com.enixcoda.smsforward;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Recording metrics on the delivery path. Run with {@code -prof gc} to confirm it does not allocate.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class MetricsBenchmark {
+    private final LatencyHistogram histogram = new LatencyHistogram();
+    private long value;
+
+    @Benchmark
+    public void recordLatency() {
+        histogram.record(value++ & 0xffff);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void recordLatencyContended() {
+        Metrics.of(Channel.WEB).endToEnd.record(1234);
+        Metrics.of(Channel.WEB).delivered.increment();
+    }
+}
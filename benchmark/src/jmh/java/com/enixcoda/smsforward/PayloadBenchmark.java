@@ -0,0 +1,120 @@
+package com.enixcoda.smsforward;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+
+import okhttp3.Request;
+import okio.Buffer;
+
+/**
+ * Building the request of each channel for one message, without sending it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class PayloadBenchmark {
+    static final String SENDER = "+15551234567";
+    static final String MESSAGE = "Your verification code is 123456. It expires in 10 minutes. Do not share it with anyone.";
+    /** A busy coalescing window, large enough for gzip to kick in. */
+    private static final int BATCH_SIZE = 50;
+    static final OutboxEntry ENTRY = OutboxEntry.create(Channel.WEB, SENDER, MESSAGE, 1700000000000L, 0);
+
+    private static final OutputStream NULL_STREAM = new OutputStream() {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    };
+
+    private final Session session = Session.getInstance(new Properties());
+    private List<OutboxEntry> batch;
+
+    @Setup
+    public void setUp() {
+        batch = new ArrayList<>();
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            batch.add(OutboxEntry.create(Channel.WEB, SENDER, MESSAGE + " #" + i, 1700000000000L + i, i % 2));
+        }
+    }
+
+    @Benchmark
+    public ForwardTaskForTelegram telegram() {
+        return new ForwardTaskForTelegram(SENDER, MESSAGE, "123456789", "123:token");
+    }
+
+    @Benchmark
+    public long webJson() throws IOException {
+        return writeBody(new ForwardTaskForWeb(ENTRY, "http://localhost/hook", false).buildRequest());
+    }
+
+    @Benchmark
+    public long webJsonBatch() throws IOException {
+        return writeBody(ForwardTaskForWeb.forBatch(batch, "http://localhost/hook", false).buildRequest());
+    }
+
+    @Benchmark
+    public long webJsonBatchGzip() throws IOException {
+        return writeBody(ForwardTaskForWeb.forBatch(batch, "http://localhost/hook", true).buildRequest());
+    }
+
+    /**
+     * The batch built as an org.json tree and string first, the way web payloads used to be.
+     */
+    @Benchmark
+    public long webJsonBatchTree() throws JSONException {
+        JSONArray array = new JSONArray();
+        for (OutboxEntry entry : batch) {
+            array.put(new JSONObject()
+                    .put("from", entry.senderNumber)
+                    .put("message", entry.message)
+                    .put("timestamp", entry.receivedAt)
+                    .put("simSlot", entry.simSlot));
+        }
+        byte[] body = array.toString().getBytes(StandardCharsets.UTF_8);
+        return body.length;
+    }
+
+    @Benchmark
+    public long twilioFormBody() throws IOException {
+        return writeBody(new ForwardTaskForTwilio("AC0123", "token", "+15550001111", "+15552223333", MESSAGE).buildRequest());
+    }
+
+    @Benchmark
+    public MimeMessage emailMime() throws IOException, MessagingException {
+        MimeMessage message = new ForwardTaskForEmail("localhost", "587", "user", "password",
+                "from@example.com", "to@example.com", "Forwarded SMS message from " + SENDER, MESSAGE)
+                .buildMessage(session);
+        // encode it as the transport would
+        message.writeTo(NULL_STREAM);
+        return message;
+    }
+
+    private static long writeBody(Request request) throws IOException {
+        Buffer body = new Buffer();
+        request.body().writeTo(body);
+        return body.size();
+    }
+}
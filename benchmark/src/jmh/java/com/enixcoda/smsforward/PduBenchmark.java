@@ -0,0 +1,86 @@
+package com.enixcoda.smsforward;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading the concatenation header of received PDUs and assembling single-part messages.
+ * <p>
+ * {@code SmsMessage.createFromPdu} is part of the framework and cannot run on the JVM, so this
+ * covers the work the app itself adds on top of it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class PduBenchmark {
+    private byte[] singlePart;
+    private byte[] concatenatedPart;
+    private MultipartAssembler assembler;
+
+    @Setup
+    public void setUp() {
+        singlePart = pdu(false);
+        concatenatedPart = pdu(true);
+        assembler = new MultipartAssembler(messages -> {
+        });
+    }
+
+    @Benchmark
+    public MultipartAssembler.ConcatInfo parseSinglePart() {
+        return MultipartAssembler.parseConcatInfo(singlePart, "3gpp");
+    }
+
+    @Benchmark
+    public MultipartAssembler.ConcatInfo parseConcatenatedPart() {
+        return MultipartAssembler.parseConcatInfo(concatenatedPart, "3gpp");
+    }
+
+    @Benchmark
+    public IncomingMessage assembleSinglePart() {
+        return assembler.add("+15551234567", "Your code is 123456", 0, IncomingMessage.UNKNOWN_SIM_SLOT, singlePart, "3gpp");
+    }
+
+    /**
+     * Builds an SMS-DELIVER PDU from +15551234567, optionally with the header of part 1 of 3.
+     */
+    static byte[] pdu(boolean concatenated) {
+        return concatenated ? pdu(0x2a, 3, 1) : pdu(0, 1, 1);
+    }
+
+    /**
+     * Builds an SMS-DELIVER PDU from +15551234567 with the concatenation header of part
+     * {@code sequence} of {@code total}, or without a header if {@code total} is 1. The text itself
+     * is left empty, the assembler takes it from the decoded message.
+     */
+    static byte[] pdu(int reference, int total, int sequence) {
+        boolean concatenated = total > 1;
+        byte[] smsc = {0x07, (byte) 0x91, 0x51, 0x55, 0x21, 0x43, 0x65, (byte) 0xf7};
+        byte[] originator = {0x0b, (byte) 0x91, 0x51, 0x55, 0x21, 0x43, 0x65, (byte) 0xf7};
+        byte[] header = {0x05, 0x00, 0x03, (byte) reference, (byte) total, (byte) sequence};
+        byte[] text = new byte[120];
+
+        int length = smsc.length + 1 + originator.length + 2 + 7 + 1 + (concatenated ? header.length : 0) + text.length;
+        byte[] pdu = new byte[length];
+        int i = 0;
+        System.arraycopy(smsc, 0, pdu, i, smsc.length);
+        i += smsc.length;
+        // SMS-DELIVER, with TP-UDHI for concatenated parts
+        pdu[i++] = (byte) (concatenated ? 0x44 : 0x04);
+        System.arraycopy(originator, 0, pdu, i, originator.length);
+        i += originator.length;
+        // TP-PID, TP-DCS and TP-SCTS stay zero
+        i += 2 + 7;
+        pdu[i++] = (byte) ((concatenated ? header.length : 0) + text.length);
+        if (concatenated) {
+            System.arraycopy(header, 0, pdu, i, header.length);
+        }
+        return pdu;
+    }
+}
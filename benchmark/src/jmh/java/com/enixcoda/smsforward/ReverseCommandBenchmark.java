@@ -0,0 +1,63 @@
+package com.enixcoda.smsforward;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing a reply from the target number, by body length. The cost must stay linear.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ReverseCommandBenchmark {
+    @Param({"64", "1024", "8192"})
+    public int bodyLength;
+
+    private String singleRecipient;
+    private String threeRecipients;
+    private String notACommand;
+
+    @Setup
+    public void setUp() {
+        String body = body(bodyLength);
+        singleRecipient = "To +15551234567:\n" + body;
+        threeRecipients = "To +15551234567, +447700900123, 5550100:\n" + body;
+        notACommand = body;
+    }
+
+    @Benchmark
+    public ReverseCommand singleRecipient() {
+        return ReverseCommand.parse(singleRecipient);
+    }
+
+    @Benchmark
+    public ReverseCommand threeRecipients() {
+        return ReverseCommand.parse(threeRecipients);
+    }
+
+    @Benchmark
+    public ReverseCommand notACommand() {
+        return ReverseCommand.parse(notACommand);
+    }
+
+    /**
+     * Multi-line text with a fixed seed, so every run parses the same input.
+     */
+    static String body(int length) {
+        Random random = new Random(42);
+        StringBuilder body = new StringBuilder(length);
+        while (body.length() < length) {
+            body.append(random.nextInt(8) == 0 ? '\n' : (char) ('a' + random.nextInt(26)));
+        }
+        return body.toString();
+    }
+}
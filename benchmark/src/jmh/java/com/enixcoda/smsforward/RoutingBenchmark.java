@@ -0,0 +1,65 @@
+package com.enixcoda.smsforward;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Routing one message by rule count, with only the last rule matching. The compiled rules must
+ * not get slower with more rules, unlike checking every rule with regular expressions.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class RoutingBenchmark {
+    @Param({"10", "100", "500"})
+    public int ruleCount;
+
+    private RoutingRules rules;
+    private Pattern[] senderPatterns;
+    private Pattern[] keywordPatterns;
+    private String sender;
+    private String body;
+
+    @Setup
+    public void setUp() {
+        StringBuilder source = new StringBuilder();
+        senderPatterns = new Pattern[ruleCount];
+        keywordPatterns = new Pattern[ruleCount];
+        for (int i = 0; i < ruleCount; i++) {
+            // fixed width, so no rule is a prefix of another
+            String id = String.format(Locale.ROOT, "%04d", i);
+            source.append("from:BANK").append(id).append(" keyword:promo").append(id).append(" -> email, web\n");
+            senderPatterns[i] = Pattern.compile("^BANK" + id, Pattern.CASE_INSENSITIVE);
+            keywordPatterns[i] = Pattern.compile("promo" + id, Pattern.CASE_INSENSITIVE);
+        }
+        rules = RoutingRules.compile(source.toString());
+        String last = String.format(Locale.ROOT, "%04d", ruleCount - 1);
+        sender = "BANK" + last;
+        body = PayloadBenchmark.MESSAGE + " Reply PROMO" + last + " for offers.";
+    }
+
+    @Benchmark
+    public RoutingRules.Rule compiled() {
+        return rules.match(sender, body);
+    }
+
+    @Benchmark
+    public int regexPerRule() {
+        for (int i = 0; i < ruleCount; i++) {
+            if (senderPatterns[i].matcher(sender).find() && keywordPatterns[i].matcher(body).find()) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
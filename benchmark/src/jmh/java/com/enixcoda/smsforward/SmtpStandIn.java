@@ -0,0 +1,160 @@
+package com.enixcoda.smsforward;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+
+/**
+ * An in-process SMTP server that accepts every login and every message, just enough of the
+ * protocol for {@link SmtpConnection}: EHLO, AUTH LOGIN or PLAIN, MAIL, RCPT, DATA, RSET, NOOP and
+ * QUIT, without STARTTLS.
+ */
+final class SmtpStandIn implements Closeable {
+    interface Listener {
+        void onMessage(MimeMessage message);
+    }
+
+    private final ServerSocket serverSocket;
+    private final ExecutorService connections = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "SmtpStandIn");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final Session session = Session.getInstance(new Properties());
+    private final Listener listener;
+    private final long delayMs;
+
+    /**
+     * @param delayMs How long the server takes to accept a message.
+     */
+    SmtpStandIn(long delayMs, Listener listener) throws IOException {
+        this.delayMs = delayMs;
+        this.listener = listener;
+        serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        connections.execute(this::accept);
+    }
+
+    int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    private void accept() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                connections.execute(() -> serve(socket));
+            } catch (IOException e) {
+                return;
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        try (Socket s = socket;
+             InputStream in = new BufferedInputStream(s.getInputStream());
+             OutputStream out = s.getOutputStream()) {
+            reply(out, "220 localhost ESMTP stand-in");
+            String line;
+            while ((line = readLine(in)) != null) {
+                String command = line.toUpperCase(Locale.ROOT);
+                if (command.startsWith("EHLO") || command.startsWith("HELO")) {
+                    reply(out, "250-localhost\r\n250-AUTH LOGIN PLAIN\r\n250 8BITMIME");
+                } else if (command.startsWith("AUTH LOGIN")) {
+                    reply(out, "334 VXNlcm5hbWU6");
+                    readLine(in);
+                    reply(out, "334 UGFzc3dvcmQ6");
+                    readLine(in);
+                    reply(out, "235 2.7.0 Accepted");
+                } else if (command.startsWith("AUTH PLAIN")) {
+                    if (command.trim().equals("AUTH PLAIN")) {
+                        reply(out, "334 ");
+                        readLine(in);
+                    }
+                    reply(out, "235 2.7.0 Accepted");
+                } else if (command.startsWith("DATA")) {
+                    reply(out, "354 End data with <CR><LF>.<CR><LF>");
+                    byte[] data = readData(in);
+                    sleep(delayMs);
+                    listener.onMessage(new MimeMessage(session, new ByteArrayInputStream(data)));
+                    reply(out, "250 2.0.0 Queued");
+                } else if (command.startsWith("QUIT")) {
+                    reply(out, "221 2.0.0 Bye");
+                    return;
+                } else if (command.startsWith("MAIL") || command.startsWith("RCPT")
+                        || command.startsWith("RSET") || command.startsWith("NOOP")) {
+                    reply(out, "250 2.0.0 OK");
+                } else {
+                    reply(out, "502 5.5.2 Not implemented");
+                }
+            }
+        } catch (IOException | MessagingException e) {
+            // client went away
+        }
+    }
+
+    private static byte[] readData(InputStream in) throws IOException {
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        String line;
+        while ((line = readLine(in)) != null && !line.equals(".")) {
+            // undo dot-stuffing
+            String unstuffed = line.startsWith(".") ? line.substring(1) : line;
+            data.write(unstuffed.getBytes(StandardCharsets.ISO_8859_1));
+            data.write('\r');
+            data.write('\n');
+        }
+        return data.toByteArray();
+    }
+
+    /**
+     * Reads one CRLF terminated line, byte for byte so 8-bit message bodies survive.
+     */
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int b;
+        while ((b = in.read()) != -1) {
+            if (b == '\n') {
+                int length = line.length();
+                if (length > 0 && line.charAt(length - 1) == '\r') line.setLength(length - 1);
+                return line.toString();
+            }
+            line.append((char) b);
+        }
+        return line.length() > 0 ? line.toString() : null;
+    }
+
+    private static void reply(OutputStream out, String reply) throws IOException {
+        out.write((reply + "\r\n").getBytes(StandardCharsets.ISO_8859_1));
+        out.flush();
+    }
+
+    private static void sleep(long ms) {
+        if (ms <= 0) return;
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+        connections.shutdownNow();
+    }
+}